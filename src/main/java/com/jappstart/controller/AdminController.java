@@ -18,12 +18,30 @@
  */
 package com.jappstart.controller;
 
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 
-import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.jappstart.service.auth.PersistentLoginMigrator;
+import com.jappstart.service.auth.UserCache;
+import com.jappstart.service.auth.UserCacheWarmer;
+import com.jappstart.service.auth.UserExporter;
+import com.jappstart.service.auth.UserImporter;
+import com.jappstart.service.cache.CacheMetrics;
 
 /**
  * The admin controller.
@@ -32,48 +50,344 @@ import com.google.appengine.api.memcache.MemcacheService;
 public class AdminController {
 
     /**
-     * The memcache service.
+     * The user cache.
+     */
+    private UserCache userCache;
+
+    /**
+     * The user cache warmer.
+     */
+    private UserCacheWarmer userCacheWarmer;
+
+    /**
+     * The cache metrics.
+     */
+    private CacheMetrics cacheMetrics;
+
+    /**
+     * The user importer.
+     */
+    private UserImporter userImporter;
+
+    /**
+     * The user exporter.
      */
-    private MemcacheService memcacheServiceUser;
+    private UserExporter userExporter;
 
     /**
-     * Returns the memcache service.
+     * The blobstore service.
+     */
+    private BlobstoreService blobstoreService;
+
+    /**
+     * The persistent login migrator.
+     */
+    private PersistentLoginMigrator persistentLoginMigrator;
+
+    /**
+     * Returns the user cache.
      *
-     * @return the memcache service
+     * @return the user cache
      */
-    public final MemcacheService getMemcacheServiceUser() {
-        return memcacheServiceUser;
+    public final UserCache getUserCache() {
+        return userCache;
     }
 
     /**
-     * Sets the memcache service.
+     * Sets the user cache.
      *
-     * @param memcacheServiceUser the user memcache service
+     * @param userCache the user cache
      */
     @Autowired
-    public final void setMemcacheServiceUser(
-        final MemcacheService memcacheServiceUser) {
-        this.memcacheServiceUser = memcacheServiceUser;
+    public final void setUserCache(final UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Returns the user cache warmer.
+     *
+     * @return the user cache warmer
+     */
+    public final UserCacheWarmer getUserCacheWarmer() {
+        return userCacheWarmer;
+    }
+
+    /**
+     * Sets the user cache warmer.
+     *
+     * @param userCacheWarmer the user cache warmer
+     */
+    @Autowired
+    public final void setUserCacheWarmer(
+        final UserCacheWarmer userCacheWarmer) {
+        this.userCacheWarmer = userCacheWarmer;
+    }
+
+    /**
+     * Returns the cache metrics.
+     *
+     * @return the cache metrics
+     */
+    public final CacheMetrics getCacheMetrics() {
+        return cacheMetrics;
+    }
+
+    /**
+     * Sets the cache metrics.
+     *
+     * @param cacheMetrics the cache metrics
+     */
+    @Autowired
+    public final void setCacheMetrics(final CacheMetrics cacheMetrics) {
+        this.cacheMetrics = cacheMetrics;
+    }
+
+    /**
+     * Returns the user importer.
+     *
+     * @return the user importer
+     */
+    public final UserImporter getUserImporter() {
+        return userImporter;
+    }
+
+    /**
+     * Sets the user importer.
+     *
+     * @param userImporter the user importer
+     */
+    @Autowired
+    public final void setUserImporter(final UserImporter userImporter) {
+        this.userImporter = userImporter;
+    }
+
+    /**
+     * Returns the user exporter.
+     *
+     * @return the user exporter
+     */
+    public final UserExporter getUserExporter() {
+        return userExporter;
+    }
+
+    /**
+     * Sets the user exporter.
+     *
+     * @param userExporter the user exporter
+     */
+    @Autowired
+    public final void setUserExporter(final UserExporter userExporter) {
+        this.userExporter = userExporter;
+    }
+
+    /**
+     * Returns the blobstore service.
+     *
+     * @return the blobstore service
+     */
+    public final BlobstoreService getBlobstoreService() {
+        return blobstoreService;
+    }
+
+    /**
+     * Sets the blobstore service.
+     *
+     * @param blobstoreService the blobstore service
+     */
+    @Autowired
+    public final void setBlobstoreService(
+        final BlobstoreService blobstoreService) {
+        this.blobstoreService = blobstoreService;
+    }
+
+    /**
+     * Returns the persistent login migrator.
+     *
+     * @return the persistent login migrator
+     */
+    public final PersistentLoginMigrator getPersistentLoginMigrator() {
+        return persistentLoginMigrator;
+    }
+
+    /**
+     * Sets the persistent login migrator.
+     *
+     * @param persistentLoginMigrator the persistent login migrator
+     */
+    @Autowired
+    public final void setPersistentLoginMigrator(
+        final PersistentLoginMigrator persistentLoginMigrator) {
+        this.persistentLoginMigrator = persistentLoginMigrator;
     }
 
     /**
      * Admin.
      *
+     * @param modelMap the model map
      * @return the view name
      */
     @RequestMapping(value = "/admin", method = RequestMethod.GET)
-    public final String create() {
-        return "admin";
+    public final String create(final ModelMap modelMap) {
+        return admin(modelMap);
     }
 
     /**
-     * Flushes memcache.
+     * Invalidates every cached user and warms the cache with the recently
+     * active users. Like every state-changing admin request, it must be
+     * posted with the session CSRF token.
      *
      * @return the view name
      */
-    @RequestMapping(value = "/admin/flush", method = RequestMethod.GET)
+    @RequestMapping(value = "/admin/flush", method = RequestMethod.POST)
     public final String flushCache() {
-        memcacheServiceUser.clearAll();
+        userCache.invalidateAll();
+        userCacheWarmer.warm();
+        return "redirect:/admin";
+    }
+
+    /**
+     * Invalidates the cached user with the given username.
+     *
+     * @param username the username
+     * @return the view name
+     */
+    @RequestMapping(value = "/admin/flush/user", method = RequestMethod.POST)
+    public final String flushUser(@RequestParam final String username) {
+        userCache.invalidate(username);
+        return "redirect:/admin";
+    }
+
+    /**
+     * Invalidates the cached users whose username starts with the given
+     * prefix.
+     *
+     * @param prefix the username prefix
+     * @return the view name
+     */
+    @RequestMapping(value = "/admin/flush/prefix", method = RequestMethod.POST)
+    public final String flushPrefix(@RequestParam final String prefix) {
+        userCache.invalidatePrefix(prefix);
+        return "redirect:/admin";
+    }
+
+    /**
+     * Starts migrating persistent logins to series keys.
+     *
+     * @return the view name
+     */
+    @RequestMapping(value = "/admin/migrate/logins",
+        method = RequestMethod.POST)
+    public final String migrateLogins() {
+        persistentLoginMigrator.schedule();
+        return "redirect:/admin";
+    }
+
+    /**
+     * Imports users from the request body, starting after the given
+     * checkpoint. An import which did not complete is resumed by posting
+     * the same body with the returned checkpoint and import key. A client
+     * which retries failed requests should send its own random import key
+     * from the first request, so a retry recognizes the users the failed
+     * request wrote. The session CSRF token is sent in the X-CSRF-Token
+     * header.
+     *
+     * @param format the format, csv or json
+     * @param checkpoint the number of rows already imported
+     * @param locale the locale of rows without one
+     * @param importKey the import key or null to start a new import
+     * @param request the HTTP servlet request
+     * @return the import result
+     * @throws IOException if the request body cannot be read
+     */
+    @RequestMapping(value = "/admin/import", method = RequestMethod.POST)
+    @ResponseBody
+    public final UserImporter.Result importUsers(
+        @RequestParam(defaultValue = UserImporter.CSV) final String format,
+        @RequestParam(defaultValue = "0") final long checkpoint,
+        @RequestParam(defaultValue = "en") final String locale,
+        @RequestParam(required = false) final String importKey,
+        final HttpServletRequest request) throws IOException {
+        return userImporter.importUsers(request.getReader(), format,
+            checkpoint, locale, importKey);
+    }
+
+    /**
+     * Queues the import of an uploaded file. Files named .json or .jsonl
+     * are read as JSON lines and any other file as CSV.
+     *
+     * @param request the HTTP servlet request
+     * @return the view name
+     */
+    @RequestMapping(value = "/admin/import/upload",
+        method = RequestMethod.POST)
+    public final String importUpload(final HttpServletRequest request) {
+        final BlobKey blobKey =
+            blobstoreService.getUploadedBlobs(request).get("file");
+
+        if (blobKey != null) {
+            final BlobInfo info = new BlobInfoFactory().loadBlobInfo(blobKey);
+            final String filename = info.getFilename().toLowerCase();
+            final String format;
+
+            if (filename.endsWith(".json") || filename.endsWith(".jsonl")) {
+                format = UserImporter.JSON;
+            } else {
+                format = UserImporter.CSV;
+            }
+
+            userImporter.scheduleBlob(blobKey.getKeyString(), format, 0,
+                "en", null);
+        }
+
+        return "redirect:/admin";
+    }
+
+    /**
+     * Streams users to the response, starting at the given cursor. An
+     * export which ran out of time ends with a continuation line holding
+     * the cursor to resume from.
+     *
+     * @param format the format, csv or json
+     * @param cursor the cursor to resume from
+     * @param response the HTTP servlet response
+     * @throws IOException if the response cannot be written
+     */
+    @RequestMapping(value = "/admin/export", method = RequestMethod.GET)
+    public final void exportUsers(
+        @RequestParam(defaultValue = UserImporter.CSV) final String format,
+        @RequestParam(required = false) final String cursor,
+        final HttpServletResponse response) throws IOException {
+        if (UserImporter.JSON.equals(format)) {
+            response.setContentType("application/json");
+        } else {
+            response.setContentType("text/csv");
+        }
+
+        response.setCharacterEncoding("UTF-8");
+        userExporter.export(response.getWriter(), format, cursor);
+    }
+
+    /**
+     * Returns the cache metrics merged across all instances.
+     *
+     * @return the cache metrics
+     */
+    @RequestMapping(value = "/admin/metrics", method = RequestMethod.GET)
+    @ResponseBody
+    public final List<CacheMetrics.Snapshot> metrics() {
+        return cacheMetrics.getMerged();
+    }
+
+    /**
+     * Adds the admin page model attributes.
+     *
+     * @param modelMap the model map
+     * @return the view name
+     */
+    private String admin(final ModelMap modelMap) {
+        modelMap.addAttribute("metrics", cacheMetrics.getMerged());
+        modelMap.addAttribute("importUploadUrl",
+            blobstoreService.createUploadUrl("/admin/import/upload"));
         return "admin";
     }
 
@@ -0,0 +1,185 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.controller.task;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.jappstart.service.auth.EnhancedUserDetailsService;
+import com.jappstart.service.auth.UserCacheWarmer;
+import com.jappstart.service.auth.UsernameFilter;
+
+/**
+ * The cache task controller.
+ */
+@Controller
+@RequestMapping("/task/cache")
+public class CacheTask {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(CacheTask.class);
+
+    /**
+     * The username filter.
+     */
+    private UsernameFilter usernameFilter;
+
+    /**
+     * The user details service.
+     */
+    private EnhancedUserDetailsService userDetailsService;
+
+    /**
+     * The user cache warmer.
+     */
+    private UserCacheWarmer userCacheWarmer;
+
+    /**
+     * Gets the username filter.
+     *
+     * @return the username filter
+     */
+    public final UsernameFilter getUsernameFilter() {
+        return usernameFilter;
+    }
+
+    /**
+     * Sets the username filter.
+     *
+     * @param usernameFilter the username filter
+     */
+    @Autowired
+    public final void setUsernameFilter(final UsernameFilter usernameFilter) {
+        this.usernameFilter = usernameFilter;
+    }
+
+    /**
+     * Gets the user details service.
+     *
+     * @return the user details service
+     */
+    public final EnhancedUserDetailsService getUserDetailsService() {
+        return userDetailsService;
+    }
+
+    /**
+     * Sets the user details service.
+     *
+     * @param userDetailsService the user details service
+     */
+    @Autowired
+    public final void setUserDetailsService(
+        final EnhancedUserDetailsService userDetailsService) {
+        this.userDetailsService = userDetailsService;
+    }
+
+    /**
+     * Gets the user cache warmer.
+     *
+     * @return the user cache warmer
+     */
+    public final UserCacheWarmer getUserCacheWarmer() {
+        return userCacheWarmer;
+    }
+
+    /**
+     * Sets the user cache warmer.
+     *
+     * @param userCacheWarmer the user cache warmer
+     */
+    @Autowired
+    public final void setUserCacheWarmer(
+        final UserCacheWarmer userCacheWarmer) {
+        this.userCacheWarmer = userCacheWarmer;
+    }
+
+    /**
+     * Rebuilds the username filter.
+     *
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/filter",
+        method = {RequestMethod.GET, RequestMethod.POST})
+    public final void rebuildFilter(final HttpServletResponse response) {
+        final long start = System.currentTimeMillis();
+        final int count = usernameFilter.rebuild();
+
+        LOGGER.info(String.format(
+            "Username filter rebuilt with %d usernames in %d ms.", count,
+            System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Reloads a cached user account ahead of its expiration.
+     *
+     * @param username the username
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/refresh", method = RequestMethod.POST)
+    public final void refreshUser(@RequestParam final String username,
+        final HttpServletResponse response) {
+        userDetailsService.refreshUser(username);
+        LOGGER.info(String.format("Cached user refreshed: %s.", username));
+    }
+
+    /**
+     * Warms the user cache after the first start of a version.
+     *
+     * @param version the application version
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/deploy", method = RequestMethod.POST)
+    public final void warmDeploy(@RequestParam final String version,
+        final HttpServletResponse response) {
+        final int count = userCacheWarmer.warmDeploy(version);
+
+        LOGGER.info(String.format(
+            "User cache warmup of version %s queued %d tasks.", version,
+            count));
+    }
+
+    /**
+     * Warms the user cache with the recently active users in the given
+     * range of slots.
+     *
+     * @param from the first slot, inclusive
+     * @param to the last slot, exclusive
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/warm", method = RequestMethod.POST)
+    public final void warmUsers(@RequestParam final int from,
+        @RequestParam final int to, final HttpServletResponse response) {
+        final int count = userCacheWarmer.warm(from, to);
+
+        LOGGER.info(String.format(
+            "User cache warmed with %d users from slots %d to %d.", count,
+            from, to));
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.controller.task;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.jappstart.service.auth.EnhancedPersistentTokenRepository;
+import com.jappstart.service.auth.PersistentLoginMigrator;
+import com.jappstart.service.auth.PersistentLoginSweeper;
+
+/**
+ * The persistent login task controller.
+ */
+@Controller
+@RequestMapping("/task/login")
+public class LoginTask {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(LoginTask.class);
+
+    /**
+     * The persistent login migrator.
+     */
+    private PersistentLoginMigrator persistentLoginMigrator;
+
+    /**
+     * The persistent login sweeper.
+     */
+    private PersistentLoginSweeper persistentLoginSweeper;
+
+    /**
+     * The persistent token repository.
+     */
+    private EnhancedPersistentTokenRepository persistentTokenRepository;
+
+    /**
+     * Gets the persistent login migrator.
+     *
+     * @return the persistent login migrator
+     */
+    public final PersistentLoginMigrator getPersistentLoginMigrator() {
+        return persistentLoginMigrator;
+    }
+
+    /**
+     * Sets the persistent login migrator.
+     *
+     * @param persistentLoginMigrator the persistent login migrator
+     */
+    @Autowired
+    public final void setPersistentLoginMigrator(
+        final PersistentLoginMigrator persistentLoginMigrator) {
+        this.persistentLoginMigrator = persistentLoginMigrator;
+    }
+
+    /**
+     * Gets the persistent login sweeper.
+     *
+     * @return the persistent login sweeper
+     */
+    public final PersistentLoginSweeper getPersistentLoginSweeper() {
+        return persistentLoginSweeper;
+    }
+
+    /**
+     * Sets the persistent login sweeper.
+     *
+     * @param persistentLoginSweeper the persistent login sweeper
+     */
+    @Autowired
+    public final void setPersistentLoginSweeper(
+        final PersistentLoginSweeper persistentLoginSweeper) {
+        this.persistentLoginSweeper = persistentLoginSweeper;
+    }
+
+    /**
+     * Gets the persistent token repository.
+     *
+     * @return the persistent token repository
+     */
+    public final EnhancedPersistentTokenRepository
+        getPersistentTokenRepository() {
+        return persistentTokenRepository;
+    }
+
+    /**
+     * Sets the persistent token repository.
+     *
+     * @param persistentTokenRepository the persistent token repository
+     */
+    @Autowired
+    public final void setPersistentTokenRepository(
+        final EnhancedPersistentTokenRepository persistentTokenRepository) {
+        this.persistentTokenRepository = persistentTokenRepository;
+    }
+
+    /**
+     * Migrates a batch of persistent logins to series keys.
+     *
+     * @param cursor the query cursor or null to start
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/migrate", method = RequestMethod.POST)
+    public final void migrateLogins(
+        @RequestParam(required = false) final String cursor,
+        final HttpServletResponse response) {
+        final int count = persistentLoginMigrator.migrate(cursor);
+
+        LOGGER.info(String.format("Migrated %d persistent logins.", count));
+    }
+
+    /**
+     * Deletes a batch of expired persistent logins.
+     *
+     * @param cursor the query cursor or null to start
+     * @param cutoff the cutoff time in milliseconds or null to start
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/sweep",
+        method = {RequestMethod.GET, RequestMethod.POST})
+    public final void sweepLogins(
+        @RequestParam(required = false) final String cursor,
+        @RequestParam(required = false) final Long cutoff,
+        final HttpServletResponse response) {
+        persistentLoginSweeper.sweep(cursor, cutoff);
+    }
+
+    /**
+     * Writes the recorded last used dates of persistent logins.
+     *
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/touch", method = RequestMethod.POST)
+    public final void flushTouches(final HttpServletResponse response) {
+        final int count = persistentTokenRepository.flushTouches();
+
+        LOGGER.info(String.format(
+            "Updated the last used date of %d persistent logins.", count));
+    }
+
+}
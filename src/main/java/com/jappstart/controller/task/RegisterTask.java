@@ -0,0 +1,124 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.controller.task;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.jappstart.service.auth.RegistrationQueue;
+import com.jappstart.service.auth.UserImporter;
+
+/**
+ * The registration task controller.
+ */
+@Controller
+@RequestMapping("/task/register")
+public class RegisterTask {
+
+    /**
+     * The registration queue.
+     */
+    private RegistrationQueue registrationQueue;
+
+    /**
+     * The user importer.
+     */
+    private UserImporter userImporter;
+
+    /**
+     * Gets the registration queue.
+     *
+     * @return the registration queue
+     */
+    public final RegistrationQueue getRegistrationQueue() {
+        return registrationQueue;
+    }
+
+    /**
+     * Sets the registration queue.
+     *
+     * @param registrationQueue the registration queue
+     */
+    @Autowired
+    public final void setRegistrationQueue(
+        final RegistrationQueue registrationQueue) {
+        this.registrationQueue = registrationQueue;
+    }
+
+    /**
+     * Gets the user importer.
+     *
+     * @return the user importer
+     */
+    public final UserImporter getUserImporter() {
+        return userImporter;
+    }
+
+    /**
+     * Sets the user importer.
+     *
+     * @param userImporter the user importer
+     */
+    @Autowired
+    public final void setUserImporter(final UserImporter userImporter) {
+        this.userImporter = userImporter;
+    }
+
+    /**
+     * Imports users from an uploaded blob, starting after the checkpoint.
+     *
+     * @param blobKey the blob key
+     * @param format the format
+     * @param checkpoint the number of rows already imported
+     * @param locale the locale of rows without one
+     * @param importKey the import key
+     * @param response the servlet response
+     * @throws IOException if the blob cannot be read
+     */
+    @RequestMapping(value = "/import", method = RequestMethod.POST)
+    public final void importUsers(@RequestParam final String blobKey,
+        @RequestParam final String format,
+        @RequestParam final long checkpoint,
+        @RequestParam final String locale,
+        @RequestParam final String importKey,
+        final HttpServletResponse response) throws IOException {
+        userImporter.importBlob(blobKey, format, checkpoint, locale,
+            importKey);
+    }
+
+    /**
+     * Persists a batch of accepted registrations.
+     *
+     * @param response the servlet response
+     */
+    @RequestMapping(value = "/persist",
+        method = {RequestMethod.GET, RequestMethod.POST})
+    public final void persistRegistrations(
+        final HttpServletResponse response) {
+        registrationQueue.persist();
+    }
+
+}
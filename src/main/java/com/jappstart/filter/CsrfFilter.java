@@ -0,0 +1,208 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.filter;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.security.core.codec.Hex;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Protects state-changing requests against cross-site request forgery. A
+ * random token is kept in the session and exposed to views as the
+ * <code>csrfToken</code> request attribute. Unsafe requests must send it
+ * back in the <code>X-CSRF-Token</code> header or the <code>_csrf</code>
+ * parameter. Requests carrying the headers App Engine sets on task queue,
+ * cron and blobstore upload requests are trusted, since App Engine removes
+ * those headers from external requests.
+ */
+public class CsrfFilter extends OncePerRequestFilter {
+
+    /**
+     * The token request and session attribute name.
+     */
+    public static final String TOKEN_ATTRIBUTE = "csrfToken";
+
+    /**
+     * The token parameter name.
+     */
+    public static final String TOKEN_PARAMETER = "_csrf";
+
+    /**
+     * The token header name.
+     */
+    public static final String TOKEN_HEADER = "X-CSRF-Token";
+
+    /**
+     * The token length in bytes.
+     */
+    private static final int TOKEN_LENGTH = 16;
+
+    /**
+     * The headers App Engine sets on its own requests.
+     */
+    private static final String[] TRUSTED_HEADERS = {
+        "X-AppEngine-QueueName", "X-AppEngine-Cron",
+        "X-AppEngine-BlobUpload"};
+
+    /**
+     * The secure random.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Indicates if GET and HEAD requests are also checked.
+     */
+    private boolean checkSafeMethods;
+
+    /**
+     * Indicates if GET and HEAD requests are also checked.
+     *
+     * @return true if GET and HEAD requests are checked
+     */
+    public final boolean isCheckSafeMethods() {
+        return checkSafeMethods;
+    }
+
+    /**
+     * Sets if GET and HEAD requests are also checked.
+     *
+     * @param checkSafeMethods true if GET and HEAD requests are checked
+     */
+    public final void setCheckSafeMethods(final boolean checkSafeMethods) {
+        this.checkSafeMethods = checkSafeMethods;
+    }
+
+    /**
+     * Handles the request if it is trusted, safe or carries the session
+     * token, and sends a forbidden error otherwise.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param filterChain the filter chain
+     * @throws ServletException if the request could not be handled
+     * @throws IOException if an I/O error occurred
+     */
+    @Override
+    protected final void doFilterInternal(final HttpServletRequest request,
+        final HttpServletResponse response, final FilterChain filterChain)
+        throws ServletException, IOException {
+        if (isTrusted(request)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final String method = request.getMethod();
+        final boolean safe = !checkSafeMethods
+            && ("GET".equals(method) || "HEAD".equals(method));
+
+        if (safe) {
+            request.setAttribute(TOKEN_ATTRIBUTE, getToken(request));
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final HttpSession session = request.getSession(false);
+        final String expected;
+
+        if (session == null) {
+            expected = null;
+        } else {
+            expected = (String) session.getAttribute(TOKEN_ATTRIBUTE);
+        }
+
+        String actual = request.getHeader(TOKEN_HEADER);
+
+        if (actual == null) {
+            actual = request.getParameter(TOKEN_PARAMETER);
+        }
+
+        if (expected == null || actual == null || !matches(expected, actual)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        request.setAttribute(TOKEN_ATTRIBUTE, expected);
+        filterChain.doFilter(request, response);
+    }
+
+    /**
+     * Indicates if the request was made by App Engine itself.
+     *
+     * @param request the servlet request
+     * @return true if the request carries a trusted header
+     */
+    private boolean isTrusted(final HttpServletRequest request) {
+        for (final String header : TRUSTED_HEADERS) {
+            if (request.getHeader(header) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the session token, creating it if necessary.
+     *
+     * @param request the servlet request
+     * @return the token
+     */
+    private String getToken(final HttpServletRequest request) {
+        final HttpSession session = request.getSession();
+        String token = (String) session.getAttribute(TOKEN_ATTRIBUTE);
+
+        if (token == null) {
+            final byte[] bytes = new byte[TOKEN_LENGTH];
+
+            random.nextBytes(bytes);
+            token = new String(Hex.encode(bytes));
+            session.setAttribute(TOKEN_ATTRIBUTE, token);
+        }
+
+        return token;
+    }
+
+    /**
+     * Compares the given tokens in constant time.
+     *
+     * @param expected the expected token
+     * @param actual the actual token
+     * @return true if the tokens are equal
+     */
+    private static boolean matches(final String expected,
+        final String actual) {
+        try {
+            return MessageDigest.isEqual(expected.getBytes("UTF-8"),
+                actual.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.filter;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
+
+/**
+ * Adds ETag headers to responses except those under the excluded paths.
+ * The ETag is computed from the buffered response body, so streamed
+ * responses such as the user export must be excluded to be streamed.
+ */
+public class EtagFilter extends ShallowEtagHeaderFilter {
+
+    /**
+     * The excluded path prefixes.
+     */
+    private String[] excludedPaths = new String[0];
+
+    /**
+     * Returns the excluded path prefixes.
+     *
+     * @return the excluded path prefixes
+     */
+    public final String[] getExcludedPaths() {
+        return excludedPaths;
+    }
+
+    /**
+     * Sets the excluded path prefixes.
+     *
+     * @param excludedPaths the excluded path prefixes
+     */
+    public final void setExcludedPaths(final String[] excludedPaths) {
+        this.excludedPaths = excludedPaths;
+    }
+
+    /**
+     * Indicates if the request is under an excluded path.
+     *
+     * @param request the servlet request
+     * @return true if the request is not filtered
+     */
+    @Override
+    protected final boolean shouldNotFilter(
+        final HttpServletRequest request) {
+        final String path = request.getRequestURI().substring(
+            request.getContextPath().length());
+
+        for (final String excludedPath : excludedPaths) {
+            if (path.startsWith(excludedPath.trim())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.filter;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.jappstart.service.cache.PendingWrites;
+
+/**
+ * Completes the asynchronous cache writes issued while handling a request
+ * before the request ends.
+ */
+public class PendingWritesFilter extends OncePerRequestFilter {
+
+    /**
+     * Handles the request and completes its pending cache writes.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param filterChain the filter chain
+     * @throws ServletException if the request could not be handled
+     * @throws IOException if an I/O error occurred
+     */
+    @Override
+    protected final void doFilterInternal(final HttpServletRequest request,
+        final HttpServletResponse response, final FilterChain filterChain)
+        throws ServletException, IOException {
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            PendingWrites.drain();
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.model.auth;
+
+import java.io.Serializable;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.springframework.stereotype.Repository;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * The activation key entity class. Activation keys are root entities keyed
+ * by the activation key and point at the user account to activate, so an
+ * activation is a get by key instead of a query. The entity is removed once
+ * the account is activated.
+ */
+@SuppressWarnings("serial")
+@Repository
+@Entity
+public class ActivationKey implements Serializable {
+
+    /**
+     * The key.
+     */
+    @Id
+    private Key key;
+
+    /**
+     * The user account key.
+     */
+    private Key userKey;
+
+    /**
+     * Create an activation key.
+     *
+     * @param activationKey the activation key
+     * @param userKey the user account key
+     */
+    public ActivationKey(final String activationKey, final Key userKey) {
+        this.key = createKey(activationKey);
+        this.userKey = userKey;
+    }
+
+    /**
+     * Returns the key for the given activation key.
+     *
+     * @param activationKey the activation key
+     * @return the key
+     */
+    public static Key createKey(final String activationKey) {
+        return KeyFactory.createKey(ActivationKey.class.getSimpleName(),
+            activationKey);
+    }
+
+    /**
+     * Returns the key.
+     *
+     * @return the key
+     */
+    public final Key getKey() {
+        return key;
+    }
+
+    /**
+     * Sets the key.
+     *
+     * @param key the key
+     */
+    public final void setKey(final Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the user account key.
+     *
+     * @return the user account key
+     */
+    public final Key getUserKey() {
+        return userKey;
+    }
+
+    /**
+     * Sets the user account key.
+     *
+     * @param userKey the user account key
+     */
+    public final void setUserKey(final Key userKey) {
+        this.userKey = userKey;
+    }
+
+}
@@ -22,9 +22,7 @@ import java.io.Serializable;
 import java.util.Date;
 
 import javax.persistence.Entity;
-import javax.persistence.FetchType;
 import javax.persistence.Id;
-import javax.persistence.ManyToOne;
 
 import org.springframework.stereotype.Repository;
 
@@ -32,13 +30,20 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 
 /**
- * The persistent login entity class.
+ * The persistent login entity class. Persistent logins are root entities
+ * keyed by series, so a user can have a login per device and a series can
+ * be read with a get by key.
  */
-@SuppressWarnings("serial")
 @Repository
 @Entity
 public class PersistentLogin implements Serializable {
 
+    /**
+     * The serial version UID of the class as first deployed, so values
+     * cached with default serialization by earlier versions can be read.
+     */
+    private static final long serialVersionUID = -7521932432168215446L;
+
     /**
      * The key.
      */
@@ -66,21 +71,26 @@ public class PersistentLogin implements Serializable {
     private Date lastUsed;
 
     /**
-     * The persistent user.
+     * Create a persistent login with a unique series.
+     *
+     * @param series the series
+     * @param username the username
      */
-    @ManyToOne(fetch = FetchType.LAZY)
-    private PersistentUser persistentUser;
+    public PersistentLogin(final String series, final String username) {
+        this.key = createKey(series);
+        this.series = series;
+        this.username = username;
+    }
 
     /**
-     * Create persistent login with a unique username.
+     * Returns the key for the given series.
      *
-     * @param key the parent key
-     * @param username the username
+     * @param series the series
+     * @return the key
      */
-    public PersistentLogin(final Key key, final String username) {
-        this.key = KeyFactory.createKey(key, getClass().getSimpleName(),
-            username);
-        this.username = username;
+    public static Key createKey(final String series) {
+        return KeyFactory.createKey(PersistentLogin.class.getSimpleName(),
+            series);
     }
 
     /**
@@ -173,22 +183,4 @@ public class PersistentLogin implements Serializable {
         this.lastUsed = lastUsed;
     }
 
-    /**
-     * Gets the persistent user.
-     *
-     * @return the persistent user
-     */
-    public final PersistentUser getPersistentUser() {
-        return persistentUser;
-    }
-
-    /**
-     * Sets the persistent user.
-     *
-     * @param persistentUser the persistent user
-     */
-    public final void setPersistentUser(final PersistentUser persistentUser) {
-        this.persistentUser = persistentUser;
-    }
-
 }
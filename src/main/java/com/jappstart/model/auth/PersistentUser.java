@@ -19,13 +19,10 @@
 package com.jappstart.model.auth;
 
 import java.io.Serializable;
-import java.util.Collection;
 
-import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
-import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 
 import org.springframework.stereotype.Repository;
@@ -36,11 +33,16 @@ import com.google.appengine.api.datastore.KeyFactory;
 /**
  * The persistent user entity class.
  */
-@SuppressWarnings("serial")
 @Repository
 @Entity
 public class PersistentUser implements Serializable {
 
+    /**
+     * The serial version UID of the class as first deployed, so values
+     * cached with default serialization by earlier versions can be read.
+     */
+    private static final long serialVersionUID = 1546024006369118744L;
+
     /**
      * The key.
      */
@@ -52,12 +54,6 @@ public class PersistentUser implements Serializable {
      */
     private String username;
 
-    /**
-     * The persistent logins.
-     */
-    @OneToMany(mappedBy = "persistentUser", cascade = CascadeType.ALL)
-    private Collection<PersistentLogin> persistentLogins;
-
     /**
      * The user account.
      */
@@ -112,25 +108,6 @@ public class PersistentUser implements Serializable {
         this.username = username;
     }
 
-    /**
-     * Returns the persistent logins.
-     *
-     * @return the persistent logins
-     */
-    public final Collection<PersistentLogin> getPersistentLogins() {
-        return persistentLogins;
-    }
-
-    /**
-     * Sets the persistent logins.
-     *
-     * @param persistentLogins the persistent logins
-     */
-    public final void setPersistentLogins(
-        final Collection<PersistentLogin> persistentLogins) {
-        this.persistentLogins = persistentLogins;
-    }
-
     /**
      * Gets the user account.
      *
@@ -39,11 +39,16 @@ import com.google.appengine.api.datastore.KeyFactory;
 /**
  * The user account entity class.
  */
-@SuppressWarnings("serial")
 @Repository
 @Entity
 public class UserAccount implements Serializable {
 
+    /**
+     * The serial version UID of the class as first deployed, so values
+     * cached with default serialization by earlier versions can be read.
+     */
+    private static final long serialVersionUID = -316734614612354537L;
+
     /**
      * The key.
      */
@@ -110,12 +115,24 @@ public class UserAccount implements Serializable {
      */
     private boolean credentialsNonExpired;
 
+    /**
+     * The remember-me token version. Incrementing it revokes every signed
+     * remember-me cookie issued for the user.
+     */
+    private Long tokenVersion;
+
     /**
      * The persistent user.
      */
     @OneToOne(cascade = CascadeType.ALL, fetch = FetchType.LAZY)
     private PersistentUser persistentUser;
 
+    /**
+     * Create an empty user account. Used when decoding cached user accounts.
+     */
+    public UserAccount() {
+    }
+
     /**
      * Create a user account with a unique username.
      *
@@ -125,7 +142,7 @@ public class UserAccount implements Serializable {
         MessageDigest sDigest = null;
         MessageDigest aDigest = null;
 
-        this.key = KeyFactory.createKey(getClass().getSimpleName(), username);
+        this.key = createKey(username);
         this.username = username;
         this.enabled = false;
         this.accountNonExpired = true;
@@ -149,6 +166,17 @@ public class UserAccount implements Serializable {
         this.activationEmailSent = false;
     }
 
+    /**
+     * Creates the key of the user account with the given username.
+     *
+     * @param username the username
+     * @return the key
+     */
+    public static Key createKey(final String username) {
+        return KeyFactory.createKey(UserAccount.class.getSimpleName(),
+            username);
+    }
+
     /**
      * Returns the key.
      *
@@ -385,6 +413,28 @@ public class UserAccount implements Serializable {
         this.credentialsNonExpired = credentialsNonExpired;
     }
 
+    /**
+     * Gets the remember-me token version.
+     *
+     * @return the token version
+     */
+    public final long getTokenVersion() {
+        if (tokenVersion == null) {
+            return 0;
+        }
+
+        return tokenVersion;
+    }
+
+    /**
+     * Sets the remember-me token version.
+     *
+     * @param tokenVersion the token version
+     */
+    public final void setTokenVersion(final long tokenVersion) {
+        this.tokenVersion = tokenVersion;
+    }
+
     /**
      * Gets the persistent user.
      *
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * The activation markers. Used activation keys are remembered in memcache
+ * for a day so repeated activations are answered without a datastore call.
+ */
+@Service
+public class ActivationMarkers {
+
+    /**
+     * The activated key prefix.
+     */
+    private static final String ACTIVATED_PREFIX = "activated:";
+
+    /**
+     * The activated entry expiration in seconds.
+     */
+    private static final int ACTIVATED_EXPIRATION = 86400;
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Indicates if the given activation key is known to have been used.
+     *
+     * @param activationKey the activation key
+     * @return true if used; false otherwise
+     */
+    public final boolean isActivated(final String activationKey) {
+        return memcacheService.contains(ACTIVATED_PREFIX + activationKey);
+    }
+
+    /**
+     * Remembers that the given activation key has been used, so repeated
+     * activations are answered without a datastore call.
+     *
+     * @param activationKey the activation key
+     */
+    public final void putActivated(final String activationKey) {
+        memcacheService.put(ACTIVATED_PREFIX + activationKey, Boolean.TRUE,
+            Expiration.byDeltaSeconds(ACTIVATED_EXPIRATION));
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.security.web.authentication.rememberme.
+    PersistentTokenRepository;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * The enhanced persistent token repository interface.
+ */
+public interface EnhancedPersistentTokenRepository
+    extends PersistentTokenRepository {
+
+    /**
+     * Records the last used date of the token for the given series. The
+     * date is written to the datastore later in a batch.
+     *
+     * @param series the series
+     * @param lastUsed the last used date
+     */
+    void touchToken(final String series, final Date lastUsed);
+
+    /**
+     * Writes the recorded last used dates to the datastore.
+     *
+     * @return the number of persistent logins updated
+     */
+    int flushTouches();
+
+    /**
+     * Removes the persistent logins with the given keys and their cached
+     * tokens.
+     *
+     * @param keys the persistent login keys
+     */
+    void removeTokens(final List<Key> keys);
+
+    /**
+     * Returns the token for the given series together with the user account
+     * for the given username. Both are read from memcache in one call and,
+     * on a miss, from the datastore with one batch get.
+     *
+     * @param series the series
+     * @param username the username or null if not known
+     * @return the login or null if the series is not found
+     */
+    RememberMeLogin getLogin(final String series, final String username);
+
+    /**
+     * Returns the token for the given series together with the user account
+     * for the given username. The given memcache keys are read in the same
+     * call and the values found are added to the given map.
+     *
+     * @param series the series
+     * @param username the username or null if not known
+     * @param extraKeys the additional memcache keys
+     * @param extraValues the map to add the additional values to
+     * @return the login or null if the series is not found
+     */
+    RememberMeLogin getLogin(final String series, final String username,
+        final Collection<String> extraKeys,
+        final Map<String, Object> extraValues);
+
+}
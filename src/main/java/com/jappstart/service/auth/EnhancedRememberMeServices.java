@@ -0,0 +1,355 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.web.authentication.rememberme.
+    CookieTheftException;
+import org.springframework.security.web.authentication.rememberme.
+    InvalidCookieException;
+import org.springframework.security.web.authentication.rememberme.
+    PersistentRememberMeToken;
+import org.springframework.security.web.authentication.rememberme.
+    PersistentTokenBasedRememberMeServices;
+import org.springframework.security.web.authentication.rememberme.
+    PersistentTokenRepository;
+import org.springframework.security.web.authentication.rememberme.
+    RememberMeAuthenticationException;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * The enhanced remember me services. A token is rotated at most once per
+ * rotation interval. Auto-logins within the interval validate the presented
+ * token without rotating it and only record the last used date, which is
+ * written to the datastore in batches. Rotated tokens are still written to
+ * the datastore before the cookie is sent. The token value replaced by a
+ * rotation is still accepted for a short grace window, so parallel requests
+ * sent with the previous cookie are not mistaken for cookie theft. The
+ * cookie also carries the encoded username, so the token and the user
+ * account are fetched together, along with the rotation marker and the
+ * replaced token value, in a single memcache call. The username is only a
+ * hint: the user is always the one the token belongs to, and cookies
+ * without a valid username are still accepted.
+ */
+public class EnhancedRememberMeServices
+    extends PersistentTokenBasedRememberMeServices {
+
+    /**
+     * The default rotation interval in seconds.
+     */
+    private static final int DEFAULT_ROTATION_INTERVAL = 600;
+
+    /**
+     * The default grace window in seconds.
+     */
+    private static final int DEFAULT_GRACE_WINDOW = 5;
+
+    /**
+     * The rotated series key prefix.
+     */
+    private static final String ROTATED_PREFIX = "rotated:";
+
+    /**
+     * The previous token value key prefix.
+     */
+    private static final String PREVIOUS_PREFIX = "previous:";
+
+    /**
+     * The number of cookie tokens.
+     */
+    private static final int TOKEN_COUNT = 3;
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The token repository.
+     */
+    private EnhancedPersistentTokenRepository tokenRepository;
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The rotation interval in seconds.
+     */
+    private int rotationInterval = DEFAULT_ROTATION_INTERVAL;
+
+    /**
+     * The grace window in seconds.
+     */
+    private int graceWindow = DEFAULT_GRACE_WINDOW;
+
+    /**
+     * Creates the enhanced remember me services.
+     *
+     * @throws Exception if the secure random could not be created
+     */
+    public EnhancedRememberMeServices() throws Exception {
+        super();
+    }
+
+    /**
+     * Sets the token repository.
+     *
+     * @param tokenRepository the token repository
+     */
+    @Override
+    public final void setTokenRepository(
+        final PersistentTokenRepository tokenRepository) {
+        super.setTokenRepository(tokenRepository);
+        this.tokenRepository =
+            (EnhancedPersistentTokenRepository) tokenRepository;
+    }
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the rotation interval in seconds.
+     *
+     * @return the rotation interval
+     */
+    public final int getRotationInterval() {
+        return rotationInterval;
+    }
+
+    /**
+     * Sets the rotation interval in seconds.
+     *
+     * @param rotationInterval the rotation interval
+     */
+    public final void setRotationInterval(final int rotationInterval) {
+        this.rotationInterval = rotationInterval;
+    }
+
+    /**
+     * Returns the grace window in seconds.
+     *
+     * @return the grace window in seconds
+     */
+    public final int getGraceWindow() {
+        return graceWindow;
+    }
+
+    /**
+     * Sets the grace window in seconds.
+     *
+     * @param graceWindow the grace window in seconds
+     */
+    public final void setGraceWindow(final int graceWindow) {
+        this.graceWindow = graceWindow;
+    }
+
+    /**
+     * Processes the auto-login cookie, rotating the token only if it was not
+     * rotated within the rotation interval. Only the request which claims
+     * the rotation and presents the current token rotates it; parallel
+     * requests are validated against the current or, within the grace
+     * window, the replaced token value. A token matching neither is
+     * treated as cookie theft. The token, the user account, the rotation
+     * marker and the replaced token value are fetched in one memcache call
+     * using the username carried by the cookie. The rotation is only
+     * claimed, with a further call, when no marker was found.
+     *
+     * @param cookieTokens the cookie tokens
+     * @param request the servlet request
+     * @param response the servlet response
+     * @return the user details
+     */
+    @Override
+    protected final UserDetails processAutoLoginCookie(
+        final String[] cookieTokens, final HttpServletRequest request,
+        final HttpServletResponse response) {
+        if (cookieTokens.length != 2 && cookieTokens.length != TOKEN_COUNT) {
+            throw new InvalidCookieException("Cookie token did not contain 2"
+                + " or " + TOKEN_COUNT + " tokens, but contained '"
+                + cookieTokens.length + "'");
+        }
+
+        final String series = cookieTokens[0];
+        final String tokenValue = cookieTokens[1];
+        String username = null;
+
+        if (cookieTokens.length == TOKEN_COUNT) {
+            try {
+                username = RememberMeCookies.decodeUsername(cookieTokens[2]);
+            } catch (InvalidCookieException e) {
+                logger.debug("Ignoring a cookie username which was not"
+                    + " encoded.");
+            }
+        }
+
+        final String rotatedKey = ROTATED_PREFIX + series;
+        final String previousKey = PREVIOUS_PREFIX + series;
+        final Map<String, Object> markers = new HashMap<String, Object>();
+        final RememberMeLogin login = tokenRepository.getLogin(series,
+            username, Arrays.asList(rotatedKey, previousKey), markers);
+
+        if (login == null) {
+            throw new RememberMeAuthenticationException(
+                "No persistent token found for series id: " + series);
+        }
+
+        final PersistentRememberMeToken token = login.getToken();
+        final boolean current = tokenValue.equals(token.getTokenValue());
+
+        if (!current && !tokenValue.equals(markers.get(previousKey))) {
+            tokenRepository.removeUserTokens(token.getUsername());
+            throw new CookieTheftException(messages.getMessage(
+                "PersistentTokenBasedRememberMeServices.cookieStolen",
+                "Invalid remember-me token (Series/token) mismatch."
+                + " Implies previous cookie theft attack."));
+        }
+
+        if (token.getDate().getTime()
+            + getTokenValiditySeconds() * MILLIS_PER_SECOND
+            < System.currentTimeMillis()) {
+            throw new RememberMeAuthenticationException(
+                "Remember-me login has expired");
+        }
+
+        if (current && !markers.containsKey(rotatedKey)
+            && memcacheService.put(rotatedKey, Boolean.TRUE,
+                Expiration.byDeltaSeconds(rotationInterval),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            boolean rotated = false;
+
+            try {
+                memcacheService.put(previousKey, token.getTokenValue(),
+                    Expiration.byDeltaSeconds(graceWindow));
+                rotateToken(token, request, response);
+                rotated = true;
+            } finally {
+                if (!rotated) {
+                    memcacheService.delete(rotatedKey);
+                }
+            }
+        } else {
+            tokenRepository.touchToken(series, new Date());
+        }
+
+        if (login.getUser() == null || !token.getUsername().equals(
+            login.getUser().getUsername())) {
+            return getUserDetailsService().loadUserByUsername(
+                token.getUsername());
+        }
+
+        return ((EnhancedUserDetailsService) getUserDetailsService())
+            .getUserDetails(login.getUser());
+    }
+
+    /**
+     * Creates a new persistent login for the authenticated user and sets the
+     * cookie, which also carries the encoded username.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param successfulAuthentication the authentication
+     */
+    @Override
+    protected final void onLoginSuccess(final HttpServletRequest request,
+        final HttpServletResponse response,
+        final Authentication successfulAuthentication) {
+        final String username = successfulAuthentication.getName();
+        final PersistentRememberMeToken token = new PersistentRememberMeToken(
+            username, generateSeriesData(), generateTokenData(), new Date());
+
+        try {
+            tokenRepository.createNewToken(token);
+            addCookie(token, request, response);
+        } catch (DataAccessException e) {
+            logger.error("Failed to save persistent token ", e);
+        }
+    }
+
+    /**
+     * Rotates the given token and sets the new cookie.
+     *
+     * @param token the current token
+     * @param request the servlet request
+     * @param response the servlet response
+     */
+    private void rotateToken(final PersistentRememberMeToken token,
+        final HttpServletRequest request,
+        final HttpServletResponse response) {
+        final PersistentRememberMeToken newToken =
+            new PersistentRememberMeToken(token.getUsername(),
+                token.getSeries(), generateTokenData(), new Date());
+
+        try {
+            tokenRepository.updateToken(newToken.getSeries(),
+                newToken.getTokenValue(), newToken.getDate());
+            addCookie(newToken, request, response);
+        } catch (DataAccessException e) {
+            logger.error("Failed to update token: ", e);
+            throw new RememberMeAuthenticationException(
+                "Autologin failed due to data access problem");
+        }
+    }
+
+    /**
+     * Sets the cookie for the given token.
+     *
+     * @param token the token
+     * @param request the servlet request
+     * @param response the servlet response
+     */
+    private void addCookie(final PersistentRememberMeToken token,
+        final HttpServletRequest request,
+        final HttpServletResponse response) {
+        setCookie(new String[] {token.getSeries(), token.getTokenValue(),
+            RememberMeCookies.encodeUsername(token.getUsername())},
+            getTokenValiditySeconds(), request, response);
+    }
+
+}
@@ -20,6 +20,7 @@ package com.jappstart.service.auth;
 
 import java.util.Locale;
 
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 
 import com.jappstart.model.auth.UserAccount;
@@ -45,6 +46,30 @@ public interface EnhancedUserDetailsService extends UserDetailsService {
      */
     UserAccount getUser(final String username);
 
+    /**
+     * Returns the user details for the given user account.
+     *
+     * @param user the user account
+     * @return the user details
+     */
+    UserDetails getUserDetails(final UserAccount user);
+
+    /**
+     * Reloads the cached user account for the given username from the
+     * datastore.
+     *
+     * @param username the username
+     */
+    void refreshUser(final String username);
+
+    /**
+     * Revokes every signed remember-me cookie issued for the given username
+     * by incrementing the user's token version.
+     *
+     * @param username the username
+     */
+    void revokeTokens(final String username);
+
     /**
      * Activates the user with the given activation key.
      *
@@ -0,0 +1,294 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.jappstart.model.auth.PersistentLogin;
+
+/**
+ * Migrates persistent logins stored as children of their persistent user
+ * to root entities keyed by series. Logins are migrated in batches, each
+ * batch run by a task which queues the next batch with the query cursor,
+ * so a failed batch is retried from where it stopped. The migration is
+ * started from the admin page. Logins are scanned keys-only and only the
+ * legacy logins are read. Migrating a login is idempotent, and a login
+ * rotated while it is migrated keeps its rotated token.
+ */
+@Service
+public class PersistentLoginMigrator {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(PersistentLoginMigrator.class);
+
+    /**
+     * The default number of logins per batch.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The maximum attempts to migrate a login.
+     */
+    private static final int MIGRATE_ATTEMPTS = 3;
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The number of logins per batch.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * The migrate task queue name.
+     */
+    private String migrateTaskName;
+
+    /**
+     * The migrate task URL.
+     */
+    private String migrateTaskUrl;
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the number of logins per batch.
+     *
+     * @return the number of logins per batch
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of logins per batch.
+     *
+     * @param batchSize the number of logins per batch
+     */
+    public final void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the migrate task queue name.
+     *
+     * @return the migrate task queue name
+     */
+    public final String getMigrateTaskName() {
+        return migrateTaskName;
+    }
+
+    /**
+     * Sets the migrate task queue name.
+     *
+     * @param migrateTaskName the migrate task queue name
+     */
+    public final void setMigrateTaskName(final String migrateTaskName) {
+        this.migrateTaskName = migrateTaskName;
+    }
+
+    /**
+     * Returns the migrate task URL.
+     *
+     * @return the migrate task URL
+     */
+    public final String getMigrateTaskUrl() {
+        return migrateTaskUrl;
+    }
+
+    /**
+     * Sets the migrate task URL.
+     *
+     * @param migrateTaskUrl the migrate task URL
+     */
+    public final void setMigrateTaskUrl(final String migrateTaskUrl) {
+        this.migrateTaskUrl = migrateTaskUrl;
+    }
+
+    /**
+     * Queues the first batch of the migration.
+     */
+    public final void schedule() {
+        QueueFactory.getQueue(migrateTaskName).add(
+            TaskOptions.Builder.withUrl(migrateTaskUrl));
+    }
+
+    /**
+     * Migrates a batch of logins starting at the given cursor and queues
+     * the next batch if there may be more.
+     *
+     * @param cursor the web-safe query cursor or null to start
+     * @return the number of logins migrated
+     */
+    public final int migrate(final String cursor) {
+        final FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+
+        if (cursor != null) {
+            options.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+
+        final QueryResultList<Entity> entities = datastoreService.prepare(
+            new Query(PersistentLogin.class.getSimpleName()).setKeysOnly())
+            .asQueryResultList(options);
+        int migrated = 0;
+
+        for (final Entity entity : entities) {
+            if (entity.getKey().getParent() == null) {
+                continue;
+            }
+
+            if (migrate(entity.getKey())) {
+                migrated++;
+            }
+        }
+
+        if (entities.size() == batchSize) {
+            QueueFactory.getQueue(migrateTaskName).add(
+                TaskOptions.Builder.withUrl(migrateTaskUrl)
+                .param("cursor", entities.getCursor().toWebSafeString()));
+        } else {
+            LOGGER.info("Persistent login migration completed.");
+        }
+
+        return migrated;
+    }
+
+    /**
+     * Migrates the legacy login with the given key. The legacy login and
+     * the login keyed by series are in different entity groups, so each is
+     * written in its own transaction. The legacy login is read and deleted
+     * in one transaction, so a rotation committed in between fails the
+     * delete and the copy is retried with the rotated token. The copy only
+     * replaces a login keyed by series whose last used date is earlier,
+     * so a rotation which already found the copy is never undone.
+     *
+     * @param legacyKey the legacy login key
+     * @return true if migrated; false otherwise
+     */
+    private boolean migrate(final Key legacyKey) {
+        for (int i = 0; i < MIGRATE_ATTEMPTS; i++) {
+            final Transaction txn = datastoreService.beginTransaction();
+
+            try {
+                final Entity legacy = datastoreService.get(txn, legacyKey);
+
+                if (legacy.getProperty("series") == null) {
+                    return false;
+                }
+
+                copy(legacy);
+                datastoreService.delete(txn, legacyKey);
+                txn.commit();
+
+                return true;
+            } catch (EntityNotFoundException e) {
+                return false;
+            } catch (ConcurrentModificationException e) {
+                continue;
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+
+        LOGGER.warn(String.format("Unable to migrate persistent login %s.",
+            legacyKey));
+
+        return false;
+    }
+
+    /**
+     * Copies the given legacy login to the login keyed by its series, unless
+     * that login was last used at the same time or later.
+     *
+     * @param legacy the legacy login
+     */
+    private void copy(final Entity legacy) {
+        final Key key =
+            PersistentLogin.createKey((String) legacy.getProperty("series"));
+        final Transaction txn = datastoreService.beginTransaction();
+
+        try {
+            Entity login;
+
+            try {
+                login = datastoreService.get(txn, key);
+            } catch (EntityNotFoundException e) {
+                login = null;
+            }
+
+            final Date legacyLastUsed = (Date) legacy.getProperty("lastUsed");
+            final Date lastUsed =
+                login == null ? null : (Date) login.getProperty("lastUsed");
+
+            if (login == null || lastUsed == null || (legacyLastUsed != null
+                && legacyLastUsed.after(lastUsed))) {
+                login = new Entity(key);
+                login.setPropertiesFrom(legacy);
+                datastoreService.put(txn, login);
+            }
+
+            txn.commit();
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.jappstart.model.auth.PersistentLogin;
+
+/**
+ * Deletes expired persistent logins. Logins last used before the cutoff
+ * are found with a keys-only query on the last used date and deleted in
+ * batches, each batch run by a task which queues the next batch with the
+ * query cursor and the same cutoff. The next batch is delayed so the
+ * deletes stay within the rate limit.
+ */
+@Service
+public class PersistentLoginSweeper {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(PersistentLoginSweeper.class);
+
+    /**
+     * The default number of logins per batch.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * The default token validity in seconds.
+     */
+    private static final int DEFAULT_TOKEN_VALIDITY = 1209600;
+
+    /**
+     * The default maximum number of logins deleted per second.
+     */
+    private static final int DEFAULT_RATE_LIMIT = 100;
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The persistent token repository.
+     */
+    private EnhancedPersistentTokenRepository tokenRepository;
+
+    /**
+     * The number of logins per batch.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * The token validity in seconds.
+     */
+    private int tokenValidity = DEFAULT_TOKEN_VALIDITY;
+
+    /**
+     * The maximum number of logins deleted per second.
+     */
+    private int rateLimit = DEFAULT_RATE_LIMIT;
+
+    /**
+     * The sweep task queue name.
+     */
+    private String sweepTaskName;
+
+    /**
+     * The sweep task URL.
+     */
+    private String sweepTaskUrl;
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the persistent token repository.
+     *
+     * @return the persistent token repository
+     */
+    public final EnhancedPersistentTokenRepository getTokenRepository() {
+        return tokenRepository;
+    }
+
+    /**
+     * Sets the persistent token repository.
+     *
+     * @param tokenRepository the persistent token repository
+     */
+    public final void setTokenRepository(
+        final EnhancedPersistentTokenRepository tokenRepository) {
+        this.tokenRepository = tokenRepository;
+    }
+
+    /**
+     * Returns the number of logins per batch.
+     *
+     * @return the number of logins per batch
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of logins per batch.
+     *
+     * @param batchSize the number of logins per batch
+     */
+    public final void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the token validity in seconds.
+     *
+     * @return the token validity in seconds
+     */
+    public final int getTokenValidity() {
+        return tokenValidity;
+    }
+
+    /**
+     * Sets the token validity in seconds.
+     *
+     * @param tokenValidity the token validity in seconds
+     */
+    public final void setTokenValidity(final int tokenValidity) {
+        this.tokenValidity = tokenValidity;
+    }
+
+    /**
+     * Returns the maximum number of logins deleted per second.
+     *
+     * @return the maximum number of logins deleted per second
+     */
+    public final int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the maximum number of logins deleted per second.
+     *
+     * @param rateLimit the maximum number of logins deleted per second
+     */
+    public final void setRateLimit(final int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Returns the sweep task queue name.
+     *
+     * @return the sweep task queue name
+     */
+    public final String getSweepTaskName() {
+        return sweepTaskName;
+    }
+
+    /**
+     * Sets the sweep task queue name.
+     *
+     * @param sweepTaskName the sweep task queue name
+     */
+    public final void setSweepTaskName(final String sweepTaskName) {
+        this.sweepTaskName = sweepTaskName;
+    }
+
+    /**
+     * Returns the sweep task URL.
+     *
+     * @return the sweep task URL
+     */
+    public final String getSweepTaskUrl() {
+        return sweepTaskUrl;
+    }
+
+    /**
+     * Sets the sweep task URL.
+     *
+     * @param sweepTaskUrl the sweep task URL
+     */
+    public final void setSweepTaskUrl(final String sweepTaskUrl) {
+        this.sweepTaskUrl = sweepTaskUrl;
+    }
+
+    /**
+     * Deletes a batch of logins last used before the cutoff, starting at
+     * the given cursor, and queues the next batch if there may be more.
+     *
+     * @param cursor the web-safe query cursor or null to start
+     * @param cutoff the cutoff time in milliseconds or null to expire
+     *        logins older than the token validity
+     * @return the number of logins deleted
+     */
+    public final int sweep(final String cursor, final Long cutoff) {
+        final long start = System.currentTimeMillis();
+        final long before;
+
+        if (cutoff == null) {
+            before = start - tokenValidity * MILLIS_PER_SECOND;
+        } else {
+            before = cutoff;
+        }
+
+        final FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+
+        if (cursor != null) {
+            options.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+
+        final Query query = new Query(PersistentLogin.class.getSimpleName())
+            .addFilter("lastUsed", FilterOperator.LESS_THAN, new Date(before))
+            .setKeysOnly();
+        final QueryResultList<Entity> entities =
+            datastoreService.prepare(query).asQueryResultList(options);
+        final List<Key> keys = new ArrayList<Key>();
+
+        for (final Entity entity : entities) {
+            keys.add(entity.getKey());
+        }
+
+        tokenRepository.removeTokens(keys);
+
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        LOGGER.info(String.format(
+            "Swept %d expired persistent logins in %d ms (%.1f/s).",
+            keys.size(), elapsed,
+            keys.size() * (double) MILLIS_PER_SECOND / elapsed));
+
+        if (entities.size() == batchSize) {
+            final long budget = batchSize * MILLIS_PER_SECOND / rateLimit;
+
+            QueueFactory.getQueue(sweepTaskName).add(
+                TaskOptions.Builder.withUrl(sweepTaskUrl)
+                .param("cursor", entities.getCursor().toWebSafeString())
+                .param("cutoff", String.valueOf(before))
+                .countdownMillis(Math.max(0, budget - elapsed)));
+        } else {
+            LOGGER.info("Persistent login sweep completed.");
+        }
+
+        return keys.size();
+    }
+
+}
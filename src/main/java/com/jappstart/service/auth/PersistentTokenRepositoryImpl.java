@@ -18,8 +18,19 @@
  */
 package com.jappstart.service.auth;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -28,29 +39,145 @@ import javax.persistence.Query;
 
 import org.springframework.security.web.authentication.rememberme.
     PersistentRememberMeToken;
-import org.springframework.security.web.authentication.rememberme.
-    PersistentTokenRepository;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.
+    TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.
+    TransactionSynchronizationManager;
 
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.jappstart.model.auth.PersistentLogin;
-import com.jappstart.model.auth.PersistentUser;
 import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.CacheMetrics;
+import com.jappstart.service.cache.PendingWrites;
+import com.jappstart.service.cache.SingleFlight;
 
 /**
- * The persistent token repository implementation.
+ * The persistent token repository implementation. Persistent logins are
+ * read with a get by series key. Logins stored before they were keyed by
+ * series are found with a query on the series until they are migrated by
+ * {@link PersistentLoginMigrator}. Last used dates recorded by
+ * {@link #touchToken(String, Date)} are kept in numbered memcache slots and
+ * written to the datastore by a task, coalescing repeated touches. Touches
+ * are recorded asynchronously and completed with the request's pending
+ * writes. Tokens
+ * are cached in memcache by series, read-through on lookups and
+ * write-through once a token change has been committed. Unknown series are
+ * remembered for a short time, and concurrent misses for the same series
+ * share a single load.
  */
 @Service
 public class PersistentTokenRepositoryImpl
-    implements PersistentTokenRepository {
+    implements EnhancedPersistentTokenRepository {
+
+    /**
+     * The datastore get metric name.
+     */
+    private static final String DATASTORE_GET = "token.datastore.get";
+
+    /**
+     * The datastore put metric name.
+     */
+    private static final String DATASTORE_PUT = "token.datastore.put";
+
+    /**
+     * The datastore delete metric name.
+     */
+    private static final String DATASTORE_DELETE = "token.datastore.delete";
+
+    /**
+     * The memcache get metric name.
+     */
+    private static final String MEMCACHE_GET = "token.memcache.get";
+
+    /**
+     * The memcache put metric name.
+     */
+    private static final String MEMCACHE_PUT = "token.memcache.put";
+
+    /**
+     * The memcache delete metric name.
+     */
+    private static final String MEMCACHE_DELETE = "token.memcache.delete";
+
+    /**
+     * The default token cache expiration in seconds, matching the default
+     * remember me cookie lifetime.
+     */
+    private static final int DEFAULT_TOKEN_EXPIRATION = 1209600;
+
+    /**
+     * The token key prefix.
+     */
+    private static final String TOKEN_PREFIX = "token:";
+
+    /**
+     * The unknown series key prefix.
+     */
+    private static final String MISSING_PREFIX = "token:missing:";
+
+    /**
+     * The default unknown series entry expiration in seconds.
+     */
+    private static final int DEFAULT_MISSING_EXPIRATION = 30;
+
+    /**
+     * The default delay in seconds before recorded last used dates are
+     * written.
+     */
+    private static final int DEFAULT_TOUCH_DELAY = 60;
+
+    /**
+     * The touch slot expiration in seconds.
+     */
+    private static final int TOUCH_EXPIRATION = 86400;
+
+    /**
+     * The number of touch slots read per memcache call.
+     */
+    private static final int TOUCH_BATCH_SIZE = 500;
+
+    /**
+     * The number of login keys fetched per batch when removing tokens.
+     */
+    private static final int DELETE_BATCH_SIZE = 500;
+
+    /**
+     * The touch slot key prefix.
+     */
+    private static final String TOUCH_PREFIX = "touch:";
+
+    /**
+     * The last touch slot key.
+     */
+    private static final String TOUCH_INDEX_KEY = "touch:index";
+
+    /**
+     * The last written touch slot key.
+     */
+    private static final String TOUCH_FLUSHED_KEY = "touch:flushed";
+
+    /**
+     * The touch flush lock key.
+     */
+    private static final String TOUCH_LOCK_KEY = "touch:lock";
 
     /**
-     * The default cache expiration in seconds.
+     * The milliseconds per second.
      */
-    private static final int DEFAULT_EXPIRATION = 3600;
+    private static final long MILLIS_PER_SECOND = 1000L;
 
     /**
      * The entity manager.
@@ -58,11 +185,132 @@ public class PersistentTokenRepositoryImpl
     @PersistenceContext
     private transient EntityManager entityManager;
 
+    /**
+     * The cache metrics.
+     */
+    private CacheMetrics metrics;
+
+    /**
+     * Indicates if logins not yet keyed by series are looked up.
+     */
+    private boolean legacyLookup = true;
+
     /**
      * The memcache service.
      */
     private MemcacheService memcacheService;
 
+    /**
+     * The asynchronous memcache service.
+     */
+    private AsyncMemcacheService asyncMemcacheService;
+
+    /**
+     * The token cache expiration in seconds.
+     */
+    private int tokenExpiration = DEFAULT_TOKEN_EXPIRATION;
+
+    /**
+     * The unknown series entry expiration in seconds.
+     */
+    private int missingExpiration = DEFAULT_MISSING_EXPIRATION;
+
+    /**
+     * The logins being loaded.
+     */
+    private final SingleFlight<String, RememberMeLogin> loads =
+        new SingleFlight<String, RememberMeLogin>();
+
+    /**
+     * The token cache hit count.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The token cache miss count.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The delay in seconds before recorded last used dates are written.
+     */
+    private int touchDelay = DEFAULT_TOUCH_DELAY;
+
+    /**
+     * The user cache.
+     */
+    private UserCache userCache;
+
+    /**
+     * The touch task queue name.
+     */
+    private String touchTaskName;
+
+    /**
+     * The touch task URL.
+     */
+    private String touchTaskUrl;
+
+    /**
+     * Returns the user cache.
+     *
+     * @return the user cache
+     */
+    public final UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Sets the user cache.
+     *
+     * @param userCache the user cache
+     */
+    public final void setUserCache(final UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Returns the cache metrics.
+     *
+     * @return the cache metrics
+     */
+    public final CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the cache metrics.
+     *
+     * @param metrics the cache metrics
+     */
+    public final void setMetrics(final CacheMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Indicates if logins not yet keyed by series are looked up.
+     *
+     * @return true if looked up; false otherwise
+     */
+    public final boolean isLegacyLookup() {
+        return legacyLookup;
+    }
+
+    /**
+     * Sets if logins not yet keyed by series are looked up. Disable once
+     * the migration has completed.
+     *
+     * @param legacyLookup true if looked up; false otherwise
+     */
+    public final void setLegacyLookup(final boolean legacyLookup) {
+        this.legacyLookup = legacyLookup;
+    }
+
     /**
      * Returns the memcache service.
      *
@@ -83,35 +331,186 @@ public class PersistentTokenRepositoryImpl
     }
 
     /**
-     * Creates a new remember me token.
+     * Returns the asynchronous memcache service.
+     *
+     * @return the asynchronous memcache service
+     */
+    public final AsyncMemcacheService getAsyncMemcacheService() {
+        return asyncMemcacheService;
+    }
+
+    /**
+     * Sets the asynchronous memcache service.
+     *
+     * @param asyncMemcacheService the asynchronous memcache service
+     */
+    public final void setAsyncMemcacheService(
+        final AsyncMemcacheService asyncMemcacheService) {
+        this.asyncMemcacheService = asyncMemcacheService;
+    }
+
+    /**
+     * Returns the token cache expiration in seconds.
+     *
+     * @return the token cache expiration in seconds
+     */
+    public final int getTokenExpiration() {
+        return tokenExpiration;
+    }
+
+    /**
+     * Sets the token cache expiration in seconds.
+     *
+     * @param tokenExpiration the token cache expiration in seconds
+     */
+    public final void setTokenExpiration(final int tokenExpiration) {
+        this.tokenExpiration = tokenExpiration;
+    }
+
+    /**
+     * Returns the unknown series entry expiration in seconds.
+     *
+     * @return the unknown series entry expiration in seconds
+     */
+    public final int getMissingExpiration() {
+        return missingExpiration;
+    }
+
+    /**
+     * Sets the unknown series entry expiration in seconds.
+     *
+     * @param missingExpiration the unknown series entry expiration in
+     *        seconds
+     */
+    public final void setMissingExpiration(final int missingExpiration) {
+        this.missingExpiration = missingExpiration;
+    }
+
+    /**
+     * Returns the token cache hit count.
+     *
+     * @return the hit count
+     */
+    public final long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the token cache miss count.
+     *
+     * @return the miss count
+     */
+    public final long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the ratio of token cache hits to lookups.
+     *
+     * @return the hit ratio or 0 if there were no lookups
+     */
+    public final double getHitRatio() {
+        final long hitCount = hits.get();
+        final long lookups = hitCount + misses.get();
+
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the delay in seconds before recorded last used dates are written.
+     *
+     * @return the delay in seconds before recorded last used dates are written
+     */
+    public final int getTouchDelay() {
+        return touchDelay;
+    }
+
+    /**
+     * Sets the delay in seconds before recorded last used dates are written.
+     *
+     * @param touchDelay the delay in seconds
+     */
+    public final void setTouchDelay(final int touchDelay) {
+        this.touchDelay = touchDelay;
+    }
+
+    /**
+     * Returns the touch task queue name.
+     *
+     * @return the touch task queue name
+     */
+    public final String getTouchTaskName() {
+        return touchTaskName;
+    }
+
+    /**
+     * Sets the touch task queue name.
+     *
+     * @param touchTaskName the touch task queue name
+     */
+    public final void setTouchTaskName(final String touchTaskName) {
+        this.touchTaskName = touchTaskName;
+    }
+
+    /**
+     * Returns the touch task URL.
+     *
+     * @return the touch task URL
+     */
+    public final String getTouchTaskUrl() {
+        return touchTaskUrl;
+    }
+
+    /**
+     * Sets the touch task URL.
+     *
+     * @param touchTaskUrl the touch task URL
+     */
+    public final void setTouchTaskUrl(final String touchTaskUrl) {
+        this.touchTaskUrl = touchTaskUrl;
+    }
+
+    /**
+     * Creates a new remember me token. Only the new persistent login is
+     * written, with a single datastore put. The series is new, so no
+     * transaction is needed, and the user account is left untouched.
      *
      * @param token the remember me token
      */
     @Override
-    @Transactional
     public final void createNewToken(final PersistentRememberMeToken token) {
-        final Query query = entityManager.createQuery(
-            "SELECT u FROM UserAccount u WHERE username = :username");
-        query.setParameter("username", token.getUsername());
-        final UserAccount user = (UserAccount) query.getSingleResult();
+        final long start = metrics.start();
+        final Entity entity =
+            new Entity(PersistentLogin.createKey(token.getSeries()));
 
-        if (user.getPersistentUser() == null) {
-            user.setPersistentUser(
-                new PersistentUser(user.getKey(), token.getUsername()));
-        }
+        entity.setProperty("username", token.getUsername());
+        entity.setProperty("series", token.getSeries());
+        entity.setProperty("token", token.getTokenValue());
+        entity.setProperty("lastUsed", token.getDate());
 
-        if (user.getPersistentUser().getPersistentLogins() == null) {
-            user.getPersistentUser().setPersistentLogins(
-                new ArrayList<PersistentLogin>());
-        }
+        datastoreService.put(entity);
+        metrics.record(DATASTORE_PUT, start);
 
-        user.getPersistentUser().getPersistentLogins().add(
-            createPersistentLogin(user.getPersistentUser().getKey(), token));
-
-        entityManager.persist(user);
-
-        memcacheService.put(user.getUsername(), user,
-            Expiration.byDeltaSeconds(DEFAULT_EXPIRATION));
+        cacheAfterCommit(token);
     }
 
     /**
@@ -123,84 +522,673 @@ public class PersistentTokenRepositoryImpl
     @Override
     public final PersistentRememberMeToken getTokenForSeries(
         final String series) {
-        PersistentLogin persistentLogin = null;
-        final Query query = entityManager.createQuery(
-            "SELECT p FROM PersistentLogin p WHERE series = :series");
-        query.setParameter("series", series);
+        final RememberMeLogin login = getLogin(series, null);
 
-        try {
-            persistentLogin = (PersistentLogin) query.getSingleResult();
-        } catch (NoResultException e) {
+        return login == null ? null : login.getToken();
+    }
+
+    /**
+     * Returns the token for the given series together with the user account
+     * for the given username. With a username, the token is read in the same
+     * memcache call as the user account. Without one, as for cookies issued
+     * before the username was added, only the token is read and the user
+     * account is left to the user details service. Unknown series are
+     * answered from short-lived negative entries read in the same memcache
+     * call. Misses are loaded once per series by {@link #loadLogin}, which
+     * reads whatever is missing with a single batch get.
+     *
+     * @param series the series
+     * @param username the username or null if not known
+     * @return the login or null if the series is not found
+     */
+    @Override
+    public final RememberMeLogin getLogin(final String series,
+        final String username) {
+        return getLogin(series, username, Collections.<String>emptyList(),
+            null);
+    }
+
+    /**
+     * Returns the token for the given series together with the user account
+     * for the given username, reading the given memcache keys in the same
+     * call and adding the values found to the given map.
+     *
+     * @param series the series
+     * @param username the username or null if not known
+     * @param extraKeys the additional memcache keys
+     * @param extraValues the map to add the additional values to
+     * @return the login or null if the series is not found
+     */
+    @Override
+    public final RememberMeLogin getLogin(final String series,
+        final String username, final Collection<String> extraKeys,
+        final Map<String, Object> extraValues) {
+        final String tokenKey = TOKEN_PREFIX + series;
+        final String missingKey = MISSING_PREFIX + series;
+        final List<String> keys = new ArrayList<String>(extraKeys);
+        final Map<String, Object> values = new HashMap<String, Object>();
+        UserAccount user = null;
+        final long start = metrics.start();
+
+        keys.add(tokenKey);
+        keys.add(missingKey);
+
+        if (username == null) {
+            values.putAll(memcacheService.getAll(keys));
+        } else {
+            user = userCache.get(username, keys, values);
+        }
+
+        for (final String key : extraKeys) {
+            if (values.containsKey(key)) {
+                extraValues.put(key, values.get(key));
+            }
+        }
+
+        final CachedToken cached = (CachedToken) values.get(tokenKey);
+        final boolean missing = values.containsKey(missingKey);
+
+        metrics.record(MEMCACHE_GET, cached != null || missing, start);
+
+        if (cached != null) {
+            hits.incrementAndGet();
+            return new RememberMeLogin(cached.toToken(), user);
+        }
+
+        misses.incrementAndGet();
+
+        if (missing) {
             return null;
         }
 
-        return new PersistentRememberMeToken(
+        final UserAccount cachedUser = user;
+        final RememberMeLogin login = loads.execute(series,
+            new Callable<RememberMeLogin>() {
+                @Override
+                public RememberMeLogin call() {
+                    return loadLogin(series, cachedUser == null
+                        ? username : null);
+                }
+            });
+
+        if (login == null || cachedUser == null) {
+            return login;
+        }
+
+        return new RememberMeLogin(login.getToken(), cachedUser);
+    }
+
+    /**
+     * Loads the token for the given series and, if a username is given and
+     * not known to be missing, the user account with a single batch get.
+     * An unknown series is recorded with a negative entry.
+     *
+     * @param series the series
+     * @param username the username of the user account to load or null
+     * @return the login or null if the series is not found
+     */
+    private RememberMeLogin loadLogin(final String series,
+        final String username) {
+        final Key loginKey = PersistentLogin.createKey(series);
+        final List<Key> keys = new ArrayList<Key>();
+
+        keys.add(loginKey);
+
+        if (username != null && !userCache.isMissing(username)) {
+            keys.add(UserAccount.createKey(username));
+        }
+
+        final long start = metrics.start();
+        final Map<Key, Entity> entities = datastoreService.get(keys);
+        final Entity login = entities.get(loginKey);
+        PersistentRememberMeToken token = null;
+
+        metrics.record(DATASTORE_GET, login != null, start);
+
+        if (login != null) {
+            token = cacheToken(new PersistentRememberMeToken(
+                (String) login.getProperty("username"), series,
+                (String) login.getProperty("token"),
+                (Date) login.getProperty("lastUsed")));
+        } else if (legacyLookup) {
+            token = cacheLogin(findLegacyLogin(series));
+        }
+
+        if (token == null) {
+            final long putStart = metrics.start();
+            memcacheService.put(MISSING_PREFIX + series, Boolean.TRUE,
+                Expiration.byDeltaSeconds(missingExpiration));
+            metrics.record(MEMCACHE_PUT, putStart);
+            return null;
+        }
+
+        UserAccount user = null;
+
+        if (username != null) {
+            final Entity entity =
+                entities.get(UserAccount.createKey(username));
+
+            if (entity != null) {
+                user = UserAccountMapper.toUserAccount(entity);
+                userCache.fill(user);
+            }
+        }
+
+        return new RememberMeLogin(token, user);
+    }
+
+    /**
+     * Caches the token of the given persistent login.
+     *
+     * @param persistentLogin the persistent login or null
+     * @return the token or null if the persistent login is null
+     */
+    private PersistentRememberMeToken cacheLogin(
+        final PersistentLogin persistentLogin) {
+        if (persistentLogin == null) {
+            return null;
+        }
+
+        return cacheToken(new PersistentRememberMeToken(
             persistentLogin.getUsername(),
             persistentLogin.getSeries(),
             persistentLogin.getToken(),
-            persistentLogin.getLastUsed());
+            persistentLogin.getLastUsed()));
+    }
+
+    /**
+     * Caches the given token unless a newer one is already cached.
+     *
+     * @param token the token
+     * @return the token
+     */
+    private PersistentRememberMeToken cacheToken(
+        final PersistentRememberMeToken token) {
+        final long start = metrics.start();
+
+        memcacheService.put(TOKEN_PREFIX + token.getSeries(),
+            new CachedToken(token),
+            Expiration.byDeltaSeconds(tokenExpiration),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        metrics.record(MEMCACHE_PUT, start);
+
+        return token;
     }
 
     /**
-     * Removes the tokens for the given username.
+     * Removes the tokens for the given username. The logins are found with
+     * a keys-only query and removed with a single batch delete. Each login
+     * is its own entity group, so they are removed outside of a transaction.
      *
      * @param username the username
      */
     @Override
-    @Transactional
     public final void removeUserTokens(final String username) {
-        final Query query = entityManager.createQuery(
-            "SELECT p FROM PersistentUser p WHERE username = :username");
-        query.setParameter("username", username);
+        final com.google.appengine.api.datastore.Query query =
+            new com.google.appengine.api.datastore.Query(
+                PersistentLogin.class.getSimpleName())
+            .addFilter("username", FilterOperator.EQUAL, username)
+            .setKeysOnly();
+        final List<Key> keys = new ArrayList<Key>();
 
-        if (query.getResultList().size() > 0) {
-            final PersistentUser persistentUser =
-                (PersistentUser) query.getSingleResult();
-            entityManager.remove(persistentUser);
+        final FetchOptions options =
+            FetchOptions.Builder.withChunkSize(DELETE_BATCH_SIZE);
+
+        for (final Entity entity
+            : datastoreService.prepare(query).asIterable(options)) {
+            keys.add(entity.getKey());
         }
+
+        removeTokens(keys);
+    }
+
+    /**
+     * Removes the persistent logins with the given keys with a single batch
+     * delete and evicts their cached tokens. The series of legacy logins is
+     * read with a batch get since it is not their key name.
+     *
+     * @param keys the persistent login keys
+     */
+    @Override
+    public final void removeTokens(final List<Key> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        final long start = metrics.start();
+        final List<Key> legacyKeys = new ArrayList<Key>();
+        final List<String> tokenKeys = new ArrayList<String>();
+
+        for (final Key key : keys) {
+            if (key.getParent() == null) {
+                tokenKeys.add(TOKEN_PREFIX + key.getName());
+            } else {
+                legacyKeys.add(key);
+            }
+        }
+
+        if (!legacyKeys.isEmpty()) {
+            for (final Entity entity
+                : datastoreService.get(legacyKeys).values()) {
+                tokenKeys.add(TOKEN_PREFIX + entity.getProperty("series"));
+            }
+        }
+
+        datastoreService.delete(keys);
+        metrics.record(DATASTORE_DELETE, start);
+
+        final long deleteStart = metrics.start();
+        memcacheService.deleteAll(tokenKeys);
+        metrics.record(MEMCACHE_DELETE, deleteStart);
     }
 
     /**
      * Updates the token given the series, token value, and last used date.
+     * The login keyed by series and a login not yet keyed by series are in
+     * different entity groups, so each is updated in its own transaction
+     * and the legacy login is only found, with a keys-only query, when no
+     * login is keyed by the series.
      *
      * @param series the series
      * @param tokenValue the token value
      * @param lastUsed the last used date
      */
     @Override
-    @Transactional
     public final void updateToken(final String series, final String tokenValue,
         final Date lastUsed) {
+        final long start = metrics.start();
+        Entity entity = updateLogin(PersistentLogin.createKey(series),
+            tokenValue, lastUsed);
+
+        if (entity == null && legacyLookup) {
+            final Key legacyKey = findLegacyKey(series);
+
+            if (legacyKey != null) {
+                entity = updateLogin(legacyKey, tokenValue, lastUsed);
+            }
+        }
+
+        if (entity == null) {
+            throw new NoResultException("Series not found.");
+        }
+
+        metrics.record(DATASTORE_PUT, start);
+
+        cacheAfterCommit(new PersistentRememberMeToken(
+            (String) entity.getProperty("username"), series, tokenValue,
+            lastUsed));
+    }
+
+    /**
+     * Sets the token value and last used date of the persistent login with
+     * the given key in a transaction on that login only.
+     *
+     * @param key the persistent login key
+     * @param tokenValue the token value
+     * @param lastUsed the last used date
+     * @return the updated entity or null if not found
+     */
+    private Entity updateLogin(final Key key, final String tokenValue,
+        final Date lastUsed) {
+        final Transaction txn = datastoreService.beginTransaction();
+
+        try {
+            final Entity entity = datastoreService.get(txn, key);
+
+            entity.setProperty("token", tokenValue);
+            entity.setProperty("lastUsed", lastUsed);
+            datastoreService.put(txn, entity);
+            txn.commit();
+
+            return entity;
+        } catch (EntityNotFoundException e) {
+            return null;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /**
+     * Caches the given token once the current transaction commits, so a
+     * token is never cached before it is durable. The previous cached value
+     * is removed right away.
+     *
+     * @param token the remember me token
+     */
+    private void cacheAfterCommit(final PersistentRememberMeToken token) {
+        final String key = TOKEN_PREFIX + token.getSeries();
+        final long start = metrics.start();
+
+        memcacheService.deleteAll(
+            Arrays.asList(key, MISSING_PREFIX + token.getSeries()));
+        metrics.record(MEMCACHE_DELETE, start);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        putToken(key, token);
+                    }
+                });
+        } else {
+            putToken(key, token);
+        }
+    }
+
+    /**
+     * Writes the given token to memcache.
+     *
+     * @param key the memcache key
+     * @param token the remember me token
+     */
+    private void putToken(final String key,
+        final PersistentRememberMeToken token) {
+        final long start = metrics.start();
+
+        memcacheService.put(key, new CachedToken(token),
+            Expiration.byDeltaSeconds(tokenExpiration));
+        metrics.record(MEMCACHE_PUT, start);
+    }
+
+    /**
+     * Records the last used date of the token for the given series and
+     * schedules the task which writes it, unless one is already scheduled.
+     * The memcache calls are issued asynchronously and completed with the
+     * request's pending writes, so the caller never waits for them.
+     *
+     * @param series the series
+     * @param lastUsed the last used date
+     */
+    @Override
+    public final void touchToken(final String series, final Date lastUsed) {
+        final Future<Long> index =
+            asyncMemcacheService.increment(TOUCH_INDEX_KEY, 1L, 0L);
+
+        PendingWrites.add(index, new Runnable() {
+            @Override
+            public void run() {
+                recordTouch(PendingWrites.result(index), series, lastUsed);
+            }
+        });
+    }
+
+    /**
+     * Writes the touch slot with the given index and schedules the task
+     * which writes the recorded dates, unless one is already scheduled.
+     *
+     * @param index the touch slot index or null if unavailable
+     * @param series the series
+     * @param lastUsed the last used date
+     */
+    private void recordTouch(final Long index, final String series,
+        final Date lastUsed) {
+        if (index == null) {
+            return;
+        }
+
+        PendingWrites.add(asyncMemcacheService.put(TOUCH_PREFIX + index,
+            new Touch(series, lastUsed.getTime()),
+            Expiration.byDeltaSeconds(TOUCH_EXPIRATION)));
+
+        final Future<Boolean> locked = asyncMemcacheService.put(
+            TOUCH_LOCK_KEY, Boolean.TRUE,
+            Expiration.byDeltaSeconds(touchDelay),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+        PendingWrites.add(locked, new Runnable() {
+            @Override
+            public void run() {
+                if (Boolean.TRUE.equals(PendingWrites.result(locked))) {
+                    QueueFactory.getQueue(touchTaskName).add(
+                        TaskOptions.Builder.withUrl(touchTaskUrl)
+                        .countdownMillis(touchDelay * MILLIS_PER_SECOND));
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the recorded last used dates to the datastore. Touches of the
+     * same series are coalesced into one write of the latest date. The
+     * touched logins are read with one batch get per batch of touches, and
+     * each login whose stored date is earlier is then updated in its own
+     * transaction.
+     *
+     * @return the number of persistent logins updated
+     */
+    @Override
+    public final int flushTouches() {
+        final Long last = (Long) memcacheService.get(TOUCH_INDEX_KEY);
+
+        if (last == null) {
+            return 0;
+        }
+
+        final Long flushed = (Long) memcacheService.get(TOUCH_FLUSHED_KEY);
+        final long first =
+            flushed == null || flushed > last ? 1L : flushed + 1L;
+        final Map<String, Long> touches = new HashMap<String, Long>();
+
+        for (long from = first; from <= last; from += TOUCH_BATCH_SIZE) {
+            final List<String> keys = new ArrayList<String>();
+
+            for (long i = from; i <= last && i < from + TOUCH_BATCH_SIZE;
+                i++) {
+                keys.add(TOUCH_PREFIX + i);
+            }
+
+            for (final Object value : memcacheService.getAll(keys).values()) {
+                final Touch touch = (Touch) value;
+                final Long time = touches.get(touch.series);
+
+                if (time == null || time < touch.time) {
+                    touches.put(touch.series, touch.time);
+                }
+            }
+
+            memcacheService.deleteAll(keys);
+        }
+
+        memcacheService.put(TOUCH_FLUSHED_KEY, last);
+
+        final List<Key> keys = new ArrayList<Key>();
+
+        for (final String series : touches.keySet()) {
+            keys.add(PersistentLogin.createKey(series));
+        }
+
+        int updated = 0;
+
+        for (int from = 0; from < keys.size(); from += TOUCH_BATCH_SIZE) {
+            for (final Entity entity : datastoreService.get(keys.subList(from,
+                Math.min(from + TOUCH_BATCH_SIZE, keys.size()))).values()) {
+                final Date lastUsed =
+                    new Date(touches.get(entity.getKey().getName()));
+
+                if (isBefore(entity, lastUsed)
+                    && updateLastUsed(entity.getKey(), lastUsed)) {
+                    updated++;
+                }
+            }
+        }
+
+        return updated;
+    }
+
+    /**
+     * Sets the last used date of the persistent login with the given key in
+     * its own transaction. The login is read again inside the transaction
+     * and only its last used date is changed, so a token rotated since the
+     * batch read is never overwritten. A login changed concurrently is
+     * skipped; its next touch records the date again.
+     *
+     * @param key the persistent login key
+     * @param lastUsed the last used date
+     * @return true if updated; false otherwise
+     */
+    private boolean updateLastUsed(final Key key, final Date lastUsed) {
+        final Transaction txn = datastoreService.beginTransaction();
+
+        try {
+            final Entity entity = datastoreService.get(txn, key);
+
+            if (!isBefore(entity, lastUsed)) {
+                return false;
+            }
+
+            entity.setProperty("lastUsed", lastUsed);
+            datastoreService.put(txn, entity);
+            txn.commit();
+
+            return true;
+        } catch (EntityNotFoundException e) {
+            return false;
+        } catch (ConcurrentModificationException e) {
+            return false;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /**
+     * Indicates if the stored last used date of the given persistent login
+     * is before the given date.
+     *
+     * @param entity the persistent login entity
+     * @param lastUsed the last used date
+     * @return true if before; false otherwise
+     */
+    private static boolean isBefore(final Entity entity, final Date lastUsed) {
+        final Date current = (Date) entity.getProperty("lastUsed");
+
+        return current == null || lastUsed.after(current);
+    }
+
+    /**
+     * Finds the key of a persistent login not yet keyed by series with a
+     * keys-only query on the series.
+     *
+     * @param series the series
+     * @return the persistent login key or null if not found
+     */
+    private Key findLegacyKey(final String series) {
+        final com.google.appengine.api.datastore.Query query =
+            new com.google.appengine.api.datastore.Query(
+                PersistentLogin.class.getSimpleName())
+            .addFilter("series", FilterOperator.EQUAL, series)
+            .setKeysOnly();
+
+        for (final Entity entity : datastoreService.prepare(query)
+            .asIterable(FetchOptions.Builder.withLimit(2))) {
+            if (entity.getKey().getParent() != null) {
+                return entity.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds a persistent login not yet keyed by series with a query on the
+     * series.
+     *
+     * @param series the series
+     * @return the persistent login or null if not found
+     */
+    private PersistentLogin findLegacyLogin(final String series) {
         final Query query = entityManager.createQuery(
             "SELECT p FROM PersistentLogin p WHERE series = :series");
         query.setParameter("series", series);
 
-        final PersistentLogin persistentLogin =
-             (PersistentLogin) query.getSingleResult();
+        try {
+            return (PersistentLogin) query.getSingleResult();
+        } catch (NoResultException e) {
+            return null;
+        }
+    }
 
-        persistentLogin.setToken(tokenValue);
-        persistentLogin.setLastUsed(lastUsed);
+    /**
+     * A recorded last used date.
+     */
+    @SuppressWarnings("serial")
+    private static final class Touch implements Serializable {
+
+        /**
+         * The series.
+         */
+        private final String series;
+
+        /**
+         * The last used time in milliseconds.
+         */
+        private final long time;
+
+        /**
+         * Creates a recorded last used date.
+         *
+         * @param series the series
+         * @param time the last used time in milliseconds
+         */
+        private Touch(final String series, final long time) {
+            this.series = series;
+            this.time = time;
+        }
 
-        entityManager.persist(persistentLogin);
     }
 
     /**
-     * Creates a persistent login given a remember me token.
-     *
-     * @param key the parent key
-     * @param token the remember me token
-     * @return the persistent login
+     * A cached remember me token.
      */
-    private PersistentLogin createPersistentLogin(
-        final Key key, final PersistentRememberMeToken token) {
-        final PersistentLogin persistentLogin =
-            new PersistentLogin(key, token.getUsername());
+    @SuppressWarnings("serial")
+    private static final class CachedToken implements Serializable {
+
+        /**
+         * The username.
+         */
+        private final String username;
 
-        persistentLogin.setSeries(token.getSeries());
-        persistentLogin.setToken(token.getTokenValue());
-        persistentLogin.setLastUsed(token.getDate());
+        /**
+         * The series.
+         */
+        private final String series;
+
+        /**
+         * The token value.
+         */
+        private final String tokenValue;
+
+        /**
+         * The date in milliseconds.
+         */
+        private final long date;
+
+        /**
+         * Creates a cached token.
+         *
+         * @param token the remember me token
+         */
+        private CachedToken(final PersistentRememberMeToken token) {
+            this.username = token.getUsername();
+            this.series = token.getSeries();
+            this.tokenValue = token.getTokenValue();
+            this.date = token.getDate().getTime();
+        }
+
+        /**
+         * Returns the remember me token.
+         *
+         * @return the remember me token
+         */
+        private PersistentRememberMeToken toToken() {
+            return new PersistentRememberMeToken(username, series, tokenValue,
+                new Date(date));
+        }
 
-        return persistentLogin;
     }
 
 }
@@ -0,0 +1,839 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Persists registrations behind the request. Accepted registrations are
+ * added to a pull queue, which makes them durable, and a task persists them
+ * in batches: the user accounts and activation keys are written with one
+ * batch put and the activation e-mails are queued with one batch add. The
+ * username stays reserved until the registration is persisted: the
+ * reservation must outlast the wait in the pending queue, it is held again
+ * for a batch when the batch is leased and it is released once the user
+ * account is written. A batch is idempotent, so a batch that fails is
+ * leased again and retried. Queued registrations use their own versioned
+ * payload format; a registration which cannot be decoded is logged and
+ * moved to a dead registration queue, or left in the queue if there is
+ * none, instead of being dropped.
+ */
+@Service
+public class RegistrationQueue {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(RegistrationQueue.class);
+
+    /**
+     * The default number of registrations per batch.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The default lease time of a batch in seconds.
+     */
+    private static final int DEFAULT_LEASE_SECONDS = 60;
+
+    /**
+     * The default username reservation expiration in seconds. It is well
+     * above the interval of the persist cron, which only runs when the
+     * persist tasks lag.
+     */
+    private static final int DEFAULT_RESERVATION_EXPIRATION = 3600;
+
+    /**
+     * The default delay in seconds before registrations are persisted.
+     */
+    private static final int DEFAULT_PERSIST_DELAY = 1;
+
+    /**
+     * The persist task lock key.
+     */
+    private static final String PERSIST_LOCK_KEY = "register:lock";
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The version 1 payload format.
+     */
+    private static final byte PAYLOAD_VERSION_1 = 1;
+
+    /**
+     * The current payload format version.
+     */
+    private static final byte PAYLOAD_VERSION = PAYLOAD_VERSION_1;
+
+    /**
+     * The first byte of payloads queued before the payload was versioned,
+     * which held the locale and the cached user account encoding.
+     */
+    private static final byte LEGACY_PAYLOAD = 0;
+
+    /**
+     * The enabled bit.
+     */
+    private static final int ENABLED = 0x01;
+
+    /**
+     * The account non-expired bit.
+     */
+    private static final int ACCOUNT_NON_EXPIRED = 0x02;
+
+    /**
+     * The account non-locked bit.
+     */
+    private static final int ACCOUNT_NON_LOCKED = 0x04;
+
+    /**
+     * The credentials non-expired bit.
+     */
+    private static final int CREDENTIALS_NON_EXPIRED = 0x08;
+
+    /**
+     * The codec of payloads queued before the payload was versioned.
+     */
+    private final UserAccountCodec legacyCodec = new UserAccountCodec(0);
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The user cache.
+     */
+    private UserCache userCache;
+
+    /**
+     * The username reservations.
+     */
+    private UsernameReservations usernameReservations;
+
+    /**
+     * The number of registrations per batch.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * The lease time of a batch in seconds.
+     */
+    private int leaseSeconds = DEFAULT_LEASE_SECONDS;
+
+    /**
+     * The username reservation expiration in seconds.
+     */
+    private int reservationExpiration = DEFAULT_RESERVATION_EXPIRATION;
+
+    /**
+     * The delay in seconds before accepted registrations are persisted.
+     */
+    private int persistDelay = DEFAULT_PERSIST_DELAY;
+
+    /**
+     * The pending registration pull queue name.
+     */
+    private String pendingQueueName;
+
+    /**
+     * The pull queue name for registrations which cannot be decoded.
+     */
+    private String deadQueueName;
+
+    /**
+     * The persist task queue name.
+     */
+    private String persistTaskName;
+
+    /**
+     * The persist task URL.
+     */
+    private String persistTaskUrl;
+
+    /**
+     * The mail task queue name.
+     */
+    private String mailTaskName;
+
+    /**
+     * The mail task URL.
+     */
+    private String mailTaskUrl;
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the user cache.
+     *
+     * @return the user cache
+     */
+    public final UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Sets the user cache.
+     *
+     * @param userCache the user cache
+     */
+    public final void setUserCache(final UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Returns the username reservations.
+     *
+     * @return the username reservations
+     */
+    public final UsernameReservations getUsernameReservations() {
+        return usernameReservations;
+    }
+
+    /**
+     * Sets the username reservations.
+     *
+     * @param usernameReservations the username reservations
+     */
+    public final void setUsernameReservations(
+        final UsernameReservations usernameReservations) {
+        this.usernameReservations = usernameReservations;
+    }
+
+    /**
+     * Returns the number of registrations per batch.
+     *
+     * @return the number of registrations per batch
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of registrations per batch.
+     *
+     * @param batchSize the number of registrations per batch
+     */
+    public final void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the lease time of a batch in seconds.
+     *
+     * @return the lease time of a batch in seconds
+     */
+    public final int getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    /**
+     * Sets the lease time of a batch in seconds.
+     *
+     * @param leaseSeconds the lease time of a batch in seconds
+     */
+    public final void setLeaseSeconds(final int leaseSeconds) {
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    /**
+     * Returns the username reservation expiration in seconds.
+     *
+     * @return the reservation expiration
+     */
+    public final int getReservationExpiration() {
+        return reservationExpiration;
+    }
+
+    /**
+     * Sets the username reservation expiration in seconds. It must exceed
+     * the longest time an accepted registration waits to be leased.
+     *
+     * @param reservationExpiration the reservation expiration
+     */
+    public final void setReservationExpiration(
+        final int reservationExpiration) {
+        this.reservationExpiration = reservationExpiration;
+    }
+
+    /**
+     * Returns the delay in seconds before accepted registrations are persisted.
+     *
+     * @return the persist delay
+     */
+    public final int getPersistDelay() {
+        return persistDelay;
+    }
+
+    /**
+     * Sets the delay in seconds before accepted registrations are persisted.
+     *
+     * @param persistDelay the persist delay
+     */
+    public final void setPersistDelay(final int persistDelay) {
+        this.persistDelay = persistDelay;
+    }
+
+    /**
+     * Returns the pending registration pull queue name.
+     *
+     * @return the pending registration pull queue name
+     */
+    public final String getPendingQueueName() {
+        return pendingQueueName;
+    }
+
+    /**
+     * Sets the pending registration pull queue name.
+     *
+     * @param pendingQueueName the pending registration pull queue name
+     */
+    public final void setPendingQueueName(final String pendingQueueName) {
+        this.pendingQueueName = pendingQueueName;
+    }
+
+    /**
+     * Returns the pull queue name for registrations which cannot be decoded.
+     *
+     * @return the dead registration pull queue name
+     */
+    public final String getDeadQueueName() {
+        return deadQueueName;
+    }
+
+    /**
+     * Sets the pull queue name for registrations which cannot be decoded.
+     *
+     * @param deadQueueName the dead registration pull queue name
+     */
+    public final void setDeadQueueName(final String deadQueueName) {
+        this.deadQueueName = deadQueueName;
+    }
+
+    /**
+     * Returns the persist task queue name.
+     *
+     * @return the persist task queue name
+     */
+    public final String getPersistTaskName() {
+        return persistTaskName;
+    }
+
+    /**
+     * Sets the persist task queue name.
+     *
+     * @param persistTaskName the persist task queue name
+     */
+    public final void setPersistTaskName(final String persistTaskName) {
+        this.persistTaskName = persistTaskName;
+    }
+
+    /**
+     * Returns the persist task URL.
+     *
+     * @return the persist task URL
+     */
+    public final String getPersistTaskUrl() {
+        return persistTaskUrl;
+    }
+
+    /**
+     * Sets the persist task URL.
+     *
+     * @param persistTaskUrl the persist task URL
+     */
+    public final void setPersistTaskUrl(final String persistTaskUrl) {
+        this.persistTaskUrl = persistTaskUrl;
+    }
+
+    /**
+     * Returns the mail task queue name.
+     *
+     * @return the mail task queue name
+     */
+    public final String getMailTaskName() {
+        return mailTaskName;
+    }
+
+    /**
+     * Sets the mail task queue name.
+     *
+     * @param mailTaskName the mail task queue name
+     */
+    public final void setMailTaskName(final String mailTaskName) {
+        this.mailTaskName = mailTaskName;
+    }
+
+    /**
+     * Returns the mail task URL.
+     *
+     * @return the mail task URL
+     */
+    public final String getMailTaskUrl() {
+        return mailTaskUrl;
+    }
+
+    /**
+     * Sets the mail task URL.
+     *
+     * @param mailTaskUrl the mail task URL
+     */
+    public final void setMailTaskUrl(final String mailTaskUrl) {
+        this.mailTaskUrl = mailTaskUrl;
+    }
+
+    /**
+     * Reserves the username of the given user account until the
+     * registration is persisted.
+     *
+     * @param user the user account
+     * @return true if reserved; false if the username is already reserved
+     */
+    public final boolean reserve(final UserAccount user) {
+        return usernameReservations.reserve(user.getUsername(),
+            reservationExpiration);
+    }
+
+    /**
+     * Accepts the registration of the given user account and schedules the
+     * persist task.
+     *
+     * @param user the user account
+     * @param locale the locale
+     */
+    public final void accept(final UserAccount user, final Locale locale) {
+        QueueFactory.getQueue(pendingQueueName).add((Transaction) null,
+            TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+            .payload(encode(user, locale)));
+
+        if (memcacheService.put(PERSIST_LOCK_KEY, Boolean.TRUE,
+            Expiration.byDeltaSeconds(persistDelay),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            QueueFactory.getQueue(persistTaskName).add(
+                TaskOptions.Builder.withUrl(persistTaskUrl)
+                .countdownMillis(persistDelay * MILLIS_PER_SECOND));
+        }
+    }
+
+    /**
+     * Persists a batch of accepted registrations and queues the next batch
+     * if there may be more. The usernames of the batch are reserved again
+     * for the reservation expiration before the existence check and
+     * released once the batch is written. A registration whose username
+     * was taken in the meantime, which takes an evicted reservation, is
+     * dropped. A registration found already persisted with the
+     * same activation key, from a batch which failed before it completed,
+     * only has its activation e-mail queued again.
+     *
+     * @return the number of user accounts persisted
+     */
+    public final int persist() {
+        final long start = System.currentTimeMillis();
+        final Queue pending = QueueFactory.getQueue(pendingQueueName);
+        final List<TaskHandle> tasks =
+            pending.leaseTasks(leaseSeconds, TimeUnit.SECONDS, batchSize);
+
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+
+        final Map<Key, UserAccount> users =
+            new LinkedHashMap<Key, UserAccount>();
+        final Map<Key, String> locales = new LinkedHashMap<Key, String>();
+        final List<TaskHandle> handled = new ArrayList<TaskHandle>();
+        final List<TaskOptions> dead = new ArrayList<TaskOptions>();
+
+        for (final TaskHandle task : tasks) {
+            final Registration registration = decode(task.getPayload());
+
+            if (registration == null) {
+                if (deadQueueName == null) {
+                    LOGGER.error(String.format(
+                        "Left undecodable registration %s in the queue.",
+                        task.getName()));
+                } else {
+                    LOGGER.error(String.format(
+                        "Moved undecodable registration %s to %s.",
+                        task.getName(), deadQueueName));
+                    dead.add(TaskOptions.Builder
+                        .withMethod(TaskOptions.Method.PULL)
+                        .payload(task.getPayload()));
+                    handled.add(task);
+                }
+
+                continue;
+            }
+
+            final UserAccount user = registration.user;
+
+            handled.add(task);
+
+            if (!users.containsKey(user.getKey())) {
+                users.put(user.getKey(), user);
+                locales.put(user.getKey(), registration.locale);
+            }
+        }
+
+        final List<String> usernames = new ArrayList<String>();
+
+        for (final UserAccount user : users.values()) {
+            usernames.add(user.getUsername());
+        }
+
+        if (!usernames.isEmpty()) {
+            usernameReservations.holdAll(usernames, reservationExpiration);
+        }
+
+        final Map<Key, Entity> existing = datastoreService.get(users.keySet());
+        final List<Entity> entities = new ArrayList<Entity>();
+        final List<UserAccount> created = new ArrayList<UserAccount>();
+        final List<TaskOptions> mails = new ArrayList<TaskOptions>();
+
+        for (final UserAccount user : users.values()) {
+            final Entity entity = existing.get(user.getKey());
+
+            if (entity == null) {
+                entities.add(UserAccountMapper.toEntity(user));
+                entities.add(UserAccountMapper.toActivationKey(user));
+                created.add(user);
+            } else if (!user.getActivationKey().equals(
+                entity.getProperty("activationKey"))) {
+                LOGGER.warn(String.format(
+                    "Dropped the registration of taken username %s.",
+                    user.getUsername()));
+                continue;
+            }
+
+            mails.add(TaskOptions.Builder.withUrl(mailTaskUrl)
+                .param("username", user.getUsername())
+                .param("locale", locales.get(user.getKey())));
+        }
+
+        if (!entities.isEmpty()) {
+            datastoreService.put(entities);
+            userCache.fillAll(created);
+        }
+
+        if (!usernames.isEmpty()) {
+            usernameReservations.releaseAll(usernames);
+        }
+
+        if (!mails.isEmpty()) {
+            QueueFactory.getQueue(mailTaskName).add(mails);
+        }
+
+        if (!dead.isEmpty()) {
+            QueueFactory.getQueue(deadQueueName).add((Transaction) null,
+                dead);
+        }
+
+        if (!handled.isEmpty()) {
+            pending.deleteTask(handled);
+        }
+
+        if (tasks.size() == batchSize) {
+            QueueFactory.getQueue(persistTaskName).add(
+                TaskOptions.Builder.withUrl(persistTaskUrl));
+        }
+
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        LOGGER.info(String.format(
+            "Persisted %d of %d registrations in %d ms (%.1f/s).",
+            created.size(), tasks.size(), elapsed,
+            created.size() * (double) MILLIS_PER_SECOND / elapsed));
+
+        return created.size();
+    }
+
+    /**
+     * Encodes a registration as the payload format version followed by the
+     * locale and the user account properties. The payload format is kept
+     * separate from the cache encoding, so pending registrations are not
+     * affected by changes to the cache.
+     *
+     * @param user the user account
+     * @param locale the locale
+     * @return the payload
+     */
+    private static byte[] encode(final UserAccount user,
+        final Locale locale) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try {
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PAYLOAD_VERSION);
+            out.writeUTF(locale.toString());
+            writeString(out, user.getUsername());
+            writeString(out, user.getEmail());
+            writeString(out, user.getDisplayName());
+            writeString(out, user.getPassword());
+            writeString(out, user.getSalt());
+            writeString(out, user.getRole());
+            writeString(out, user.getActivationKey());
+            out.writeByte(flags(user));
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a registration. Payloads queued before the payload was
+     * versioned are still decoded.
+     *
+     * @param payload the payload
+     * @return the registration or null if it cannot be decoded
+     */
+    private Registration decode(final byte[] payload) {
+        if (payload == null || payload.length == 0) {
+            return null;
+        }
+
+        final DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(payload));
+
+        try {
+            switch (payload[0]) {
+            case LEGACY_PAYLOAD:
+                return decodeLegacy(in);
+            case PAYLOAD_VERSION_1:
+                in.readByte();
+                return decodeVersion1(in);
+            default:
+                return null;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to decode a registration.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the version 1 payload format.
+     *
+     * @param in the input, after the version
+     * @return the registration
+     * @throws IOException if the input is malformed
+     */
+    private static Registration decodeVersion1(final DataInputStream in)
+        throws IOException {
+        final String locale = in.readUTF();
+        final String username = readString(in);
+
+        if (username == null) {
+            throw new IOException("Missing username.");
+        }
+
+        final UserAccount user = new UserAccount();
+        user.setKey(UserAccount.createKey(username));
+        user.setUsername(username);
+        user.setEmail(readString(in));
+        user.setDisplayName(readString(in));
+        user.setPassword(readString(in));
+        user.setSalt(readString(in));
+        user.setRole(readString(in));
+        user.setActivationKey(readString(in));
+
+        final int flags = in.readUnsignedByte();
+        user.setEnabled((flags & ENABLED) != 0);
+        user.setAccountNonExpired((flags & ACCOUNT_NON_EXPIRED) != 0);
+        user.setAccountNonLocked((flags & ACCOUNT_NON_LOCKED) != 0);
+        user.setCredentialsNonExpired(
+            (flags & CREDENTIALS_NON_EXPIRED) != 0);
+
+        return new Registration(user, locale);
+    }
+
+    /**
+     * Decodes a payload queued before the payload was versioned, which held
+     * the locale followed by the cached user account encoding.
+     *
+     * @param in the input
+     * @return the registration or null if the user account cannot be
+     *         decoded
+     * @throws IOException if the input is malformed
+     */
+    private Registration decodeLegacy(final DataInputStream in)
+        throws IOException {
+        final String locale = in.readUTF();
+        final byte[] bytes = new byte[in.available()];
+        in.readFully(bytes);
+
+        final UserAccount user = legacyCodec.decode(bytes);
+
+        return user == null ? null : new Registration(user, locale);
+    }
+
+    /**
+     * Packs the boolean properties of the given user account.
+     *
+     * @param user the user account
+     * @return the packed flags
+     */
+    private static int flags(final UserAccount user) {
+        int flags = 0;
+
+        if (user.isEnabled()) {
+            flags |= ENABLED;
+        }
+        if (user.isAccountNonExpired()) {
+            flags |= ACCOUNT_NON_EXPIRED;
+        }
+        if (user.isAccountNonLocked()) {
+            flags |= ACCOUNT_NON_LOCKED;
+        }
+        if (user.isCredentialsNonExpired()) {
+            flags |= CREDENTIALS_NON_EXPIRED;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Writes a nullable string as a presence flag followed by the string.
+     *
+     * @param out the output
+     * @param value the string
+     * @throws IOException if the output fails
+     */
+    private static void writeString(final DataOutputStream out,
+        final String value) throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a nullable string.
+     *
+     * @param in the input
+     * @return the string
+     * @throws IOException if the input is malformed
+     */
+    private static String readString(final DataInputStream in)
+        throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * A decoded registration.
+     */
+    private static final class Registration {
+
+        /**
+         * The user account.
+         */
+        private final UserAccount user;
+
+        /**
+         * The locale.
+         */
+        private final String locale;
+
+        /**
+         * Creates a decoded registration.
+         *
+         * @param user the user account
+         * @param locale the locale
+         */
+        private Registration(final UserAccount user, final String locale) {
+            this.user = user;
+            this.locale = locale;
+        }
+
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.io.UnsupportedEncodingException;
+
+import org.springframework.security.core.codec.Base64;
+import org.springframework.security.web.authentication.rememberme.
+    InvalidCookieException;
+
+/**
+ * Encodes the username carried by remember me cookies. Cookie tokens are
+ * joined with ":", which usernames may contain, so the username is Base64
+ * encoded to keep the number of tokens fixed.
+ */
+public final class RememberMeCookies {
+
+    /**
+     * The character encoding.
+     */
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * Prevents instantiation.
+     */
+    private RememberMeCookies() {
+    }
+
+    /**
+     * Encodes the given username as a cookie token.
+     *
+     * @param username the username
+     * @return the cookie token
+     */
+    public static String encodeUsername(final String username) {
+        try {
+            return new String(Base64.encode(username.getBytes(UTF8)), UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes the username from the given cookie token.
+     *
+     * @param token the cookie token
+     * @return the username
+     * @throws InvalidCookieException if the token is not Base64 encoded
+     */
+    public static String decodeUsername(final String token) {
+        try {
+            final byte[] bytes = token.getBytes(UTF8);
+
+            if (bytes.length == 0 || !Base64.isBase64(bytes)) {
+                throw new InvalidCookieException(
+                    "Cookie username was not Base64 encoded.");
+            }
+
+            return new String(Base64.decode(bytes), UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
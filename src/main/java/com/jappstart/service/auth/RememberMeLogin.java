@@ -0,0 +1,72 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import org.springframework.security.web.authentication.rememberme.
+    PersistentRememberMeToken;
+
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * A remember me token fetched together with the user account it belongs
+ * to.
+ */
+public class RememberMeLogin {
+
+    /**
+     * The remember me token.
+     */
+    private final PersistentRememberMeToken token;
+
+    /**
+     * The user account or null if it was not fetched.
+     */
+    private final UserAccount user;
+
+    /**
+     * Creates a remember me login.
+     *
+     * @param token the remember me token
+     * @param user the user account or null if it was not fetched
+     */
+    public RememberMeLogin(final PersistentRememberMeToken token,
+        final UserAccount user) {
+        this.token = token;
+        this.user = user;
+    }
+
+    /**
+     * Returns the remember me token.
+     *
+     * @return the remember me token
+     */
+    public final PersistentRememberMeToken getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the user account.
+     *
+     * @return the user account or null if it was not fetched
+     */
+    public final UserAccount getUser() {
+        return user;
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.codec.Hex;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.
+    UsernameNotFoundException;
+import org.springframework.security.web.authentication.rememberme.
+    AbstractRememberMeServices;
+import org.springframework.security.web.authentication.rememberme.
+    InvalidCookieException;
+import org.springframework.security.web.authentication.rememberme.
+    RememberMeAuthenticationException;
+
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * The signed remember me services. The cookie carries the Base64 encoded
+ * username, an expiry time, the user's token version and an HMAC signature,
+ * so an auto-login is validated without any datastore access when the user
+ * account is cached. The signature also covers the user's password hash,
+ * so a cookie cannot be forged without it and changing the password
+ * invalidates every cookie, as with the token based remember me services.
+ * Incrementing the user's token version revokes every cookie issued before
+ * it. Cookies are signed with the first signing key and accepted with any
+ * of them, so keys can be rotated by prepending a new key and dropping the
+ * oldest once its cookies have expired. At least one secret signing key is
+ * required; the remember me key is public and is never used for signing.
+ */
+public class SignedRememberMeServices extends AbstractRememberMeServices {
+
+    /**
+     * The HMAC algorithm.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * The number of cookie tokens.
+     */
+    private static final int TOKEN_COUNT = 5;
+
+    /**
+     * The username token index.
+     */
+    private static final int USERNAME = 0;
+
+    /**
+     * The expiry token index.
+     */
+    private static final int EXPIRY = 1;
+
+    /**
+     * The token version token index.
+     */
+    private static final int TOKEN_VERSION = 2;
+
+    /**
+     * The key id token index.
+     */
+    private static final int KEY_ID = 3;
+
+    /**
+     * The signature token index.
+     */
+    private static final int SIGNATURE = 4;
+
+    /**
+     * The key id length in hex characters.
+     */
+    private static final int KEY_ID_LENGTH = 8;
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The signing keys, newest first.
+     */
+    private List<String> signingKeys = new ArrayList<String>();
+
+    /**
+     * The HMAC keys by key id, newest first.
+     */
+    private Map<String, SecretKeySpec> keys;
+
+    /**
+     * The key id used to sign new cookies.
+     */
+    private String currentKeyId;
+
+    /**
+     * Returns the signing keys.
+     *
+     * @return the signing keys
+     */
+    public final List<String> getSigningKeys() {
+        return signingKeys;
+    }
+
+    /**
+     * Sets the signing keys, newest first.
+     *
+     * @param signingKeys the signing keys
+     */
+    public final void setSigningKeys(final List<String> signingKeys) {
+        this.signingKeys = signingKeys;
+    }
+
+    /**
+     * Initializes the signing keys.
+     *
+     * @throws Exception if the properties are invalid
+     */
+    @Override
+    public final void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+
+        if (!(getUserDetailsService() instanceof EnhancedUserDetailsService)) {
+            throw new IllegalArgumentException(
+                "An enhanced user details service is required.");
+        }
+
+        if (signingKeys == null || signingKeys.isEmpty()) {
+            throw new IllegalArgumentException(
+                "At least one signing key is required.");
+        }
+
+        keys = new LinkedHashMap<String, SecretKeySpec>();
+
+        for (String key : signingKeys) {
+            if (key == null || key.length() == 0 || key.equals(getKey())) {
+                throw new IllegalArgumentException(
+                    "Signing keys must be secret and non-empty.");
+            }
+
+            final byte[] bytes = utf8(key);
+            final String keyId = String.valueOf(Hex.encode(
+                MessageDigest.getInstance("SHA-256").digest(bytes)))
+                .substring(0, KEY_ID_LENGTH);
+
+            keys.put(keyId, new SecretKeySpec(bytes, ALGORITHM));
+        }
+
+        currentKeyId = keys.keySet().iterator().next();
+    }
+
+    /**
+     * Validates the signed cookie and checks the token version against the
+     * cached user account.
+     *
+     * @param cookieTokens the cookie tokens
+     * @param request the servlet request
+     * @param response the servlet response
+     * @return the user details
+     */
+    @Override
+    protected final UserDetails processAutoLoginCookie(
+        final String[] cookieTokens, final HttpServletRequest request,
+        final HttpServletResponse response) {
+        if (cookieTokens.length != TOKEN_COUNT) {
+            throw new InvalidCookieException("Cookie token did not contain "
+                + TOKEN_COUNT + " tokens, but contained '"
+                + cookieTokens.length + "'");
+        }
+
+        final SecretKeySpec key = keys.get(cookieTokens[KEY_ID]);
+
+        if (key == null) {
+            throw new InvalidCookieException("Unknown signing key: "
+                + cookieTokens[KEY_ID]);
+        }
+
+        final long expiry;
+        final long tokenVersion;
+
+        try {
+            expiry = Long.parseLong(cookieTokens[EXPIRY]);
+            tokenVersion = Long.parseLong(cookieTokens[TOKEN_VERSION]);
+        } catch (NumberFormatException e) {
+            throw new InvalidCookieException("Malformed remember-me cookie.");
+        }
+
+        if (expiry < System.currentTimeMillis()) {
+            throw new RememberMeAuthenticationException(
+                "Remember-me login has expired");
+        }
+
+        final UserAccount user = getEnhancedUserDetailsService().getUser(
+            RememberMeCookies.decodeUsername(cookieTokens[USERNAME]));
+
+        if (user == null) {
+            throw new UsernameNotFoundException("Username not found.");
+        }
+
+        final String expected = sign(key, cookieTokens[USERNAME],
+            cookieTokens[EXPIRY], cookieTokens[TOKEN_VERSION],
+            user.getPassword());
+
+        if (!MessageDigest.isEqual(utf8(expected),
+            utf8(cookieTokens[SIGNATURE]))) {
+            throw new InvalidCookieException("Invalid remember-me signature.");
+        }
+
+        if (user.getTokenVersion() != tokenVersion) {
+            throw new RememberMeAuthenticationException(
+                "Remember-me token has been revoked");
+        }
+
+        return getEnhancedUserDetailsService().getUserDetails(user);
+    }
+
+    /**
+     * Sets a signed cookie for the authenticated user.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param successfulAuthentication the authentication
+     */
+    @Override
+    protected final void onLoginSuccess(final HttpServletRequest request,
+        final HttpServletResponse response,
+        final Authentication successfulAuthentication) {
+        final UserAccount user = getEnhancedUserDetailsService().getUser(
+            successfulAuthentication.getName());
+
+        if (user == null) {
+            return;
+        }
+
+        final String username =
+            RememberMeCookies.encodeUsername(user.getUsername());
+
+        final String expiry = String.valueOf(System.currentTimeMillis()
+            + getTokenValiditySeconds() * MILLIS_PER_SECOND);
+        final String tokenVersion = String.valueOf(user.getTokenVersion());
+
+        setCookie(new String[] {username, expiry, tokenVersion, currentKeyId,
+            sign(keys.get(currentKeyId), username, expiry, tokenVersion,
+            user.getPassword())},
+            getTokenValiditySeconds(), request, response);
+    }
+
+    /**
+     * Cancels the cookie and revokes every cookie issued for the user.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param authentication the authentication
+     */
+    @Override
+    public final void logout(final HttpServletRequest request,
+        final HttpServletResponse response,
+        final Authentication authentication) {
+        super.logout(request, response, authentication);
+
+        if (authentication != null) {
+            getEnhancedUserDetailsService().revokeTokens(
+                authentication.getName());
+        }
+    }
+
+    /**
+     * Returns the enhanced user details service.
+     *
+     * @return the enhanced user details service
+     */
+    private EnhancedUserDetailsService getEnhancedUserDetailsService() {
+        return (EnhancedUserDetailsService) getUserDetailsService();
+    }
+
+    /**
+     * Signs the given cookie values and the user's password hash. None of
+     * the cookie values can contain the delimiter, so the signed input is
+     * unambiguous.
+     *
+     * @param key the HMAC key
+     * @param username the encoded username
+     * @param expiry the expiry time
+     * @param tokenVersion the token version
+     * @param password the password hash
+     * @return the hex encoded signature
+     */
+    private static String sign(final SecretKeySpec key, final String username,
+        final String expiry, final String tokenVersion,
+        final String password) {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+
+            return String.valueOf(Hex.encode(mac.doFinal(utf8(username + ":"
+                + expiry + ":" + tokenVersion + ":" + password))));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the UTF-8 bytes of the given string.
+     *
+     * @param value the string
+     * @return the bytes
+     */
+    private static byte[] utf8(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,449 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * The user account codec. Encodes cached user accounts in a compact,
+ * versioned binary format which is optionally compressed. Every format
+ * version ever written can be decoded so cached entries survive a deploy.
+ * User accounts cached with default Java serialization before the codec was
+ * introduced are returned as is. The persistent user relationship is not
+ * encoded.
+ */
+public class UserAccountCodec {
+
+    /**
+     * The version 1 format.
+     */
+    private static final byte VERSION_1 = 1;
+
+    /**
+     * The version 2 format. Adds the remember-me token version.
+     */
+    private static final byte VERSION_2 = 2;
+
+    /**
+     * The current format version.
+     */
+    private static final byte VERSION = VERSION_2;
+
+    /**
+     * The compressed flag.
+     */
+    private static final int FLAG_COMPRESSED = 0x01;
+
+    /**
+     * The activation e-mail sent bit.
+     */
+    private static final int ACTIVATION_EMAIL_SENT = 0x01;
+
+    /**
+     * The enabled bit.
+     */
+    private static final int ENABLED = 0x02;
+
+    /**
+     * The account non-expired bit.
+     */
+    private static final int ACCOUNT_NON_EXPIRED = 0x04;
+
+    /**
+     * The account non-locked bit.
+     */
+    private static final int ACCOUNT_NON_LOCKED = 0x08;
+
+    /**
+     * The credentials non-expired bit.
+     */
+    private static final int CREDENTIALS_NON_EXPIRED = 0x10;
+
+    /**
+     * The varint payload bits per byte.
+     */
+    private static final int VARINT_BITS = 7;
+
+    /**
+     * The varint payload mask.
+     */
+    private static final int VARINT_MASK = 0x7f;
+
+    /**
+     * The varint continuation bit.
+     */
+    private static final int VARINT_MORE = 0x80;
+
+    /**
+     * The header length in bytes.
+     */
+    private static final int HEADER_LENGTH = 2;
+
+    /**
+     * The minimum payload length in bytes to attempt compression, or zero
+     * to disable compression.
+     */
+    private final int compressionThreshold;
+
+    /**
+     * Creates a user account codec.
+     *
+     * @param compressionThreshold the minimum payload length to attempt
+     *        compression, or zero to disable compression
+     */
+    public UserAccountCodec(final int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Encodes the given user account.
+     *
+     * @param user the user account
+     * @return the encoded bytes
+     */
+    public final byte[] encode(final UserAccount user) {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        try {
+            final DataOutputStream out = new DataOutputStream(payload);
+            writeString(out, user.getUsername());
+            writeString(out, user.getEmail());
+            writeString(out, user.getDisplayName());
+            writeString(out, user.getPassword());
+            writeString(out, user.getSalt());
+            writeString(out, user.getRole());
+            writeString(out, user.getActivationKey());
+            out.writeByte(flags(user));
+            writeVarlong(out, user.getTokenVersion());
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] body = payload.toByteArray();
+        int flags = 0;
+
+        if (compressionThreshold > 0 && body.length >= compressionThreshold) {
+            final byte[] compressed = deflate(body);
+
+            if (compressed.length < body.length) {
+                body = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        final byte[] bytes = new byte[HEADER_LENGTH + body.length];
+        bytes[0] = VERSION;
+        bytes[1] = (byte) flags;
+        System.arraycopy(body, 0, bytes, HEADER_LENGTH, body.length);
+
+        return bytes;
+    }
+
+    /**
+     * Decodes a cached value. Values cached with default Java serialization
+     * are returned as is.
+     *
+     * @param value the cached value
+     * @return the user account or null if the value cannot be decoded
+     */
+    public final UserAccount decode(final Object value) {
+        if (value instanceof UserAccount) {
+            return (UserAccount) value;
+        }
+
+        if (!(value instanceof byte[])) {
+            return null;
+        }
+
+        final byte[] bytes = (byte[]) value;
+
+        if (bytes.length < HEADER_LENGTH) {
+            return null;
+        }
+
+        InputStream in = new ByteArrayInputStream(bytes, HEADER_LENGTH,
+            bytes.length - HEADER_LENGTH);
+        Inflater inflater = null;
+
+        if ((bytes[1] & FLAG_COMPRESSED) != 0) {
+            inflater = new Inflater();
+            in = new InflaterInputStream(in, inflater);
+        }
+
+        try {
+            switch (bytes[0]) {
+            case VERSION_1:
+                return decodeVersion1(new DataInputStream(in));
+            case VERSION_2:
+                return decodeVersion2(new DataInputStream(in));
+            default:
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decodes the version 1 format.
+     *
+     * @param in the input
+     * @return the user account
+     * @throws IOException if the input is malformed
+     */
+    private static UserAccount decodeVersion1(final DataInputStream in)
+        throws IOException {
+        final UserAccount user = new UserAccount();
+        final String username = readString(in);
+
+        user.setKey(UserAccount.createKey(username));
+        user.setUsername(username);
+        user.setEmail(readString(in));
+        user.setDisplayName(readString(in));
+        user.setPassword(readString(in));
+        user.setSalt(readString(in));
+        user.setRole(readString(in));
+        user.setActivationKey(readString(in));
+
+        final int flags = in.readUnsignedByte();
+        user.setActivationEmailSent((flags & ACTIVATION_EMAIL_SENT) != 0);
+        user.setEnabled((flags & ENABLED) != 0);
+        user.setAccountNonExpired((flags & ACCOUNT_NON_EXPIRED) != 0);
+        user.setAccountNonLocked((flags & ACCOUNT_NON_LOCKED) != 0);
+        user.setCredentialsNonExpired(
+            (flags & CREDENTIALS_NON_EXPIRED) != 0);
+
+        return user;
+    }
+
+    /**
+     * Decodes the version 2 format.
+     *
+     * @param in the input
+     * @return the user account
+     * @throws IOException if the input is malformed
+     */
+    private static UserAccount decodeVersion2(final DataInputStream in)
+        throws IOException {
+        final UserAccount user = decodeVersion1(in);
+        user.setTokenVersion(readVarlong(in));
+
+        return user;
+    }
+
+    /**
+     * Packs the boolean properties of the given user account.
+     *
+     * @param user the user account
+     * @return the packed flags
+     */
+    private static int flags(final UserAccount user) {
+        int flags = 0;
+
+        if (user.isActivationEmailSent()) {
+            flags |= ACTIVATION_EMAIL_SENT;
+        }
+        if (user.isEnabled()) {
+            flags |= ENABLED;
+        }
+        if (user.isAccountNonExpired()) {
+            flags |= ACCOUNT_NON_EXPIRED;
+        }
+        if (user.isAccountNonLocked()) {
+            flags |= ACCOUNT_NON_LOCKED;
+        }
+        if (user.isCredentialsNonExpired()) {
+            flags |= CREDENTIALS_NON_EXPIRED;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Writes a nullable string as a varint length (zero for null, otherwise
+     * the length plus one) followed by its UTF-8 bytes.
+     *
+     * @param out the output
+     * @param value the string
+     * @throws IOException if the output fails
+     */
+    private static void writeString(final DataOutputStream out,
+        final String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+
+        final byte[] bytes = value.getBytes("UTF-8");
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a nullable string.
+     *
+     * @param in the input
+     * @return the string
+     * @throws IOException if the input is malformed
+     */
+    private static String readString(final DataInputStream in)
+        throws IOException {
+        final int length = readVarint(in);
+
+        if (length == 0) {
+            return null;
+        }
+
+        final byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes an unsigned varint.
+     *
+     * @param out the output
+     * @param value the value
+     * @throws IOException if the output fails
+     */
+    private static void writeVarint(final DataOutputStream out,
+        final int value) throws IOException {
+        int remaining = value;
+
+        while ((remaining & ~VARINT_MASK) != 0) {
+            out.writeByte((remaining & VARINT_MASK) | VARINT_MORE);
+            remaining >>>= VARINT_BITS;
+        }
+
+        out.writeByte(remaining);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @param in the input
+     * @return the value
+     * @throws IOException if the input is malformed
+     */
+    private static int readVarint(final DataInputStream in)
+        throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            if (shift > Integer.SIZE) {
+                throw new IOException("Malformed varint.");
+            }
+
+            b = in.readUnsignedByte();
+            value |= (b & VARINT_MASK) << shift;
+            shift += VARINT_BITS;
+        } while ((b & VARINT_MORE) != 0);
+
+        return value;
+    }
+
+    /**
+     * Writes an unsigned variable length long.
+     *
+     * @param out the output
+     * @param value the value
+     * @throws IOException if the output fails
+     */
+    private static void writeVarlong(final DataOutputStream out,
+        final long value) throws IOException {
+        long remaining = value;
+
+        while ((remaining & ~VARINT_MASK) != 0) {
+            out.writeByte((int) (remaining & VARINT_MASK) | VARINT_MORE);
+            remaining >>>= VARINT_BITS;
+        }
+
+        out.writeByte((int) remaining);
+    }
+
+    /**
+     * Reads an unsigned variable length long.
+     *
+     * @param in the input
+     * @return the value
+     * @throws IOException if the input is malformed
+     */
+    private static long readVarlong(final DataInputStream in)
+        throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            if (shift > Long.SIZE) {
+                throw new IOException("Malformed varint.");
+            }
+
+            b = in.readUnsignedByte();
+            value |= (long) (b & VARINT_MASK) << shift;
+            shift += VARINT_BITS;
+        } while ((b & VARINT_MORE) != 0);
+
+        return value;
+    }
+
+    /**
+     * Compresses the given bytes.
+     *
+     * @param bytes the bytes
+     * @return the compressed bytes
+     */
+    private static byte[] deflate(final byte[] bytes) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            final DeflaterOutputStream deflaterOut =
+                new DeflaterOutputStream(out, deflater);
+            deflaterOut.write(bytes);
+            deflaterOut.finish();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+
+        return out.toByteArray();
+    }
+
+}
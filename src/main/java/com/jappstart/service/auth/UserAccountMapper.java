@@ -0,0 +1,127 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import com.google.appengine.api.datastore.Entity;
+import com.jappstart.model.auth.ActivationKey;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Maps user accounts to and from their datastore entities, for the code
+ * paths which use the low-level datastore API instead of JPA. The property
+ * names match the fields persisted by JPA. The persistent user relationship
+ * is not mapped.
+ */
+public final class UserAccountMapper {
+
+    /**
+     * Prevents instantiation.
+     */
+    private UserAccountMapper() {
+    }
+
+    /**
+     * Creates the datastore entity for the given user account.
+     *
+     * @param user the user account
+     * @return the entity
+     */
+    public static Entity toEntity(final UserAccount user) {
+        final Entity entity = new Entity(user.getKey());
+
+        entity.setProperty("username", user.getUsername());
+        entity.setProperty("email", user.getEmail());
+        entity.setProperty("displayName", user.getDisplayName());
+        entity.setProperty("password", user.getPassword());
+        entity.setProperty("salt", user.getSalt());
+        entity.setProperty("role", user.getRole());
+        entity.setProperty("activationKey", user.getActivationKey());
+        entity.setProperty("activationEmailSent",
+            user.isActivationEmailSent());
+        entity.setProperty("enabled", user.isEnabled());
+        entity.setProperty("accountNonExpired", user.isAccountNonExpired());
+        entity.setProperty("accountNonLocked", user.isAccountNonLocked());
+        entity.setProperty("credentialsNonExpired",
+            user.isCredentialsNonExpired());
+        entity.setProperty("tokenVersion", user.getTokenVersion());
+
+        return entity;
+    }
+
+    /**
+     * Creates the activation key entity for the given user account.
+     *
+     * @param user the user account
+     * @return the activation key entity
+     */
+    public static Entity toActivationKey(final UserAccount user) {
+        final Entity entity = new Entity(
+            ActivationKey.createKey(user.getActivationKey()));
+        entity.setUnindexedProperty("userKey", user.getKey());
+
+        return entity;
+    }
+
+    /**
+     * Creates a user account from its datastore entity.
+     *
+     * @param entity the entity
+     * @return the user account
+     */
+    public static UserAccount toUserAccount(final Entity entity) {
+        final UserAccount user = new UserAccount();
+
+        user.setKey(entity.getKey());
+        user.setUsername((String) entity.getProperty("username"));
+        user.setEmail((String) entity.getProperty("email"));
+        user.setDisplayName((String) entity.getProperty("displayName"));
+        user.setPassword((String) entity.getProperty("password"));
+        user.setSalt((String) entity.getProperty("salt"));
+        user.setRole((String) entity.getProperty("role"));
+        user.setActivationKey((String) entity.getProperty("activationKey"));
+        user.setActivationEmailSent(
+            isTrue(entity.getProperty("activationEmailSent")));
+        user.setEnabled(isTrue(entity.getProperty("enabled")));
+        user.setAccountNonExpired(
+            isTrue(entity.getProperty("accountNonExpired")));
+        user.setAccountNonLocked(
+            isTrue(entity.getProperty("accountNonLocked")));
+        user.setCredentialsNonExpired(
+            isTrue(entity.getProperty("credentialsNonExpired")));
+
+        final Long tokenVersion = (Long) entity.getProperty("tokenVersion");
+
+        if (tokenVersion != null) {
+            user.setTokenVersion(tokenVersion);
+        }
+
+        return user;
+    }
+
+    /**
+     * Indicates if the given property value is true.
+     *
+     * @param value the property value
+     * @return true if true; false otherwise
+     */
+    private static boolean isTrue(final Object value) {
+        return Boolean.TRUE.equals(value);
+    }
+
+}
@@ -0,0 +1,1478 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.
+    TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.
+    TransactionSynchronizationManager;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.CacheMetrics;
+import com.jappstart.service.cache.LocalCache;
+import com.jappstart.service.cache.PendingWrites;
+
+/**
+ * The user cache. User accounts are cached in memcache and in a bounded
+ * in-process near cache. Near cache entries are invalidated across instances
+ * through a per-user generation stamp which is bumped by every write. Unknown
+ * usernames are remembered for a short time as negative entries. Memcache
+ * values are encoded with {@link UserAccountCodec}. Frequently read entries
+ * that are close to expiring are reloaded ahead of time by a task. Cached
+ * values can be invalidated for a single user, for a username prefix or for
+ * the whole cache by bumping a generation, leaving old entries to expire.
+ * Recently read usernames are kept in a fixed number of memcache slots so
+ * that the cache can be warmed after a flush or a deploy. User accounts
+ * cached under their bare username by versions before the codec are read
+ * once on a miss and moved to the current format.
+ * Returned user accounts are shared and must be treated as read-only.
+ */
+@Service
+public class UserCache {
+
+    /**
+     * The default cache expiration in seconds.
+     */
+    private static final int DEFAULT_EXPIRATION = 3600;
+
+    /**
+     * The default near cache capacity.
+     */
+    private static final int DEFAULT_LOCAL_CAPACITY = 1000;
+
+    /**
+     * The default near cache expiration in seconds.
+     */
+    private static final int DEFAULT_LOCAL_EXPIRATION = 300;
+
+    /**
+     * The default generation revalidation interval in seconds.
+     */
+    private static final int DEFAULT_REVALIDATE_INTERVAL = 5;
+
+    /**
+     * The default negative entry expiration in seconds.
+     */
+    private static final int DEFAULT_NEGATIVE_EXPIRATION = 30;
+
+    /**
+     * The default minimum encoded length in bytes to attempt compression.
+     */
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * The default number of recently active username slots.
+     */
+    private static final int DEFAULT_ACTIVE_SLOTS = 1024;
+
+    /**
+     * The default refresh-ahead window in seconds before expiration.
+     */
+    private static final int DEFAULT_REFRESH_AHEAD = 600;
+
+    /**
+     * The default number of reads after which an entry is considered hot.
+     */
+    private static final int DEFAULT_HOT_THRESHOLD = 10;
+
+    /**
+     * The refresh lock expiration in seconds.
+     */
+    private static final int REFRESH_LOCK_EXPIRATION = 60;
+
+    /**
+     * The near cache get metric name.
+     */
+    private static final String NEAR_GET = "user.near.get";
+
+    /**
+     * The memcache get metric name.
+     */
+    private static final String MEMCACHE_GET = "user.memcache.get";
+
+    /**
+     * The memcache put metric name.
+     */
+    private static final String MEMCACHE_PUT = "user.memcache.put";
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The user key prefix.
+     */
+    private static final String USER_PREFIX = "user:";
+
+    /**
+     * The generation key prefix.
+     */
+    private static final String GENERATION_PREFIX = "gen:";
+
+    /**
+     * The negative entry key prefix.
+     */
+    private static final String MISSING_PREFIX = "missing:";
+
+    /**
+     * The written time key prefix.
+     */
+    private static final String WRITTEN_PREFIX = "written:";
+
+    /**
+     * The refresh lock key prefix.
+     */
+    private static final String REFRESH_PREFIX = "refresh:";
+
+    /**
+     * The recently active username slot key prefix.
+     */
+    private static final String ACTIVE_PREFIX = "active:";
+
+    /**
+     * The namespace generation key.
+     */
+    private static final String NAMESPACE_KEY = "namespace";
+
+    /**
+     * The invalidated prefixes key.
+     */
+    private static final String PREFIXES_KEY = "prefixes";
+
+    /**
+     * The maximum attempts to update the invalidated prefixes.
+     */
+    private static final int MAX_PREFIX_ATTEMPTS = 5;
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The asynchronous memcache service.
+     */
+    private AsyncMemcacheService asyncMemcacheService;
+
+    /**
+     * The cache metrics.
+     */
+    private CacheMetrics metrics;
+
+    /**
+     * The near cache capacity.
+     */
+    private int localCapacity = DEFAULT_LOCAL_CAPACITY;
+
+    /**
+     * The near cache expiration in seconds.
+     */
+    private int localExpiration = DEFAULT_LOCAL_EXPIRATION;
+
+    /**
+     * The generation revalidation interval in seconds.
+     */
+    private int revalidateInterval = DEFAULT_REVALIDATE_INTERVAL;
+
+    /**
+     * The negative entry expiration in seconds.
+     */
+    private int negativeExpiration = DEFAULT_NEGATIVE_EXPIRATION;
+
+    /**
+     * The number of recently active username slots.
+     */
+    private int activeSlots = DEFAULT_ACTIVE_SLOTS;
+
+    /**
+     * The refresh-ahead window in seconds before expiration.
+     */
+    private int refreshAhead = DEFAULT_REFRESH_AHEAD;
+
+    /**
+     * The number of reads after which an entry is considered hot.
+     */
+    private int hotThreshold = DEFAULT_HOT_THRESHOLD;
+
+    /**
+     * The refresh task queue name.
+     */
+    private String refreshTaskName;
+
+    /**
+     * The refresh task URL.
+     */
+    private String refreshTaskUrl;
+
+    /**
+     * The minimum encoded length in bytes to attempt compression.
+     */
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Indicates if values cached before the codec are read.
+     */
+    private boolean legacyLookup = true;
+
+    /**
+     * The user account codec.
+     */
+    private UserAccountCodec codec =
+        new UserAccountCodec(DEFAULT_COMPRESSION_THRESHOLD);
+
+    /**
+     * The near cache.
+     */
+    private volatile LocalCache<String, CachedUser> localCache;
+
+    /**
+     * The near cache of negative entries.
+     */
+    private volatile LocalCache<String, Boolean> missingCache;
+
+    /**
+     * The namespace generation prepended to the cache keys.
+     */
+    private volatile long namespace;
+
+    /**
+     * The time the namespace generation was last checked in milliseconds.
+     */
+    private volatile long namespaceChecked;
+
+    /**
+     * The invalidated username prefixes and their invalidation times in
+     * milliseconds.
+     */
+    private volatile Map<String, Long> prefixes = Collections.emptyMap();
+
+    /**
+     * The memcache hit count.
+     */
+    private final AtomicLong remoteHits = new AtomicLong();
+
+    /**
+     * The memcache miss count.
+     */
+    private final AtomicLong remoteMisses = new AtomicLong();
+
+    /**
+     * The generation revalidation count.
+     */
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * The count of near cache entries found stale on revalidation.
+     */
+    private final AtomicLong staleEntries = new AtomicLong();
+
+    /**
+     * The negative entry hit count.
+     */
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    /**
+     * The count of scheduled refreshes.
+     */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the asynchronous memcache service.
+     *
+     * @return the asynchronous memcache service
+     */
+    public final AsyncMemcacheService getAsyncMemcacheService() {
+        return asyncMemcacheService;
+    }
+
+    /**
+     * Sets the asynchronous memcache service.
+     *
+     * @param asyncMemcacheService the asynchronous memcache service
+     */
+    public final void setAsyncMemcacheService(
+        final AsyncMemcacheService asyncMemcacheService) {
+        this.asyncMemcacheService = asyncMemcacheService;
+    }
+
+    /**
+     * Returns the cache metrics.
+     *
+     * @return the cache metrics
+     */
+    public final CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the cache metrics.
+     *
+     * @param metrics the cache metrics
+     */
+    public final void setMetrics(final CacheMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the near cache capacity.
+     *
+     * @return the near cache capacity
+     */
+    public final int getLocalCapacity() {
+        return localCapacity;
+    }
+
+    /**
+     * Sets the near cache capacity.
+     *
+     * @param localCapacity the near cache capacity
+     */
+    public final void setLocalCapacity(final int localCapacity) {
+        this.localCapacity = localCapacity;
+    }
+
+    /**
+     * Returns the near cache expiration in seconds.
+     *
+     * @return the near cache expiration
+     */
+    public final int getLocalExpiration() {
+        return localExpiration;
+    }
+
+    /**
+     * Sets the near cache expiration in seconds.
+     *
+     * @param localExpiration the near cache expiration
+     */
+    public final void setLocalExpiration(final int localExpiration) {
+        this.localExpiration = localExpiration;
+    }
+
+    /**
+     * Returns the generation revalidation interval in seconds.
+     *
+     * @return the revalidation interval
+     */
+    public final int getRevalidateInterval() {
+        return revalidateInterval;
+    }
+
+    /**
+     * Sets the generation revalidation interval in seconds.
+     *
+     * @param revalidateInterval the revalidation interval
+     */
+    public final void setRevalidateInterval(final int revalidateInterval) {
+        this.revalidateInterval = revalidateInterval;
+    }
+
+    /**
+     * Returns the negative entry expiration in seconds.
+     *
+     * @return the negative entry expiration
+     */
+    public final int getNegativeExpiration() {
+        return negativeExpiration;
+    }
+
+    /**
+     * Sets the negative entry expiration in seconds.
+     *
+     * @param negativeExpiration the negative entry expiration
+     */
+    public final void setNegativeExpiration(final int negativeExpiration) {
+        this.negativeExpiration = negativeExpiration;
+    }
+
+    /**
+     * Returns the number of recently active username slots.
+     *
+     * @return the number of slots
+     */
+    public final int getActiveSlots() {
+        return activeSlots;
+    }
+
+    /**
+     * Sets the number of recently active username slots.
+     *
+     * @param activeSlots the number of slots
+     */
+    public final void setActiveSlots(final int activeSlots) {
+        this.activeSlots = activeSlots;
+    }
+
+    /**
+     * Returns the refresh-ahead window in seconds before expiration.
+     *
+     * @return the refresh-ahead window
+     */
+    public final int getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Sets the refresh-ahead window in seconds before expiration.
+     *
+     * @param refreshAhead the refresh-ahead window
+     */
+    public final void setRefreshAhead(final int refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * Returns the number of reads after which an entry is considered hot.
+     *
+     * @return the hot threshold
+     */
+    public final int getHotThreshold() {
+        return hotThreshold;
+    }
+
+    /**
+     * Sets the number of reads after which an entry is considered hot.
+     *
+     * @param hotThreshold the hot threshold
+     */
+    public final void setHotThreshold(final int hotThreshold) {
+        this.hotThreshold = hotThreshold;
+    }
+
+    /**
+     * Returns the refresh task queue name.
+     *
+     * @return the refresh task queue name
+     */
+    public final String getRefreshTaskName() {
+        return refreshTaskName;
+    }
+
+    /**
+     * Sets the refresh task queue name.
+     *
+     * @param refreshTaskName the refresh task queue name
+     */
+    public final void setRefreshTaskName(final String refreshTaskName) {
+        this.refreshTaskName = refreshTaskName;
+    }
+
+    /**
+     * Returns the refresh task URL.
+     *
+     * @return the refresh task URL
+     */
+    public final String getRefreshTaskUrl() {
+        return refreshTaskUrl;
+    }
+
+    /**
+     * Sets the refresh task URL.
+     *
+     * @param refreshTaskUrl the refresh task URL
+     */
+    public final void setRefreshTaskUrl(final String refreshTaskUrl) {
+        this.refreshTaskUrl = refreshTaskUrl;
+    }
+
+    /**
+     * Returns the minimum encoded length in bytes to attempt compression.
+     *
+     * @return the compression threshold
+     */
+    public final int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets the minimum encoded length in bytes to attempt compression, or
+     * zero to disable compression.
+     *
+     * @param compressionThreshold the compression threshold
+     */
+    public final void setCompressionThreshold(final int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        this.codec = new UserAccountCodec(compressionThreshold);
+    }
+
+    /**
+     * Indicates if values cached before the codec are read.
+     *
+     * @return true if read; false otherwise
+     */
+    public final boolean isLegacyLookup() {
+        return legacyLookup;
+    }
+
+    /**
+     * Sets if values cached before the codec are read. Disable once those
+     * values have expired, an hour after the first deploy of the codec.
+     *
+     * @param legacyLookup true if read; false otherwise
+     */
+    public final void setLegacyLookup(final boolean legacyLookup) {
+        this.legacyLookup = legacyLookup;
+    }
+
+    /**
+     * Returns the cached user account for the given username.
+     *
+     * @param username the username
+     * @return the user account or null if not cached
+     */
+    public final UserAccount get(final String username) {
+        return get(username, Collections.<String>emptyList(), null);
+    }
+
+    /**
+     * Returns the cached user account for the given username. The given
+     * memcache keys are read in the same round trip as the user account and
+     * the values found are added to the given map, so a caller needing both
+     * waits for a single memcache call.
+     *
+     * @param username the username
+     * @param extraKeys the additional memcache keys
+     * @param extraValues the map to add the additional values to
+     * @return the user account or null if not cached
+     */
+    public final UserAccount get(final String username,
+        final Collection<String> extraKeys,
+        final Map<String, Object> extraValues) {
+        long start = metrics.start();
+        checkNamespace();
+
+        CachedUser cached = getLocalCache().get(username);
+
+        if (cached != null && isInvalidated(username, cached.written)) {
+            staleEntries.incrementAndGet();
+            getLocalCache().remove(username);
+            cached = null;
+        }
+
+        if (cached != null) {
+            final long now = System.currentTimeMillis();
+
+            if (now - cached.checked
+                < revalidateInterval * MILLIS_PER_SECOND) {
+                getAll(Collections.<String>emptyList(), extraKeys,
+                    extraValues);
+                touch(username, cached, now);
+                metrics.record(NEAR_GET, true, start);
+                return cached.user;
+            }
+
+            revalidations.incrementAndGet();
+
+            final String generationKey = generationKey(username);
+            final String writtenKey = writtenKey(username);
+            final Map<String, Object> stamps = getAll(
+                Arrays.asList(generationKey, writtenKey), extraKeys,
+                extraValues);
+            final Long generation = (Long) stamps.get(generationKey);
+
+            if (generation == null ? cached.generation == null
+                : generation.equals(cached.generation)) {
+                cached.checked = now;
+                cached.setWritten((Long) stamps.get(writtenKey));
+                touch(username, cached, now);
+                metrics.record(NEAR_GET, true, start);
+                return cached.user;
+            }
+
+            staleEntries.incrementAndGet();
+            getLocalCache().remove(username);
+        }
+
+        metrics.record(NEAR_GET, false, start);
+        start = metrics.start();
+
+        final String userKey = userKey(username);
+        final String generationKey = generationKey(username);
+        final String missingKey = missingKey(username);
+        final String writtenKey = writtenKey(username);
+        final String activeKey = activeKey(username);
+        final List<String> keys = new ArrayList<String>(Arrays.asList(
+            userKey, generationKey, missingKey, writtenKey, activeKey));
+
+        if (isLegacyKey(username)) {
+            keys.add(username);
+        }
+
+        final Map<String, Object> values =
+            getAll(keys, extraKeys, extraValues);
+        UserAccount user = codec.decode(values.get(userKey));
+
+        if (user == null && isLegacyKey(username)) {
+            user = codec.decode(values.get(username));
+
+            if (user != null) {
+                moveLegacy(user);
+            }
+        }
+
+        if (user != null
+            && isInvalidated(username, (Long) values.get(writtenKey))) {
+            memcacheService.delete(userKey);
+            user = null;
+        }
+
+        metrics.record(MEMCACHE_GET, user != null, start);
+
+        if (user == null) {
+            remoteMisses.incrementAndGet();
+
+            if (values.containsKey(missingKey)) {
+                getMissingCache().put(username, Boolean.TRUE);
+            }
+
+            return null;
+        }
+
+        remoteHits.incrementAndGet();
+        getLocalCache().put(username, new CachedUser(user,
+            (Long) values.get(generationKey),
+            (Long) values.get(writtenKey)));
+
+        if (!username.equals(values.get(activeKey))) {
+            PendingWrites.add(asyncMemcacheService.put(activeKey, username,
+                Expiration.byDeltaSeconds(DEFAULT_EXPIRATION)));
+        }
+
+        return user;
+    }
+
+    /**
+     * Indicates if the given username is known not to exist. Only the near
+     * cache is consulted, so no remote call is made.
+     *
+     * @param username the username
+     * @return true if known not to exist; false otherwise
+     */
+    public final boolean isMissing(final String username) {
+        if (getMissingCache().get(username) != null) {
+            negativeHits.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Records that the given username does not exist.
+     *
+     * @param username the username
+     */
+    public final void putMissing(final String username) {
+        getMissingCache().put(username, Boolean.TRUE);
+        memcacheService.put(missingKey(username), Boolean.TRUE,
+            Expiration.byDeltaSeconds(negativeExpiration));
+    }
+
+    /**
+     * Removes the negative entry for the given username. Within a
+     * transaction the removal is deferred until the transaction commits,
+     * like {@link #put(UserAccount)}, so a concurrent lookup which misses
+     * the uncommitted user cannot write the entry back afterwards.
+     *
+     * @param username the username
+     */
+    public final void removeMissing(final String username) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        deleteMissing(username);
+                    }
+                });
+        } else {
+            deleteMissing(username);
+        }
+    }
+
+    /**
+     * Deletes the negative entry for the given username from the near cache
+     * and memcache.
+     *
+     * @param username the username
+     */
+    private void deleteMissing(final String username) {
+        getMissingCache().remove(username);
+        memcacheService.delete(missingKey(username));
+    }
+
+    /**
+     * Removes the negative entries for the given usernames in a single
+     * call.
+     *
+     * @param usernames the usernames
+     */
+    public final void removeMissingAll(final Collection<String> usernames) {
+        final List<String> keys = new ArrayList<String>();
+
+        for (final String username : usernames) {
+            getMissingCache().remove(username);
+            keys.add(missingKey(username));
+        }
+
+        memcacheService.deleteAll(keys);
+    }
+
+
+    /**
+     * Caches a user account loaded from the datastore. An entry written
+     * concurrently by {@link #put(UserAccount)} is never overwritten.
+     *
+     * @param user the user account
+     */
+    public final void fill(final UserAccount user) {
+        final long start = metrics.start();
+
+        memcacheService.putAll(values(user),
+            Expiration.byDeltaSeconds(DEFAULT_EXPIRATION),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+        metrics.record(MEMCACHE_PUT, start);
+    }
+
+    /**
+     * Caches user accounts loaded from the datastore in a single call.
+     * Entries written concurrently by {@link #put(UserAccount)} are never
+     * overwritten.
+     *
+     * @param users the user accounts
+     */
+    public final void fillAll(final Collection<UserAccount> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+
+        final long start = metrics.start();
+        final Map<String, Object> values = new HashMap<String, Object>();
+
+        for (final UserAccount user : users) {
+            values.putAll(values(user));
+        }
+
+        memcacheService.putAll(values,
+            Expiration.byDeltaSeconds(DEFAULT_EXPIRATION),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+        metrics.record(MEMCACHE_PUT, start);
+    }
+
+    /**
+     * Returns the recently active usernames recorded in the given range of
+     * slots.
+     *
+     * @param from the first slot, inclusive
+     * @param to the last slot, exclusive
+     * @return the usernames
+     */
+    public final List<String> getActiveUsernames(final int from,
+        final int to) {
+        final List<String> keys = new ArrayList<String>();
+
+        for (int slot = from; slot < Math.min(to, activeSlots); slot++) {
+            keys.add(ACTIVE_PREFIX + slot);
+        }
+
+        final List<String> usernames = new ArrayList<String>();
+
+        for (final Object username : memcacheService.getAll(keys).values()) {
+            if (username instanceof String) {
+                usernames.add((String) username);
+            }
+        }
+
+        return usernames;
+    }
+
+    /**
+     * Reloads a cached user account ahead of its expiration. The reloaded
+     * value is only stored if no write happened while it was loaded.
+     *
+     * @param username the username
+     * @param loader the loader of the user account from the datastore
+     */
+    public final void refresh(final String username,
+        final Callable<UserAccount> loader) {
+        final String userKey = userKey(username);
+        final Expiration expiration =
+            Expiration.byDeltaSeconds(DEFAULT_EXPIRATION);
+
+        try {
+            final IdentifiableValue current =
+                memcacheService.getIdentifiable(userKey);
+            final UserAccount user = loader.call();
+
+            if (user == null) {
+                return;
+            }
+
+            final boolean stored;
+
+            if (current == null) {
+                stored = memcacheService.put(userKey, codec.encode(user),
+                    expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            } else {
+                stored = memcacheService.putIfUntouched(userKey, current,
+                    codec.encode(user), expiration);
+            }
+
+            if (stored) {
+                memcacheService.put(writtenKey(username),
+                    System.currentTimeMillis(), expiration);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            memcacheService.delete(refreshKey(username));
+        }
+    }
+
+    /**
+     * Caches a modified user account and bumps its generation so that near
+     * cache entries on every instance are invalidated. Within a transaction
+     * the write is deferred until the transaction commits, so a rolled back
+     * change is never cached. The write is issued asynchronously and
+     * completed by {@link PendingWrites#drain()} before the request ends.
+     *
+     * @param user the user account
+     */
+    public final void put(final UserAccount user) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        putAsync(user);
+                    }
+                });
+        } else {
+            putAsync(user);
+        }
+    }
+
+    /**
+     * Invalidates the cached user account for the given username by bumping
+     * its generation and removing its entries.
+     *
+     * @param username the username
+     */
+    public final void invalidate(final String username) {
+        final List<String> keys = new ArrayList<String>(Arrays.asList(
+            userKey(username), writtenKey(username), missingKey(username)));
+
+        if (isLegacyKey(username)) {
+            keys.add(username);
+        }
+
+        memcacheService.deleteAll(keys);
+        memcacheService.increment(generationKey(username), 1L,
+            System.currentTimeMillis());
+
+        getLocalCache().remove(username);
+        getMissingCache().remove(username);
+    }
+
+    /**
+     * Invalidates the cached user accounts whose username starts with the
+     * given prefix. Entries written before the invalidation are ignored and
+     * replaced on their next read.
+     *
+     * @param prefix the username prefix
+     */
+    @SuppressWarnings("unchecked")
+    public final void invalidatePrefix(final String prefix) {
+        final long now = System.currentTimeMillis();
+
+        for (int i = 0; i < MAX_PREFIX_ATTEMPTS; i++) {
+            final IdentifiableValue current =
+                memcacheService.getIdentifiable(PREFIXES_KEY);
+            final HashMap<String, Long> updated = new HashMap<String, Long>();
+
+            if (current != null && current.getValue() instanceof Map) {
+                updated.putAll((Map<String, Long>) current.getValue());
+            }
+
+            final Iterator<Long> times = updated.values().iterator();
+
+            while (times.hasNext()) {
+                if (now - times.next()
+                    > DEFAULT_EXPIRATION * MILLIS_PER_SECOND) {
+                    times.remove();
+                }
+            }
+
+            updated.put(prefix, now);
+
+            final boolean stored;
+
+            if (current == null) {
+                stored = memcacheService.put(PREFIXES_KEY, updated, null,
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            } else {
+                stored = memcacheService.putIfUntouched(PREFIXES_KEY,
+                    current, updated);
+            }
+
+            if (stored) {
+                prefixes = updated;
+                return;
+            }
+        }
+
+        invalidateAll();
+    }
+
+    /**
+     * Invalidates every cached user account by bumping the namespace
+     * generation. Entries of the previous generation are no longer read and
+     * expire on their own.
+     */
+    public final void invalidateAll() {
+        final Long generation = memcacheService.increment(NAMESPACE_KEY, 1L,
+            System.currentTimeMillis());
+
+        if (generation != null) {
+            setNamespace(generation);
+        }
+    }
+
+    /**
+     * Returns the namespace generation.
+     *
+     * @return the namespace generation
+     */
+    public final long getNamespace() {
+        checkNamespace();
+        return namespace;
+    }
+
+    /**
+     * Returns the near cache hit count.
+     *
+     * @return the near cache hit count
+     */
+    public final long getLocalHits() {
+        return getLocalCache().getHits();
+    }
+
+    /**
+     * Returns the near cache miss count.
+     *
+     * @return the near cache miss count
+     */
+    public final long getLocalMisses() {
+        return getLocalCache().getMisses();
+    }
+
+    /**
+     * Returns the memcache hit count.
+     *
+     * @return the memcache hit count
+     */
+    public final long getRemoteHits() {
+        return remoteHits.get();
+    }
+
+    /**
+     * Returns the memcache miss count.
+     *
+     * @return the memcache miss count
+     */
+    public final long getRemoteMisses() {
+        return remoteMisses.get();
+    }
+
+    /**
+     * Returns the generation revalidation count.
+     *
+     * @return the revalidation count
+     */
+    public final long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Returns the count of near cache entries found stale on revalidation.
+     *
+     * @return the stale entry count
+     */
+    public final long getStaleEntries() {
+        return staleEntries.get();
+    }
+
+    /**
+     * Returns the negative entry hit count.
+     *
+     * @return the negative entry hit count
+     */
+    public final long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Returns the count of scheduled refreshes.
+     *
+     * @return the refresh count
+     */
+    public final long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Issues the asynchronous write of a modified user account. The
+     * generation is only bumped once the value has been written, so other
+     * instances never pair the new generation with the old value.
+     *
+     * @param user the user account
+     */
+    private void putAsync(final UserAccount user) {
+        final String username = user.getUsername();
+        final String generationKey = generationKey(username);
+
+        getLocalCache().remove(username);
+
+        if (isLegacyKey(username)) {
+            PendingWrites.add(asyncMemcacheService.delete(username));
+        }
+
+        PendingWrites.add(asyncMemcacheService.putAll(values(user),
+            Expiration.byDeltaSeconds(DEFAULT_EXPIRATION)), new Runnable() {
+                @Override
+                public void run() {
+                    PendingWrites.add(asyncMemcacheService.increment(
+                        generationKey, 1L, System.currentTimeMillis()));
+                    getLocalCache().remove(username);
+                }
+            });
+    }
+
+    /**
+     * Indicates if the bare username is read as the key of a value cached
+     * before the codec. Usernames which clash with the other keys without a
+     * namespace are never used as keys.
+     *
+     * @param username the username
+     * @return true if the bare username is read; false otherwise
+     */
+    private boolean isLegacyKey(final String username) {
+        return legacyLookup && username.indexOf(':') < 0
+            && !NAMESPACE_KEY.equals(username)
+            && !PREFIXES_KEY.equals(username);
+    }
+
+    /**
+     * Moves a user account cached before the codec to the current format.
+     * The current entry is only added if absent and the legacy entry is
+     * removed, so it is read at most once. Both writes are asynchronous.
+     *
+     * @param user the user account
+     */
+    private void moveLegacy(final UserAccount user) {
+        PendingWrites.add(asyncMemcacheService.putAll(values(user),
+            Expiration.byDeltaSeconds(DEFAULT_EXPIRATION),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+        PendingWrites.add(asyncMemcacheService.delete(user.getUsername()));
+    }
+
+    /**
+     * Counts a read of the given near cache entry and schedules a refresh
+     * if the entry is hot and close to expiring.
+     *
+     * @param username the username
+     * @param cached the near cache entry
+     * @param now the current time in milliseconds
+     */
+    private void touch(final String username, final CachedUser cached,
+        final long now) {
+        final int reads = cached.reads.incrementAndGet();
+        final Long written = cached.written;
+
+        if (reads < hotThreshold || written == null
+            || now - written
+                < (DEFAULT_EXPIRATION - refreshAhead) * MILLIS_PER_SECOND
+            || !cached.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (memcacheService.put(refreshKey(username), Boolean.TRUE,
+            Expiration.byDeltaSeconds(REFRESH_LOCK_EXPIRATION),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            refreshes.incrementAndGet();
+            QueueFactory.getQueue(refreshTaskName).add(
+                TaskOptions.Builder.withUrl(refreshTaskUrl)
+                .param("username", username));
+        }
+    }
+
+    /**
+     * Reads the given memcache keys together with the additional keys and
+     * adds the additional values found to the given map.
+     *
+     * @param keys the memcache keys
+     * @param extraKeys the additional memcache keys
+     * @param extraValues the map to add the additional values to
+     * @return the values found
+     */
+    private Map<String, Object> getAll(final List<String> keys,
+        final Collection<String> extraKeys,
+        final Map<String, Object> extraValues) {
+        if (extraKeys.isEmpty()) {
+            if (keys.isEmpty()) {
+                return Collections.emptyMap();
+            }
+
+            return memcacheService.getAll(keys);
+        }
+
+        final List<String> allKeys = new ArrayList<String>(keys);
+        allKeys.addAll(extraKeys);
+
+        final Map<String, Object> values = memcacheService.getAll(allKeys);
+
+        for (final String key : extraKeys) {
+            if (values.containsKey(key)) {
+                extraValues.put(key, values.get(key));
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns the memcache values to write for the given user account.
+     *
+     * @param user the user account
+     * @return the memcache values
+     */
+    private Map<String, Object> values(final UserAccount user) {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put(userKey(user.getUsername()), codec.encode(user));
+        values.put(writtenKey(user.getUsername()),
+            System.currentTimeMillis());
+        values.put(activeKey(user.getUsername()), user.getUsername());
+
+        return values;
+    }
+
+    /**
+     * Reloads the namespace generation and the invalidated prefixes if they
+     * were not checked within the revalidation interval. A missing namespace
+     * generation is initialized with the current time so that it never goes
+     * back to an earlier generation.
+     */
+    @SuppressWarnings("unchecked")
+    private void checkNamespace() {
+        final long now = System.currentTimeMillis();
+
+        if (now - namespaceChecked < revalidateInterval * MILLIS_PER_SECOND) {
+            return;
+        }
+
+        namespaceChecked = now;
+
+        final Map<String, Object> values = memcacheService.getAll(
+            Arrays.asList(NAMESPACE_KEY, PREFIXES_KEY));
+        Long generation = (Long) values.get(NAMESPACE_KEY);
+
+        if (generation == null) {
+            generation = memcacheService.increment(NAMESPACE_KEY, 0L, now);
+        }
+
+        final Object invalidated = values.get(PREFIXES_KEY);
+
+        if (invalidated instanceof Map) {
+            prefixes = (Map<String, Long>) invalidated;
+        } else {
+            prefixes = Collections.emptyMap();
+        }
+
+        if (generation != null) {
+            setNamespace(generation);
+        }
+    }
+
+    /**
+     * Sets the namespace generation, clearing the near caches if it changed.
+     *
+     * @param generation the namespace generation
+     */
+    private void setNamespace(final long generation) {
+        namespaceChecked = System.currentTimeMillis();
+
+        if (generation != namespace) {
+            namespace = generation;
+            getLocalCache().clear();
+            getMissingCache().clear();
+        }
+    }
+
+    /**
+     * Indicates if a value written at the given time was invalidated by a
+     * prefix invalidation.
+     *
+     * @param username the username
+     * @param written the time the value was written in milliseconds
+     * @return true if invalidated; false otherwise
+     */
+    private boolean isInvalidated(final String username, final Long written) {
+        final long time = written == null ? 0L : written;
+
+        for (final Map.Entry<String, Long> entry : prefixes.entrySet()) {
+            if (username.startsWith(entry.getKey())
+                && time <= entry.getValue()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the given key in the current namespace generation.
+     *
+     * @param key the key
+     * @return the namespaced key
+     */
+    private String namespaced(final String key) {
+        checkNamespace();
+        return namespace + ":" + key;
+    }
+
+    /**
+     * Returns the near cache, creating it on first use.
+     *
+     * @return the near cache
+     */
+    private LocalCache<String, CachedUser> getLocalCache() {
+        LocalCache<String, CachedUser> cache = localCache;
+
+        if (cache == null) {
+            synchronized (this) {
+                cache = localCache;
+
+                if (cache == null) {
+                    cache = new LocalCache<String, CachedUser>(
+                        localCapacity, localExpiration);
+                    localCache = cache;
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the near cache of negative entries, creating it on first use.
+     *
+     * @return the near cache of negative entries
+     */
+    private LocalCache<String, Boolean> getMissingCache() {
+        LocalCache<String, Boolean> cache = missingCache;
+
+        if (cache == null) {
+            synchronized (this) {
+                cache = missingCache;
+
+                if (cache == null) {
+                    cache = new LocalCache<String, Boolean>(
+                        localCapacity, negativeExpiration);
+                    missingCache = cache;
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the memcache key for the given username.
+     *
+     * @param username the username
+     * @return the user key
+     */
+    private String userKey(final String username) {
+        return namespaced(USER_PREFIX + username);
+    }
+
+    /**
+     * Returns the memcache generation key for the given username.
+     *
+     * @param username the username
+     * @return the generation key
+     */
+    private String generationKey(final String username) {
+        return namespaced(GENERATION_PREFIX + username);
+    }
+
+    /**
+     * Returns the memcache negative entry key for the given username.
+     *
+     * @param username the username
+     * @return the negative entry key
+     */
+    private String missingKey(final String username) {
+        return namespaced(MISSING_PREFIX + username);
+    }
+
+    /**
+     * Returns the memcache written time key for the given username.
+     *
+     * @param username the username
+     * @return the written time key
+     */
+    private String writtenKey(final String username) {
+        return namespaced(WRITTEN_PREFIX + username);
+    }
+
+    /**
+     * Returns the memcache recently active slot key for the given username.
+     * Slot keys are not namespaced so that the recently active users are
+     * still known to the warmer after the namespace generation is bumped.
+     *
+     * @param username the username
+     * @return the slot key
+     */
+    private String activeKey(final String username) {
+        return ACTIVE_PREFIX + ((username.hashCode() & Integer.MAX_VALUE)
+            % activeSlots);
+    }
+
+    /**
+     * Returns the memcache refresh lock key for the given username.
+     *
+     * @param username the username
+     * @return the refresh lock key
+     */
+    private static String refreshKey(final String username) {
+        return REFRESH_PREFIX + username;
+    }
+
+    /**
+     * A near cache entry.
+     */
+    private static final class CachedUser {
+
+        /**
+         * The user account.
+         */
+        private final UserAccount user;
+
+        /**
+         * The generation the user account was read at.
+         */
+        private final Long generation;
+
+        /**
+         * The time the generation was last checked in milliseconds.
+         */
+        private volatile long checked;
+
+        /**
+         * The time the memcache value was written in milliseconds.
+         */
+        private volatile Long written;
+
+        /**
+         * The number of reads.
+         */
+        private final AtomicInteger reads = new AtomicInteger();
+
+        /**
+         * Indicates if a refresh was scheduled.
+         */
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * Creates a near cache entry.
+         *
+         * @param user the user account
+         * @param generation the generation
+         * @param written the time the memcache value was written
+         */
+        private CachedUser(final UserAccount user, final Long generation,
+            final Long written) {
+            this.user = user;
+            this.generation = generation;
+            this.written = written;
+            this.checked = System.currentTimeMillis();
+        }
+
+        /**
+         * Updates the time the memcache value was written, allowing another
+         * refresh once a newer value has been written.
+         *
+         * @param written the time the memcache value was written
+         */
+        private void setWritten(final Long written) {
+            if (written != null && !written.equals(this.written)) {
+                this.written = written;
+                refreshing.set(false);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * The user cache warmer. After a flush or the first start of a new version,
+ * the recently active usernames recorded by {@link UserCache} are split into
+ * fixed-size batches of slots. Each batch is loaded by a task with a single
+ * datastore get and cached with a single memcache put. Tasks are spaced out
+ * so the warmup does not compete with user requests. The first start of a
+ * version only queues a task named after the version, which starts the
+ * warmup and marks the version as warmed once the warmup is queued.
+ */
+@Service
+public class UserCacheWarmer {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(UserCacheWarmer.class);
+
+    /**
+     * The default number of slots per task.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The default delay between tasks in milliseconds.
+     */
+    private static final long DEFAULT_BATCH_DELAY = 1000L;
+
+    /**
+     * The default warmup lock expiration in seconds.
+     */
+    private static final int DEFAULT_LOCK_EXPIRATION = 60;
+
+    /**
+     * The warmup lock key.
+     */
+    private static final String LOCK_KEY = "warm:lock";
+
+    /**
+     * The warmed version key prefix.
+     */
+    private static final String VERSION_PREFIX = "warm:version:";
+
+    /**
+     * The deploy task name prefix.
+     */
+    private static final String DEPLOY_TASK_PREFIX = "warm-";
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The user cache.
+     */
+    private UserCache userCache;
+
+    /**
+     * The number of slots per task.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * The delay between tasks in milliseconds.
+     */
+    private long batchDelay = DEFAULT_BATCH_DELAY;
+
+    /**
+     * The warmup lock expiration in seconds.
+     */
+    private int lockExpiration = DEFAULT_LOCK_EXPIRATION;
+
+    /**
+     * The warm task queue name.
+     */
+    private String warmTaskName;
+
+    /**
+     * The warm task URL.
+     */
+    private String warmTaskUrl;
+
+    /**
+     * The deploy task URL.
+     */
+    private String deployTaskUrl;
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the user cache.
+     *
+     * @return the user cache
+     */
+    public final UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Sets the user cache.
+     *
+     * @param userCache the user cache
+     */
+    public final void setUserCache(final UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Returns the number of slots per task.
+     *
+     * @return the number of slots per task
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of slots per task.
+     *
+     * @param batchSize the number of slots per task
+     */
+    public final void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the delay between tasks in milliseconds.
+     *
+     * @return the delay between tasks in milliseconds
+     */
+    public final long getBatchDelay() {
+        return batchDelay;
+    }
+
+    /**
+     * Sets the delay between tasks in milliseconds.
+     *
+     * @param batchDelay the delay between tasks in milliseconds
+     */
+    public final void setBatchDelay(final long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Returns the warmup lock expiration in seconds.
+     *
+     * @return the warmup lock expiration in seconds
+     */
+    public final int getLockExpiration() {
+        return lockExpiration;
+    }
+
+    /**
+     * Sets the warmup lock expiration in seconds.
+     *
+     * @param lockExpiration the warmup lock expiration in seconds
+     */
+    public final void setLockExpiration(final int lockExpiration) {
+        this.lockExpiration = lockExpiration;
+    }
+
+    /**
+     * Returns the warm task queue name.
+     *
+     * @return the warm task queue name
+     */
+    public final String getWarmTaskName() {
+        return warmTaskName;
+    }
+
+    /**
+     * Sets the warm task queue name.
+     *
+     * @param warmTaskName the warm task queue name
+     */
+    public final void setWarmTaskName(final String warmTaskName) {
+        this.warmTaskName = warmTaskName;
+    }
+
+    /**
+     * Returns the warm task URL.
+     *
+     * @return the warm task URL
+     */
+    public final String getWarmTaskUrl() {
+        return warmTaskUrl;
+    }
+
+    /**
+     * Sets the warm task URL.
+     *
+     * @param warmTaskUrl the warm task URL
+     */
+    public final void setWarmTaskUrl(final String warmTaskUrl) {
+        this.warmTaskUrl = warmTaskUrl;
+    }
+
+    /**
+     * Returns the deploy task URL.
+     *
+     * @return the deploy task URL
+     */
+    public final String getDeployTaskUrl() {
+        return deployTaskUrl;
+    }
+
+    /**
+     * Sets the deploy task URL.
+     *
+     * @param deployTaskUrl the deploy task URL
+     */
+    public final void setDeployTaskUrl(final String deployTaskUrl) {
+        this.deployTaskUrl = deployTaskUrl;
+    }
+
+    /**
+     * Queues the task which warms the cache after the first start of the
+     * current version. The task is named after the version, so it is only
+     * queued once however many instances start. A failure to queue it is
+     * logged and does not fail the start; the next instance to start queues
+     * it again.
+     */
+    public final void warmOnDeploy() {
+        final String version = SystemProperty.applicationVersion.get();
+
+        if (version == null) {
+            return;
+        }
+
+        try {
+            QueueFactory.getQueue(warmTaskName).add(
+                TaskOptions.Builder.withUrl(deployTaskUrl)
+                .taskName(DEPLOY_TASK_PREFIX
+                    + version.replaceAll("[^A-Za-z0-9-]", "-"))
+                .param("version", version));
+        } catch (TaskAlreadyExistsException e) {
+            LOGGER.debug(String.format(
+                "User cache warmup of version %s already queued.", version));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to queue the user cache warmup.", e);
+        }
+    }
+
+    /**
+     * Warms the cache unless the given version was warmed already. The
+     * version is marked as warmed only once the warm tasks are queued, so a
+     * failure is retried with the task.
+     *
+     * @param version the application version
+     * @return the number of tasks queued
+     */
+    public final int warmDeploy(final String version) {
+        final String versionKey = VERSION_PREFIX + version;
+
+        if (memcacheService.contains(versionKey)) {
+            return 0;
+        }
+
+        final int count = warm();
+
+        memcacheService.put(versionKey, Boolean.TRUE);
+
+        return count;
+    }
+
+    /**
+     * Queues the tasks which warm the cache, unless a warmup was started
+     * within the lock expiration.
+     *
+     * @return the number of tasks queued
+     */
+    public final int warm() {
+        if (!memcacheService.put(LOCK_KEY, Boolean.TRUE,
+            Expiration.byDeltaSeconds(lockExpiration),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return 0;
+        }
+
+        final List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+
+        for (int from = 0; from < userCache.getActiveSlots();
+            from += batchSize) {
+            tasks.add(TaskOptions.Builder.withUrl(warmTaskUrl)
+                .param("from", String.valueOf(from))
+                .param("to", String.valueOf(from + batchSize))
+                .countdownMillis(tasks.size() * batchDelay));
+        }
+
+        QueueFactory.getQueue(warmTaskName).add(tasks);
+
+        return tasks.size();
+    }
+
+    /**
+     * Loads and caches the recently active users recorded in the given
+     * range of slots.
+     *
+     * @param from the first slot, inclusive
+     * @param to the last slot, exclusive
+     * @return the number of users cached
+     */
+    public final int warm(final int from, final int to) {
+        final List<Key> keys = new ArrayList<Key>();
+
+        for (final String username : userCache.getActiveUsernames(from, to)) {
+            keys.add(UserAccount.createKey(username));
+        }
+
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        final Map<Key, Entity> entities = datastoreService.get(keys);
+        final List<UserAccount> users = new ArrayList<UserAccount>();
+
+        for (final Entity entity : entities.values()) {
+            users.add(UserAccountMapper.toUserAccount(entity));
+        }
+
+        userCache.fillAll(users);
+
+        return users.size();
+    }
+
+}
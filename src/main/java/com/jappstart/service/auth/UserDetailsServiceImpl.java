@@ -19,8 +19,10 @@
 package com.jappstart.service.auth;
 
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -35,13 +37,18 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
-import com.google.appengine.api.memcache.Expiration;
-import com.google.appengine.api.memcache.MemcacheService;
 import com.jappstart.exception.DuplicateUserException;
+import com.jappstart.model.auth.ActivationKey;
 import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.CacheMetrics;
+import com.jappstart.service.cache.SingleFlight;
 
 /**
  * The user details service implementation.
@@ -50,20 +57,19 @@ import com.jappstart.model.auth.UserAccount;
 public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
 
     /**
-     * The default cache expiration in seconds.
+     * The datastore get metric name.
      */
-    private static final int DEFAULT_EXPIRATION = 3600;
+    private static final String DATASTORE_GET = "user.datastore.get";
 
     /**
-     * The username field name.
+     * The datastore put metric name.
      */
-    private static final String USERNAME = "username";
+    private static final String DATASTORE_PUT = "user.datastore.put";
 
     /**
-     * The select user query.
+     * The maximum number of attempts to activate a user.
      */
-    private static final String SELECT_USER =
-        "SELECT u FROM UserAccount u WHERE username = :username";
+    private static final int ACTIVATE_ATTEMPTS = 3;
 
     /**
      * The entity manager.
@@ -87,9 +93,50 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
     private DatastoreService datastoreService;
 
     /**
-     * The memcache service.
+     * The user cache.
      */
-    private MemcacheService memcacheService;
+    private UserCache userCache;
+
+    /**
+     * The username reservations.
+     */
+    private UsernameReservations usernameReservations;
+
+    /**
+     * The user leases.
+     */
+    private UserLeases userLeases;
+
+    /**
+     * The activation markers.
+     */
+    private ActivationMarkers activationMarkers;
+
+    /**
+     * The username filter.
+     */
+    private UsernameFilter usernameFilter;
+
+    /**
+     * Indicates if registrations are persisted behind the request.
+     */
+    private boolean writeBehind;
+
+    /**
+     * The registration queue.
+     */
+    private RegistrationQueue registrationQueue;
+
+    /**
+     * The cache metrics.
+     */
+    private CacheMetrics metrics;
+
+    /**
+     * The datastore loads in flight.
+     */
+    private final SingleFlight<String, UserAccount> loads =
+        new SingleFlight<String, UserAccount>();
 
     /**
      * Returns the mail task name.
@@ -147,22 +194,150 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
     }
 
     /**
-     * Returns the memcache service.
+     * Returns the user cache.
      *
-     * @return the memcache service
+     * @return the user cache
      */
-    public final MemcacheService getMemcacheService() {
-        return memcacheService;
+    public final UserCache getUserCache() {
+        return userCache;
     }
 
     /**
-     * Sets the memcache service.
+     * Sets the user cache.
      *
-     * @param memcacheService the memcache service
+     * @param userCache the user cache
      */
-    public final void setMemcacheService(
-        final MemcacheService memcacheService) {
-        this.memcacheService = memcacheService;
+    public final void setUserCache(final UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Returns the username reservations.
+     *
+     * @return the username reservations
+     */
+    public final UsernameReservations getUsernameReservations() {
+        return usernameReservations;
+    }
+
+    /**
+     * Sets the username reservations.
+     *
+     * @param usernameReservations the username reservations
+     */
+    public final void setUsernameReservations(
+        final UsernameReservations usernameReservations) {
+        this.usernameReservations = usernameReservations;
+    }
+
+    /**
+     * Returns the user leases.
+     *
+     * @return the user leases
+     */
+    public final UserLeases getUserLeases() {
+        return userLeases;
+    }
+
+    /**
+     * Sets the user leases.
+     *
+     * @param userLeases the user leases
+     */
+    public final void setUserLeases(final UserLeases userLeases) {
+        this.userLeases = userLeases;
+    }
+
+    /**
+     * Returns the activation markers.
+     *
+     * @return the activation markers
+     */
+    public final ActivationMarkers getActivationMarkers() {
+        return activationMarkers;
+    }
+
+    /**
+     * Sets the activation markers.
+     *
+     * @param activationMarkers the activation markers
+     */
+    public final void setActivationMarkers(
+        final ActivationMarkers activationMarkers) {
+        this.activationMarkers = activationMarkers;
+    }
+
+    /**
+     * Returns the username filter.
+     *
+     * @return the username filter
+     */
+    public final UsernameFilter getUsernameFilter() {
+        return usernameFilter;
+    }
+
+    /**
+     * Sets the username filter.
+     *
+     * @param usernameFilter the username filter
+     */
+    public final void setUsernameFilter(final UsernameFilter usernameFilter) {
+        this.usernameFilter = usernameFilter;
+    }
+
+    /**
+     * Indicates if registrations are persisted behind the request.
+     *
+     * @return true if write-behind; false otherwise
+     */
+    public final boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Sets if registrations are persisted behind the request.
+     *
+     * @param writeBehind true if write-behind; false otherwise
+     */
+    public final void setWriteBehind(final boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Returns the registration queue.
+     *
+     * @return the registration queue
+     */
+    public final RegistrationQueue getRegistrationQueue() {
+        return registrationQueue;
+    }
+
+    /**
+     * Sets the registration queue.
+     *
+     * @param registrationQueue the registration queue
+     */
+    public final void setRegistrationQueue(
+        final RegistrationQueue registrationQueue) {
+        this.registrationQueue = registrationQueue;
+    }
+
+    /**
+     * Returns the cache metrics.
+     *
+     * @return the cache metrics
+     */
+    public final CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the cache metrics.
+     *
+     * @param metrics the cache metrics
+     */
+    public final void setMetrics(final CacheMetrics metrics) {
+        this.metrics = metrics;
     }
 
     /**
@@ -173,24 +348,25 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
      */
     @Override
     public final UserDetails loadUserByUsername(final String username) {
-        final List<GrantedAuthority> authorities =
-            new ArrayList<GrantedAuthority>();
-        UserAccount user = (UserAccount) memcacheService.get(username);
+        final UserAccount user = findUser(username);
 
         if (user == null) {
-            final Query query = entityManager.createQuery(
-                "SELECT u FROM UserAccount u WHERE username = :username");
-            query.setParameter(USERNAME, username);
+            throw new UsernameNotFoundException("Username not found.");
+        }
 
-            try {
-                user = (UserAccount) query.getSingleResult();
+        return getUserDetails(user);
+    }
 
-                memcacheService.put(username, user,
-                    Expiration.byDeltaSeconds(DEFAULT_EXPIRATION));
-            } catch (NoResultException e) {
-                throw new UsernameNotFoundException("Username not found.", e);
-            }
-        }
+    /**
+     * Returns the user details for the given user account.
+     *
+     * @param user the user account
+     * @return the user details
+     */
+    @Override
+    public final UserDetails getUserDetails(final UserAccount user) {
+        final List<GrantedAuthority> authorities =
+            new ArrayList<GrantedAuthority>();
 
         authorities.add(new GrantedAuthorityImpl(user.getRole()));
 
@@ -209,28 +385,34 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
      */
     @Override
     public final UserAccount getUser(final String username) {
-        UserAccount user = (UserAccount) memcacheService.get(username);
-
-        if (user == null) {
-            final Query query = entityManager.createQuery(
-                "SELECT u FROM UserAccount u WHERE username = :username");
-            query.setParameter(USERNAME, username);
-
-            try {
-                user = (UserAccount) query.getSingleResult();
+        return findUser(username);
+    }
 
-                memcacheService.put(username, user,
-                    Expiration.byDeltaSeconds(DEFAULT_EXPIRATION));
-            } catch (NoResultException e) {
-                return null;
+    /**
+     * Reloads the cached user account for the given username from the
+     * datastore.
+     *
+     * @param username the username
+     */
+    @Override
+    public final void refreshUser(final String username) {
+        userCache.refresh(username, new Callable<UserAccount>() {
+            @Override
+            public UserAccount call() {
+                return entityManager.find(UserAccount.class,
+                    UserAccount.createKey(username));
             }
-        }
-
-        return user;
+        });
     }
 
     /**
-     * Adds a user.
+     * Adds a user. The username is reserved in memcache before the
+     * transactional existence check, so concurrent registrations of the
+     * same username fail fast instead of contending in the datastore. In
+     * write-behind mode the registration is handed to the registration
+     * queue and persisted later, keeping the username reserved until then.
+     * The cached user is written and its negative entry removed once the
+     * transaction commits.
      *
      * @param user the user
      * @param locale the locale
@@ -238,27 +420,45 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
     @Override
     @Transactional
     public final void addUser(final UserAccount user, final Locale locale) {
-        final UserAccount cachedUser = (UserAccount) memcacheService.get(
-            user.getUsername());
+        final UserAccount cachedUser = userCache.get(user.getUsername());
 
         if (cachedUser != null) {
             throw new DuplicateUserException();
         }
 
-        final Query query = entityManager.createQuery(
-            "SELECT u FROM UserAccount u WHERE username = :username");
-        query.setParameter(USERNAME, user.getUsername());
+        final boolean reserved;
 
-        @SuppressWarnings("unchecked")
-        final List results = query.getResultList();
-        if (results != null && !results.isEmpty()) {
+        if (writeBehind) {
+            reserved = registrationQueue.reserve(user);
+        } else {
+            reserved = usernameReservations.reserve(
+                user.getUsername());
+        }
+
+        if (!reserved) {
             throw new DuplicateUserException();
         }
 
+        if (entityManager.find(UserAccount.class, user.getKey()) != null) {
+            throw new DuplicateUserException();
+        }
+
+        usernameFilter.add(user.getUsername());
+
+        if (writeBehind) {
+            registrationQueue.accept(user, locale);
+            userCache.removeMissing(user.getUsername());
+            return;
+        }
+
+        final long start = metrics.start();
+        datastoreService.put(null,
+            UserAccountMapper.toActivationKey(user));
         entityManager.persist(user);
+        metrics.record(DATASTORE_PUT, start);
 
-        memcacheService.put(user.getUsername(), user,
-            Expiration.byDeltaSeconds(DEFAULT_EXPIRATION));
+        userCache.put(user);
+        userCache.removeMissing(user.getUsername());
 
         final TaskOptions taskOptions =
             TaskOptions.Builder.withUrl(mailTaskUrl)
@@ -270,31 +470,83 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
     }
 
     /**
-     * Activates the user with the given activation key.
+     * Activates the user with the given activation key. Keys already used
+     * are answered from memcache. Otherwise the user key is read from the
+     * activation key entity, falling back to a query for users registered
+     * before activation key entities were written, and the user is enabled
+     * in a transaction on its own entity group. The activation key entity
+     * is removed afterwards.
      *
      * @param key the activation key
      * @return true if successful; false otherwise
      */
     @Override
-    @Transactional
     public final boolean activateUser(final String key) {
-        final Query query = entityManager.createQuery(
-            "SELECT u FROM UserAccount u WHERE activationKey = :key");
-        query.setParameter("key", key);
+        if (activationMarkers.isActivated(key)) {
+            return true;
+        }
 
-        try {
-            final UserAccount user = (UserAccount) query.getSingleResult();
-            user.setEnabled(true);
+        final Key activationKey = ActivationKey.createKey(key);
+        Key userKey;
 
-            entityManager.persist(user);
+        long start = metrics.start();
 
-            memcacheService.put(user.getUsername(), user,
-                Expiration.byDeltaSeconds(DEFAULT_EXPIRATION));
+        try {
+            userKey = (Key) datastoreService.get(null, activationKey)
+                .getProperty("userKey");
+        } catch (EntityNotFoundException e) {
+            userKey = findUserKey(key);
+        }
 
-            return true;
-        } catch (NoResultException e) {
+        metrics.record(DATASTORE_GET, userKey != null, start);
+
+        if (userKey == null) {
             return false;
         }
+
+        for (int i = 0; i < ACTIVATE_ATTEMPTS; i++) {
+            start = metrics.start();
+
+            final Transaction txn = datastoreService.beginTransaction();
+
+            try {
+                final Entity entity = datastoreService.get(txn, userKey);
+
+                if (!key.equals(entity.getProperty("activationKey"))) {
+                    return false;
+                }
+
+                final boolean enable =
+                    !Boolean.TRUE.equals(entity.getProperty("enabled"));
+
+                if (enable) {
+                    entity.setProperty("enabled", Boolean.TRUE);
+                    datastoreService.put(txn, entity);
+                }
+
+                txn.commit();
+
+                if (enable) {
+                    metrics.record(DATASTORE_PUT, start);
+                }
+
+                userCache.put(UserAccountMapper.toUserAccount(entity));
+                activationMarkers.putActivated(key);
+                datastoreService.delete((Transaction) null, activationKey);
+
+                return true;
+            } catch (EntityNotFoundException e) {
+                return false;
+            } catch (ConcurrentModificationException e) {
+                continue;
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -305,20 +557,10 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
      */
     @Override
     public final boolean isActivationEmailSent(final String username) {
-        UserAccount user = (UserAccount) memcacheService.get(username);
+        final UserAccount user = findUser(username);
 
         if (user == null) {
-            final Query query = entityManager.createQuery(SELECT_USER);
-            query.setParameter(USERNAME, username);
-
-            try {
-                user = (UserAccount) query.getSingleResult();
-
-                memcacheService.put(username, user,
-                    Expiration.byDeltaSeconds(DEFAULT_EXPIRATION));
-            } catch (NoResultException e) {
-                throw new UsernameNotFoundException("Username not found.", e);
-            }
+            throw new UsernameNotFoundException("Username not found.");
         }
 
         return user.isActivationEmailSent();
@@ -332,19 +574,133 @@ public class UserDetailsServiceImpl implements EnhancedUserDetailsService {
     @Override
     @Transactional
     public final void activationEmailSent(final String username) {
-        final Query query = entityManager.createQuery(SELECT_USER);
-        query.setParameter(USERNAME, username);
+        final UserAccount user = entityManager.find(UserAccount.class,
+            UserAccount.createKey(username));
 
-        try {
-            final UserAccount user = (UserAccount) query.getSingleResult();
-            user.setActivationEmailSent(true);
+        if (user == null) {
+            throw new UsernameNotFoundException("Username not found.");
+        }
 
-            entityManager.persist(user);
+        user.setActivationEmailSent(true);
 
-            memcacheService.put(user.getUsername(), user,
-                Expiration.byDeltaSeconds(DEFAULT_EXPIRATION));
+        final long start = metrics.start();
+        entityManager.persist(user);
+        metrics.record(DATASTORE_PUT, start);
+
+        userCache.put(user);
+    }
+
+    /**
+     * Revokes every signed remember-me cookie issued for the given username.
+     *
+     * @param username the username
+     */
+    @Override
+    @Transactional
+    public final void revokeTokens(final String username) {
+        final UserAccount user = entityManager.find(UserAccount.class,
+            UserAccount.createKey(username));
+
+        if (user == null) {
+            throw new UsernameNotFoundException("Username not found.");
+        }
+
+        user.setTokenVersion(user.getTokenVersion() + 1);
+
+        final long start = metrics.start();
+        entityManager.persist(user);
+        metrics.record(DATASTORE_PUT, start);
+
+        userCache.put(user);
+    }
+
+    /**
+     * Returns the key of the user with the given activation key with a
+     * query on the activation key.
+     *
+     * @param key the activation key
+     * @return the user key or null if not found
+     */
+    private Key findUserKey(final String key) {
+        final Query query = entityManager.createQuery(
+            "SELECT u FROM UserAccount u WHERE activationKey = :key");
+        query.setParameter("key", key);
+
+        try {
+            return ((UserAccount) query.getSingleResult()).getKey();
         } catch (NoResultException e) {
-            throw new UsernameNotFoundException("Username not found.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the user account for the given username from the cache or, on
+     * a cache miss, with a get by key from the datastore. Unknown usernames
+     * are answered from negative entries, and the username filter avoids the
+     * datastore get for names which definitely do not exist.
+     *
+     * @param username the username
+     * @return the user account or null if not found
+     */
+    private UserAccount findUser(final String username) {
+        if (userCache.isMissing(username)) {
+            return null;
+        }
+
+        UserAccount user = userCache.get(username);
+
+        if (user == null) {
+            if (userCache.isMissing(username)) {
+                return null;
+            }
+
+            if (!usernameFilter.mightContain(username)) {
+                return null;
+            }
+
+            user = loads.execute(username, new Callable<UserAccount>() {
+                @Override
+                public UserAccount call() {
+                    return loadUser(username);
+                }
+            });
+        }
+
+        return user;
+    }
+
+    /**
+     * Loads the user account for the given username from the datastore and
+     * caches the result. When another instance holds the lease for the
+     * username, its result is awaited instead.
+     *
+     * @param username the username
+     * @return the user account or null if not found
+     */
+    private UserAccount loadUser(final String username) {
+        final boolean leased = userLeases.acquire(username);
+
+        if (!leased && userLeases.await(username)) {
+            return userCache.get(username);
+        }
+
+        try {
+            final long start = metrics.start();
+            final UserAccount user = entityManager.find(UserAccount.class,
+                UserAccount.createKey(username));
+            metrics.record(DATASTORE_GET, user != null, start);
+
+            if (user == null) {
+                userCache.putMissing(username);
+            } else {
+                userCache.fill(user);
+            }
+
+            return user;
+        } finally {
+            if (leased) {
+                userLeases.release(username);
+            }
         }
     }
 
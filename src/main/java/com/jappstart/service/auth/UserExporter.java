@@ -0,0 +1,265 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Exports user accounts as CSV or JSON lines. Users are read with a query
+ * in fixed-size pages and each page is written and flushed before the next
+ * one is read, so memory use does not depend on the number of users. When
+ * the request time is nearly up, the export stops after a page and ends
+ * with a continuation line holding the cursor to resume from: a
+ * <code>#cursor,</code> line in CSV or a <code>{"cursor":...}</code> line
+ * in JSON lines. Password hashes, salts and activation keys are not
+ * exported.
+ */
+@Service
+public class UserExporter {
+
+    /**
+     * The default number of users per page.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * The default maximum time of an export request in milliseconds.
+     */
+    private static final long DEFAULT_MAX_MILLIS = 25000L;
+
+    /**
+     * The exported properties in column order.
+     */
+    private static final String[] PROPERTIES = {"username", "email",
+        "displayName", "role", "enabled", "activationEmailSent",
+        "accountNonExpired", "accountNonLocked", "credentialsNonExpired"};
+
+    /**
+     * The JSON object mapper.
+     */
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The number of users per page.
+     */
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * The maximum time of an export request in milliseconds.
+     */
+    private long maxMillis = DEFAULT_MAX_MILLIS;
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the number of users per page.
+     *
+     * @return the number of users per page
+     */
+    public final int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the number of users per page.
+     *
+     * @param pageSize the number of users per page
+     */
+    public final void setPageSize(final int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the maximum time of an export request in milliseconds.
+     *
+     * @return the maximum time of an export request in milliseconds
+     */
+    public final long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Sets the maximum time of an export request in milliseconds.
+     *
+     * @param maxMillis the maximum time of an export request in milliseconds
+     */
+    public final void setMaxMillis(final long maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Exports users to the given writer, starting at the given cursor.
+     *
+     * @param out the writer
+     * @param format the format, {@link UserImporter#CSV} or
+     *        {@link UserImporter#JSON}
+     * @param cursor the web-safe cursor to resume from or null to start
+     * @return the number of users exported
+     * @throws IOException if the output fails
+     */
+    public final int export(final Writer out, final String format,
+        final String cursor) throws IOException {
+        final long start = System.currentTimeMillis();
+        final boolean json = UserImporter.JSON.equals(format);
+        final Query query = new Query(UserAccount.class.getSimpleName());
+        final FetchOptions options = FetchOptions.Builder.withLimit(pageSize)
+            .chunkSize(pageSize);
+        int count = 0;
+
+        if (cursor != null) {
+            options.startCursor(Cursor.fromWebSafeString(cursor));
+        } else if (!json) {
+            writeCsv(out, PROPERTIES);
+        }
+
+        while (true) {
+            final QueryResultList<Entity> page =
+                datastoreService.prepare(query).asQueryResultList(options);
+
+            for (final Entity entity : page) {
+                if (json) {
+                    writeJson(out, entity);
+                } else {
+                    final String[] values = new String[PROPERTIES.length];
+
+                    for (int i = 0; i < PROPERTIES.length; i++) {
+                        final Object value =
+                            entity.getProperty(PROPERTIES[i]);
+                        values[i] = value == null ? "" : value.toString();
+                    }
+
+                    writeCsv(out, values);
+                }
+            }
+
+            count += page.size();
+            out.flush();
+
+            if (page.size() < pageSize) {
+                return count;
+            }
+
+            final String next = page.getCursor().toWebSafeString();
+
+            if (System.currentTimeMillis() - start >= maxMillis) {
+                if (json) {
+                    final Map<String, String> line =
+                        new LinkedHashMap<String, String>();
+                    line.put("cursor", next);
+                    out.write(objectMapper.writeValueAsString(line));
+                    out.write('\n');
+                } else {
+                    writeCsv(out, new String[] {"#cursor", next});
+                }
+
+                out.flush();
+
+                return count;
+            }
+
+            options.startCursor(Cursor.fromWebSafeString(next));
+        }
+    }
+
+    /**
+     * Writes a user as a JSON line.
+     *
+     * @param out the writer
+     * @param entity the user entity
+     * @throws IOException if the output fails
+     */
+    private void writeJson(final Writer out, final Entity entity)
+        throws IOException {
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+        for (final String property : PROPERTIES) {
+            values.put(property, entity.getProperty(property));
+        }
+
+        out.write(objectMapper.writeValueAsString(values));
+        out.write('\n');
+    }
+
+    /**
+     * Writes a CSV line, quoting values which contain a comma, a double
+     * quote or a line break.
+     *
+     * @param out the writer
+     * @param values the values
+     * @throws IOException if the output fails
+     */
+    private static void writeCsv(final Writer out, final String[] values)
+        throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+
+            final String value = values[i];
+
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+
+        out.write('\n');
+    }
+
+}
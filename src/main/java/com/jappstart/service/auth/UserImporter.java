@@ -0,0 +1,1004 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.encoding.PasswordEncoder;
+import org.springframework.security.core.codec.Hex;
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Imports user accounts in bulk from CSV or JSON lines. Rows are parsed
+ * one at a time and written in batches: the user accounts and activation
+ * keys of a batch are written with one batch put and their activation
+ * e-mails are queued with one batch add. Every user account is its own
+ * entity group, so a batch is not written in a transaction. Usernames are
+ * reserved in the user cache before the existence check, as a registration
+ * does, so an import never overwrites a concurrent registration. Usernames
+ * which already exist or are reserved are skipped and reported, and the
+ * negative cache entries of imported usernames are removed. An import
+ * stops at a batch boundary when its time is up and reports the number of
+ * rows consumed as a checkpoint, from which it can be resumed. Imports of
+ * uploaded blobs resume themselves in a task.
+ *
+ * <p>Every import has a secret import key from which the activation key of
+ * each imported user is derived, so a batch retried with the same import
+ * key recognizes the user accounts it wrote before it failed: they are
+ * counted as imported and their activation e-mails are queued again. The
+ * activation e-mail tasks are named after the activation key, so an e-mail
+ * which was already queued is not queued twice.</p>
+ *
+ * <p>A CSV row is <code>username,email,displayName,password[,locale]</code>
+ * and a JSON line is an object with the same property names. A CSV file
+ * may start with a header row naming these columns, in any order; the
+ * header is not imported and counts as a row in the checkpoint.</p>
+ */
+@Service
+public class UserImporter {
+
+    /**
+     * The CSV format.
+     */
+    public static final String CSV = "csv";
+
+    /**
+     * The JSON lines format.
+     */
+    public static final String JSON = "json";
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(UserImporter.class);
+
+    /**
+     * The default number of users per batch. A batch put writes two
+     * entities per user and a batch add queues one task per user.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The default maximum time of an import request in milliseconds.
+     */
+    private static final long DEFAULT_MAX_MILLIS = 20000L;
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The column names in CSV order.
+     */
+    private static final String[] COLUMNS =
+        {"username", "email", "displayName", "password", "locale"};
+
+    /**
+     * The activation key HMAC algorithm.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * The import key length in bytes.
+     */
+    private static final int IMPORT_KEY_LENGTH = 16;
+
+    /**
+     * The activation e-mail task name prefix.
+     */
+    private static final String MAIL_TASK_PREFIX = "activate-";
+
+    /**
+     * The secure random.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The JSON object mapper.
+     */
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The username filter.
+     */
+    private UsernameFilter usernameFilter;
+
+    /**
+     * The user cache.
+     */
+    private UserCache userCache;
+
+    /**
+     * The username reservations.
+     */
+    private UsernameReservations usernameReservations;
+
+    /**
+     * The password encoder.
+     */
+    private PasswordEncoder passwordEncoder;
+
+    /**
+     * The number of users per batch.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * The maximum time of an import request in milliseconds.
+     */
+    private long maxMillis = DEFAULT_MAX_MILLIS;
+
+    /**
+     * The import task queue name.
+     */
+    private String importTaskName;
+
+    /**
+     * The import task URL.
+     */
+    private String importTaskUrl;
+
+    /**
+     * The mail task queue name.
+     */
+    private String mailTaskName;
+
+    /**
+     * The mail task URL.
+     */
+    private String mailTaskUrl;
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the username filter.
+     *
+     * @return the username filter
+     */
+    public final UsernameFilter getUsernameFilter() {
+        return usernameFilter;
+    }
+
+    /**
+     * Sets the username filter.
+     *
+     * @param usernameFilter the username filter
+     */
+    public final void setUsernameFilter(final UsernameFilter usernameFilter) {
+        this.usernameFilter = usernameFilter;
+    }
+
+    /**
+     * Returns the user cache.
+     *
+     * @return the user cache
+     */
+    public final UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Sets the user cache.
+     *
+     * @param userCache the user cache
+     */
+    public final void setUserCache(final UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Returns the username reservations.
+     *
+     * @return the username reservations
+     */
+    public final UsernameReservations getUsernameReservations() {
+        return usernameReservations;
+    }
+
+    /**
+     * Sets the username reservations.
+     *
+     * @param usernameReservations the username reservations
+     */
+    public final void setUsernameReservations(
+        final UsernameReservations usernameReservations) {
+        this.usernameReservations = usernameReservations;
+    }
+
+    /**
+     * Returns the password encoder.
+     *
+     * @return the password encoder
+     */
+    public final PasswordEncoder getPasswordEncoder() {
+        return passwordEncoder;
+    }
+
+    /**
+     * Sets the password encoder.
+     *
+     * @param passwordEncoder the password encoder
+     */
+    public final void setPasswordEncoder(
+        final PasswordEncoder passwordEncoder) {
+        this.passwordEncoder = passwordEncoder;
+    }
+
+    /**
+     * Returns the number of users per batch.
+     *
+     * @return the number of users per batch
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of users per batch.
+     *
+     * @param batchSize the number of users per batch
+     */
+    public final void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the maximum time of an import request in milliseconds.
+     *
+     * @return the maximum time of an import request in milliseconds
+     */
+    public final long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Sets the maximum time of an import request in milliseconds.
+     *
+     * @param maxMillis the maximum time of an import request in milliseconds
+     */
+    public final void setMaxMillis(final long maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Returns the import task queue name.
+     *
+     * @return the import task queue name
+     */
+    public final String getImportTaskName() {
+        return importTaskName;
+    }
+
+    /**
+     * Sets the import task queue name.
+     *
+     * @param importTaskName the import task queue name
+     */
+    public final void setImportTaskName(final String importTaskName) {
+        this.importTaskName = importTaskName;
+    }
+
+    /**
+     * Returns the import task URL.
+     *
+     * @return the import task URL
+     */
+    public final String getImportTaskUrl() {
+        return importTaskUrl;
+    }
+
+    /**
+     * Sets the import task URL.
+     *
+     * @param importTaskUrl the import task URL
+     */
+    public final void setImportTaskUrl(final String importTaskUrl) {
+        this.importTaskUrl = importTaskUrl;
+    }
+
+    /**
+     * Returns the mail task queue name.
+     *
+     * @return the mail task queue name
+     */
+    public final String getMailTaskName() {
+        return mailTaskName;
+    }
+
+    /**
+     * Sets the mail task queue name.
+     *
+     * @param mailTaskName the mail task queue name
+     */
+    public final void setMailTaskName(final String mailTaskName) {
+        this.mailTaskName = mailTaskName;
+    }
+
+    /**
+     * Returns the mail task URL.
+     *
+     * @return the mail task URL
+     */
+    public final String getMailTaskUrl() {
+        return mailTaskUrl;
+    }
+
+    /**
+     * Sets the mail task URL.
+     *
+     * @param mailTaskUrl the mail task URL
+     */
+    public final void setMailTaskUrl(final String mailTaskUrl) {
+        this.mailTaskUrl = mailTaskUrl;
+    }
+
+    /**
+     * Imports users from the given reader, skipping the rows before the
+     * checkpoint. A resumed or retried import must pass the import key of
+     * the first request.
+     *
+     * @param reader the reader
+     * @param format the format, {@link #CSV} or {@link #JSON}
+     * @param checkpoint the number of rows already imported
+     * @param locale the locale of rows without one
+     * @param importKey the import key or null to start a new import
+     * @return the import result
+     * @throws IOException if the input cannot be read
+     */
+    public final Result importUsers(final BufferedReader reader,
+        final String format, final long checkpoint, final String locale,
+        final String importKey) throws IOException {
+        final long start = System.currentTimeMillis();
+        final Result result = new Result(checkpoint,
+            importKey == null ? createImportKey() : importKey);
+        final List<Map<String, String>> rows =
+            new ArrayList<Map<String, String>>();
+        String[] columns = COLUMNS;
+        long row = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            final long index = row++;
+
+            if (index == 0 && !JSON.equals(format)) {
+                final String[] header = parseHeader(line);
+
+                if (header != null) {
+                    columns = header;
+
+                    if (index >= checkpoint) {
+                        result.rows++;
+                    }
+
+                    continue;
+                }
+            }
+
+            if (index < checkpoint) {
+                continue;
+            }
+
+            rows.add(parse(line, format, columns));
+
+            if (rows.size() == batchSize) {
+                write(rows, locale, result);
+                rows.clear();
+
+                if (System.currentTimeMillis() - start >= maxMillis) {
+                    result.finish(start, false);
+                    return result;
+                }
+            }
+        }
+
+        write(rows, locale, result);
+        result.finish(start, true);
+
+        return result;
+    }
+
+    /**
+     * Imports users from the given blob and queues a task to resume the
+     * import if it did not complete.
+     *
+     * @param blobKey the blob key
+     * @param format the format, {@link #CSV} or {@link #JSON}
+     * @param checkpoint the number of rows already imported
+     * @param locale the locale of rows without one
+     * @param importKey the import key
+     * @return the import result
+     * @throws IOException if the blob cannot be read
+     */
+    public final Result importBlob(final String blobKey, final String format,
+        final long checkpoint, final String locale, final String importKey)
+        throws IOException {
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new BlobstoreInputStream(
+                new BlobKey(blobKey)), "UTF-8"));
+        final Result result;
+
+        try {
+            result = importUsers(reader, format, checkpoint, locale,
+                importKey);
+        } finally {
+            reader.close();
+        }
+
+        if (!result.isComplete()) {
+            scheduleBlob(blobKey, format, result.getCheckpoint(), locale,
+                importKey);
+        }
+
+        LOGGER.info(String.format(
+            "Imported %d of %d rows of blob %s (%.1f rows/s).",
+            result.getImported(), result.getRows(), blobKey,
+            result.getRowsPerSecond()));
+
+        return result;
+    }
+
+    /**
+     * Queues a task to import users from the given blob.
+     *
+     * @param blobKey the blob key
+     * @param format the format, {@link #CSV} or {@link #JSON}
+     * @param checkpoint the number of rows already imported
+     * @param locale the locale of rows without one
+     * @param importKey the import key or null to start a new import
+     */
+    public final void scheduleBlob(final String blobKey, final String format,
+        final long checkpoint, final String locale, final String importKey) {
+        QueueFactory.getQueue(importTaskName).add(
+            TaskOptions.Builder.withUrl(importTaskUrl)
+            .param("blobKey", blobKey)
+            .param("format", format)
+            .param("checkpoint", String.valueOf(checkpoint))
+            .param("locale", locale)
+            .param("importKey",
+                importKey == null ? createImportKey() : importKey));
+    }
+
+    /**
+     * Creates a random import key.
+     *
+     * @return the hex encoded import key
+     */
+    private String createImportKey() {
+        final byte[] bytes = new byte[IMPORT_KEY_LENGTH];
+
+        random.nextBytes(bytes);
+
+        return String.valueOf(Hex.encode(bytes));
+    }
+
+    /**
+     * Writes a batch of parsed rows. A user account which exists with the
+     * activation key this import derives for it was written by an earlier
+     * attempt of the batch, so its activation e-mail is queued again. The
+     * e-mail tasks are named, so the e-mails queued by that attempt are
+     * not queued twice.
+     *
+     * @param rows the parsed rows, null for rows which could not be parsed
+     * @param locale the locale of rows without one
+     * @param result the import result to update
+     */
+    private void write(final List<Map<String, String>> rows,
+        final String locale, final Result result) {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        final Map<Key, UserAccount> users =
+            new LinkedHashMap<Key, UserAccount>();
+        final Map<Key, String> locales = new LinkedHashMap<Key, String>();
+
+        for (final Map<String, String> row : rows) {
+            final UserAccount user = toUserAccount(row, result.importKey);
+
+            if (user == null) {
+                result.invalid++;
+                continue;
+            }
+
+            if (users.containsKey(user.getKey())) {
+                result.duplicates++;
+                continue;
+            }
+
+            users.put(user.getKey(), user);
+            locales.put(user.getKey(), row.get("locale") == null
+                ? locale : row.get("locale"));
+        }
+
+        final List<String> candidates = new ArrayList<String>();
+
+        for (final UserAccount user : users.values()) {
+            candidates.add(user.getUsername());
+        }
+
+        final Set<String> reserved =
+            usernameReservations.reserveAll(candidates);
+
+        for (final Iterator<UserAccount> i = users.values().iterator();
+            i.hasNext();) {
+            if (!reserved.contains(i.next().getUsername())) {
+                result.reserved++;
+                i.remove();
+            }
+        }
+
+        final Map<Key, Entity> existing = datastoreService.get(users.keySet());
+        final List<Entity> entities = new ArrayList<Entity>();
+        final List<String> usernames = new ArrayList<String>();
+        final List<String> skipped = new ArrayList<String>();
+        final List<TaskOptions> mails = new ArrayList<TaskOptions>();
+
+        for (final UserAccount user : users.values()) {
+            final Entity entity = existing.get(user.getKey());
+
+            if (entity == null) {
+                entities.add(UserAccountMapper.toEntity(user));
+                entities.add(UserAccountMapper.toActivationKey(user));
+            } else if (!user.getActivationKey().equals(
+                entity.getProperty("activationKey"))) {
+                result.duplicates++;
+                skipped.add(user.getUsername());
+                continue;
+            }
+
+            usernames.add(user.getUsername());
+            mails.add(TaskOptions.Builder.withUrl(mailTaskUrl)
+                .taskName(MAIL_TASK_PREFIX + user.getActivationKey())
+                .param("username", user.getUsername())
+                .param("locale", locales.get(user.getKey())));
+        }
+
+        if (!skipped.isEmpty()) {
+            usernameReservations.releaseAll(skipped);
+        }
+
+        if (!usernames.isEmpty()) {
+            usernameFilter.addAll(usernames);
+
+            if (!entities.isEmpty()) {
+                try {
+                    datastoreService.put(entities);
+                } catch (RuntimeException e) {
+                    usernameReservations.releaseAll(usernames);
+                    throw e;
+                }
+            }
+
+            userCache.removeMissingAll(usernames);
+
+            try {
+                QueueFactory.getQueue(mailTaskName).add(mails);
+            } catch (TaskAlreadyExistsException e) {
+                LOGGER.debug("Skipped activation e-mails already queued.");
+            }
+        }
+
+        result.rows += rows.size();
+        result.imported += usernames.size();
+    }
+
+    /**
+     * Creates a user account from a parsed row, with the activation key
+     * derived from the import key.
+     *
+     * @param row the parsed row or null
+     * @param importKey the import key
+     * @return the user account or null if the row is invalid
+     */
+    private UserAccount toUserAccount(final Map<String, String> row,
+        final String importKey) {
+        if (row == null || isEmpty(row.get("username"))
+            || isEmpty(row.get("email")) || isEmpty(row.get("password"))) {
+            return null;
+        }
+
+        final UserAccount user = new UserAccount(row.get("username"));
+        user.setEmail(row.get("email"));
+        user.setDisplayName(row.get("displayName"));
+        user.setPassword(passwordEncoder.encodePassword(row.get("password"),
+            user.getSalt()));
+        user.setActivationKey(activationKey(importKey, user.getUsername()));
+
+        return user;
+    }
+
+    /**
+     * Derives the activation key of an imported user from the import key
+     * and the username.
+     *
+     * @param importKey the import key
+     * @param username the username
+     * @return the hex encoded activation key
+     */
+    private static String activationKey(final String importKey,
+        final String username) {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(importKey.getBytes("UTF-8"),
+                ALGORITHM));
+
+            return String.valueOf(Hex.encode(
+                mac.doFinal(username.getBytes("UTF-8"))));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses a row.
+     *
+     * @param line the line
+     * @param format the format
+     * @param columns the CSV column names
+     * @return the row values by column name or null if the line is invalid
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> parse(final String line,
+        final String format, final String[] columns) {
+        if (JSON.equals(format)) {
+            try {
+                final Map<String, String> row =
+                    new LinkedHashMap<String, String>();
+
+                for (final Map.Entry<String, Object> entry
+                    : ((Map<String, Object>) objectMapper.readValue(line,
+                        Map.class)).entrySet()) {
+                    if (entry.getValue() != null) {
+                        row.put(entry.getKey(),
+                            entry.getValue().toString());
+                    }
+                }
+
+                return row;
+            } catch (IOException e) {
+                return null;
+            } catch (ClassCastException e) {
+                return null;
+            }
+        }
+
+        final List<String> values = splitCsv(line);
+
+        if (values == null) {
+            return null;
+        }
+
+        final Map<String, String> row = new LinkedHashMap<String, String>();
+
+        for (int i = 0; i < values.size() && i < columns.length; i++) {
+            if (columns[i] != null && values.get(i).length() > 0) {
+                row.put(columns[i], values.get(i));
+            }
+        }
+
+        return row;
+    }
+
+    /**
+     * Parses a CSV header row. A line is a header if it names the username
+     * column and every other non-empty field names a known column. Fields
+     * which are empty are ignored on the following rows.
+     *
+     * @param line the line
+     * @return the column names in header order or null if the line is not
+     *         a header
+     */
+    private static String[] parseHeader(final String line) {
+        final List<String> values = splitCsv(line);
+
+        if (values == null) {
+            return null;
+        }
+
+        final String[] columns = new String[values.size()];
+        boolean username = false;
+
+        for (int i = 0; i < columns.length; i++) {
+            final String value = values.get(i);
+
+            if (value.length() == 0) {
+                continue;
+            }
+
+            for (final String column : COLUMNS) {
+                if (column.equalsIgnoreCase(value)) {
+                    columns[i] = column;
+                }
+            }
+
+            if (columns[i] == null) {
+                return null;
+            }
+
+            username |= "username".equals(columns[i]);
+        }
+
+        return username ? columns : null;
+    }
+
+    /**
+     * Splits a CSV line. Fields may be enclosed in double quotes, in which
+     * case a double quote is escaped by doubling it.
+     *
+     * @param line the line
+     * @return the fields or null if a quoted field is not terminated
+     */
+    private static List<String> splitCsv(final String line) {
+        final List<String> values = new ArrayList<String>();
+        final StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i + 1 < line.length()
+                    && line.charAt(i + 1) == '"') {
+                    value.append(c);
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+
+        if (quoted) {
+            return null;
+        }
+
+        values.add(value.toString().trim());
+
+        return values;
+    }
+
+    /**
+     * Indicates if the given value is null or empty.
+     *
+     * @param value the value
+     * @return true if empty; false otherwise
+     */
+    private static boolean isEmpty(final String value) {
+        return value == null || value.trim().length() == 0;
+    }
+
+    /**
+     * The result of an import request.
+     */
+    public static class Result {
+
+        /**
+         * The number of rows imported before this request.
+         */
+        private final long start;
+
+        /**
+         * The import key.
+         */
+        private final String importKey;
+
+        /**
+         * The number of rows read.
+         */
+        private long rows;
+
+        /**
+         * The number of user accounts imported.
+         */
+        private long imported;
+
+        /**
+         * The number of rows skipped because the username exists.
+         */
+        private long duplicates;
+
+        /**
+         * The number of rows skipped because the username is reserved by a
+         * concurrent registration.
+         */
+        private long reserved;
+
+        /**
+         * The number of invalid rows.
+         */
+        private long invalid;
+
+        /**
+         * Indicates if the input was read to the end.
+         */
+        private boolean complete;
+
+        /**
+         * The elapsed time in milliseconds.
+         */
+        private long elapsed;
+
+        /**
+         * Creates an import result.
+         *
+         * @param start the number of rows imported before this request
+         * @param importKey the import key
+         */
+        private Result(final long start, final String importKey) {
+            this.start = start;
+            this.importKey = importKey;
+        }
+
+        /**
+         * Completes the result.
+         *
+         * @param startMillis the start time in milliseconds
+         * @param complete true if the input was read to the end
+         */
+        private void finish(final long startMillis, final boolean complete) {
+            this.elapsed = System.currentTimeMillis() - startMillis;
+            this.complete = complete;
+        }
+
+        /**
+         * Returns the number of rows read.
+         *
+         * @return the number of rows read
+         */
+        public final long getRows() {
+            return rows;
+        }
+
+        /**
+         * Returns the number of user accounts imported.
+         *
+         * @return the number of user accounts imported
+         */
+        public final long getImported() {
+            return imported;
+        }
+
+        /**
+         * Returns the number of rows skipped because the username exists.
+         *
+         * @return the number of duplicate rows
+         */
+        public final long getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Returns the number of rows skipped because the username is
+         * reserved by a concurrent registration.
+         *
+         * @return the number of reserved rows
+         */
+        public final long getReserved() {
+            return reserved;
+        }
+
+        /**
+         * Returns the number of invalid rows.
+         *
+         * @return the number of invalid rows
+         */
+        public final long getInvalid() {
+            return invalid;
+        }
+
+        /**
+         * Returns the import key to resume or retry the import with.
+         *
+         * @return the import key
+         */
+        public final String getImportKey() {
+            return importKey;
+        }
+
+        /**
+         * Returns the checkpoint to resume the import from.
+         *
+         * @return the number of rows consumed
+         */
+        public final long getCheckpoint() {
+            return start + rows;
+        }
+
+        /**
+         * Indicates if the input was read to the end.
+         *
+         * @return true if complete; false otherwise
+         */
+        public final boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Returns the number of rows read per second.
+         *
+         * @return the rows per second
+         */
+        public final double getRowsPerSecond() {
+            return rows * (double) MILLIS_PER_SECOND / Math.max(1, elapsed);
+        }
+
+    }
+
+}
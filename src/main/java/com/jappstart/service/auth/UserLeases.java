@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * The user leases. Short-lived memcache leases let a single instance load a
+ * missing user from the datastore while other instances wait for it to be
+ * cached in the {@link UserCache}.
+ */
+@Service
+public class UserLeases {
+
+    /**
+     * The default lease expiration in seconds.
+     */
+    private static final int DEFAULT_LEASE_EXPIRATION = 5;
+
+    /**
+     * The default time to wait for a lease holder in milliseconds.
+     */
+    private static final long DEFAULT_LEASE_TIMEOUT = 500L;
+
+    /**
+     * The interval between polls for a lease holder in milliseconds.
+     */
+    private static final long LEASE_POLL_INTERVAL = 50L;
+
+    /**
+     * The lease key prefix.
+     */
+    private static final String LEASE_PREFIX = "lease:";
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The user cache.
+     */
+    private UserCache userCache;
+
+    /**
+     * The lease expiration in seconds.
+     */
+    private int leaseExpiration = DEFAULT_LEASE_EXPIRATION;
+
+    /**
+     * The time to wait for a lease holder in milliseconds.
+     */
+    private long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+
+    /**
+     * The count of lookups served by waiting for a lease holder.
+     */
+    private final AtomicLong leaseWaits = new AtomicLong();
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the user cache.
+     *
+     * @return the user cache
+     */
+    public final UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Sets the user cache.
+     *
+     * @param userCache the user cache
+     */
+    public final void setUserCache(final UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Returns the lease expiration in seconds.
+     *
+     * @return the lease expiration
+     */
+    public final int getLeaseExpiration() {
+        return leaseExpiration;
+    }
+
+    /**
+     * Sets the lease expiration in seconds.
+     *
+     * @param leaseExpiration the lease expiration
+     */
+    public final void setLeaseExpiration(final int leaseExpiration) {
+        this.leaseExpiration = leaseExpiration;
+    }
+
+    /**
+     * Returns the time to wait for a lease holder in milliseconds.
+     *
+     * @return the lease timeout
+     */
+    public final long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * Sets the time to wait for a lease holder in milliseconds.
+     *
+     * @param leaseTimeout the lease timeout
+     */
+    public final void setLeaseTimeout(final long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * Acquires the lease to load the given username from the datastore.
+     *
+     * @param username the username
+     * @return true if acquired; false if another caller holds the lease
+     */
+    public final boolean acquire(final String username) {
+        return memcacheService.put(leaseKey(username), Boolean.TRUE,
+            Expiration.byDeltaSeconds(leaseExpiration),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    /**
+     * Releases the lease to load the given username.
+     *
+     * @param username the username
+     */
+    public final void release(final String username) {
+        memcacheService.delete(leaseKey(username));
+    }
+
+    /**
+     * Waits for the lease holder to cache the given username.
+     *
+     * @param username the username
+     * @return true if the user account or a negative entry was cached within
+     *         the lease timeout; false otherwise
+     */
+    public final boolean await(final String username) {
+        final long deadline = System.currentTimeMillis() + leaseTimeout;
+
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LEASE_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            if (userCache.get(username) != null
+                || userCache.isMissing(username)) {
+                leaseWaits.incrementAndGet();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the count of lookups served by waiting for a lease holder.
+     *
+     * @return the lease wait count
+     */
+    public final long getLeaseWaits() {
+        return leaseWaits.get();
+    }
+
+    /**
+     * Returns the memcache lease key for the given username.
+     *
+     * @param username the username
+     * @return the lease key
+     */
+    private static String leaseKey(final String username) {
+        return LEASE_PREFIX + username;
+    }
+
+}
@@ -0,0 +1,541 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.BloomFilter;
+
+/**
+ * The username filter. A Bloom filter of existing usernames is shared through
+ * memcache and copied to each instance so that unknown usernames can be
+ * rejected without a datastore lookup. Additions are merged into the shared
+ * filter with compare-and-set so a rebuild never drops a concurrently added
+ * username. Every addition increments a version number kept beside the
+ * shared filter, and a negative answer is only trusted when the local copy
+ * is complete and carries the current version, so a stale copy on another
+ * instance never reports a new username as missing. The version is read
+ * before every negative answer; positive answers cost no memcache call.
+ */
+@Service
+public class UsernameFilter {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(UsernameFilter.class);
+
+    /**
+     * The default expected number of usernames.
+     */
+    private static final long DEFAULT_EXPECTED_INSERTIONS = 100000L;
+
+    /**
+     * The default false positive probability.
+     */
+    private static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * The default local copy refresh interval in seconds.
+     */
+    private static final int DEFAULT_REFRESH_INTERVAL = 60;
+
+    /**
+     * The rebuild lock expiration in seconds.
+     */
+    private static final int REBUILD_LOCK_EXPIRATION = 600;
+
+    /**
+     * The number of compare-and-set attempts.
+     */
+    private static final int CAS_ATTEMPTS = 5;
+
+    /**
+     * The datastore scan chunk size.
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The filter key.
+     */
+    private static final String FILTER_KEY = "filter:state";
+
+    /**
+     * The version key.
+     */
+    private static final String VERSION_KEY = "filter:version";
+
+    /**
+     * The rebuild lock key.
+     */
+    private static final String REBUILD_LOCK_KEY = "filter:rebuild";
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The expected number of usernames.
+     */
+    private long expectedInsertions = DEFAULT_EXPECTED_INSERTIONS;
+
+    /**
+     * The false positive probability.
+     */
+    private double falsePositiveProbability =
+        DEFAULT_FALSE_POSITIVE_PROBABILITY;
+
+    /**
+     * The local copy refresh interval in seconds.
+     */
+    private int refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    /**
+     * The rebuild task queue name.
+     */
+    private String rebuildTaskName;
+
+    /**
+     * The rebuild task URL.
+     */
+    private String rebuildTaskUrl;
+
+    /**
+     * The local copy of the filter or null if unavailable.
+     */
+    private volatile FilterState localFilter;
+
+    /**
+     * The time the local copy was refreshed in milliseconds.
+     */
+    private volatile long refreshed;
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the datastore service.
+     *
+     * @return the datastore service
+     */
+    public final DatastoreService getDatastoreService() {
+        return datastoreService;
+    }
+
+    /**
+     * Sets the datastore service.
+     *
+     * @param datastoreService the datastore service
+     */
+    public final void setDatastoreService(
+        final DatastoreService datastoreService) {
+        this.datastoreService = datastoreService;
+    }
+
+    /**
+     * Returns the expected number of usernames.
+     *
+     * @return the expected number of usernames
+     */
+    public final long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * Sets the expected number of usernames.
+     *
+     * @param expectedInsertions the expected number of usernames
+     */
+    public final void setExpectedInsertions(final long expectedInsertions) {
+        this.expectedInsertions = expectedInsertions;
+    }
+
+    /**
+     * Returns the false positive probability.
+     *
+     * @return the false positive probability
+     */
+    public final double getFalsePositiveProbability() {
+        return falsePositiveProbability;
+    }
+
+    /**
+     * Sets the false positive probability.
+     *
+     * @param falsePositiveProbability the false positive probability
+     */
+    public final void setFalsePositiveProbability(
+        final double falsePositiveProbability) {
+        this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    /**
+     * Returns the local copy refresh interval in seconds.
+     *
+     * @return the refresh interval
+     */
+    public final int getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Sets the local copy refresh interval in seconds.
+     *
+     * @param refreshInterval the refresh interval
+     */
+    public final void setRefreshInterval(final int refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns the rebuild task queue name.
+     *
+     * @return the rebuild task queue name
+     */
+    public final String getRebuildTaskName() {
+        return rebuildTaskName;
+    }
+
+    /**
+     * Sets the rebuild task queue name.
+     *
+     * @param rebuildTaskName the rebuild task queue name
+     */
+    public final void setRebuildTaskName(final String rebuildTaskName) {
+        this.rebuildTaskName = rebuildTaskName;
+    }
+
+    /**
+     * Returns the rebuild task URL.
+     *
+     * @return the rebuild task URL
+     */
+    public final String getRebuildTaskUrl() {
+        return rebuildTaskUrl;
+    }
+
+    /**
+     * Sets the rebuild task URL.
+     *
+     * @param rebuildTaskUrl the rebuild task URL
+     */
+    public final void setRebuildTaskUrl(final String rebuildTaskUrl) {
+        this.rebuildTaskUrl = rebuildTaskUrl;
+    }
+
+    /**
+     * Indicates if the given username might exist. Returns true whenever no
+     * complete filter is available or the local copy is out of date.
+     *
+     * @param username the username
+     * @return false if the username definitely does not exist; true otherwise
+     */
+    public final boolean mightContain(final String username) {
+        final long now = System.currentTimeMillis();
+
+        if (now - refreshed >= refreshInterval * MILLIS_PER_SECOND) {
+            refresh(now);
+        }
+
+        final FilterState state = localFilter;
+
+        if (state == null || state.filter.mightContain(username)) {
+            return true;
+        }
+
+        final Long version = (Long) memcacheService.get(VERSION_KEY);
+
+        if (version != null && version.longValue() == state.version) {
+            return false;
+        }
+
+        refreshed = 0L;
+        return true;
+    }
+
+    /**
+     * Adds the given username to the local copy and to the shared filter.
+     * Must be called before the user account is committed.
+     *
+     * @param username the username
+     */
+    public final void add(final String username) {
+        addAll(Collections.singletonList(username));
+    }
+
+    /**
+     * Adds the given usernames to the local copy and to the shared filter
+     * with a single compare-and-set. Must be called before the user accounts
+     * are committed.
+     *
+     * @param usernames the usernames
+     */
+    public final void addAll(final Collection<String> usernames) {
+        final long version = nextVersion();
+
+        synchronized (this) {
+            final FilterState local = localFilter;
+
+            if (local != null) {
+                final BloomFilter copy = new BloomFilter(local.filter);
+
+                for (final String username : usernames) {
+                    copy.put(username);
+                }
+
+                localFilter =
+                    new FilterState(copy, local.complete, local.version);
+            }
+        }
+
+        for (int i = 0; i < CAS_ATTEMPTS; i++) {
+            final IdentifiableValue value =
+                memcacheService.getIdentifiable(FILTER_KEY);
+
+            if (value == null) {
+                final FilterState state =
+                    new FilterState(newFilter(), false, version);
+
+                for (final String username : usernames) {
+                    state.filter.put(username);
+                }
+
+                if (memcacheService.put(FILTER_KEY, state, null,
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+                    return;
+                }
+            } else {
+                final FilterState state = (FilterState) value.getValue();
+
+                for (final String username : usernames) {
+                    state.filter.put(username);
+                }
+
+                if (memcacheService.putIfUntouched(FILTER_KEY, value,
+                    new FilterState(state.filter, state.complete,
+                        Math.max(state.version, version)))) {
+                    return;
+                }
+            }
+        }
+
+        LOGGER.warn("Username filter contended; discarding shared filter.");
+        memcacheService.delete(FILTER_KEY);
+        localFilter = null;
+    }
+
+    /**
+     * Rebuilds the shared filter from the usernames in the datastore. Names
+     * added while the scan runs are merged in from the shared filter. When
+     * they cannot be merged and the version changed during the scan, the
+     * result is stored as incomplete so that another rebuild follows.
+     *
+     * @return the number of usernames scanned
+     */
+    public final int rebuild() {
+        final Long started = (Long) memcacheService.get(VERSION_KEY);
+        final long startVersion;
+
+        if (started == null) {
+            startVersion = nextVersion();
+        } else {
+            startVersion = started.longValue();
+        }
+
+        final BloomFilter scanned = newFilter();
+        final Query query =
+            new Query(UserAccount.class.getSimpleName()).setKeysOnly();
+        int count = 0;
+
+        for (final Entity entity : datastoreService.prepare(query).asIterable(
+            FetchOptions.Builder.withChunkSize(CHUNK_SIZE))) {
+            scanned.put(entity.getKey().getName());
+            count++;
+        }
+
+        for (int i = 0; i < CAS_ATTEMPTS; i++) {
+            final BloomFilter filter = new BloomFilter(scanned);
+            final IdentifiableValue value =
+                memcacheService.getIdentifiable(FILTER_KEY);
+            final Long current = (Long) memcacheService.get(VERSION_KEY);
+            final boolean unchanged = current != null
+                && current.longValue() == startVersion;
+
+            if (value == null) {
+                if (memcacheService.put(FILTER_KEY,
+                    new FilterState(filter, unchanged, startVersion), null,
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+                    break;
+                }
+            } else {
+                final FilterState state = (FilterState) value.getValue();
+                final FilterState rebuilt;
+
+                if (filter.isCompatible(state.filter)) {
+                    filter.putAll(state.filter);
+                    rebuilt = new FilterState(filter, true,
+                        Math.max(state.version, startVersion));
+                } else {
+                    rebuilt = new FilterState(filter, unchanged,
+                        startVersion);
+                }
+
+                if (memcacheService.putIfUntouched(FILTER_KEY, value,
+                    rebuilt)) {
+                    break;
+                }
+            }
+        }
+
+        memcacheService.delete(REBUILD_LOCK_KEY);
+        refreshed = 0L;
+
+        return count;
+    }
+
+    /**
+     * Refreshes the local copy from the shared filter. A rebuild is
+     * scheduled when no complete shared filter exists.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void refresh(final long now) {
+        refreshed = now;
+
+        final FilterState state =
+            (FilterState) memcacheService.get(FILTER_KEY);
+
+        if (state != null && state.complete) {
+            localFilter = state;
+            return;
+        }
+
+        localFilter = null;
+
+        if (memcacheService.put(REBUILD_LOCK_KEY, Boolean.TRUE,
+            Expiration.byDeltaSeconds(REBUILD_LOCK_EXPIRATION),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            QueueFactory.getQueue(rebuildTaskName).add(
+                TaskOptions.Builder.withUrl(rebuildTaskUrl));
+        }
+    }
+
+    /**
+     * Increments the version. A version key lost from memcache is recreated
+     * from the current time so that it never repeats an earlier version.
+     *
+     * @return the new version
+     */
+    private long nextVersion() {
+        return memcacheService.increment(VERSION_KEY, 1L,
+            Long.valueOf(System.currentTimeMillis()));
+    }
+
+    /**
+     * Creates an empty filter with the configured sizing.
+     *
+     * @return the filter
+     */
+    private BloomFilter newFilter() {
+        return new BloomFilter(expectedInsertions, falsePositiveProbability);
+    }
+
+    /**
+     * The shared filter state.
+     */
+    @SuppressWarnings("serial")
+    private static final class FilterState implements Serializable {
+
+        /**
+         * The filter.
+         */
+        private final BloomFilter filter;
+
+        /**
+         * Indicates if the filter was built from a full scan.
+         */
+        private final boolean complete;
+
+        /**
+         * The version the filter is current for.
+         */
+        private final long version;
+
+        /**
+         * Creates the shared filter state.
+         *
+         * @param filter the filter
+         * @param complete true if built from a full scan
+         * @param version the version the filter is current for
+         */
+        private FilterState(final BloomFilter filter,
+            final boolean complete, final long version) {
+            this.filter = filter;
+            this.complete = complete;
+            this.version = version;
+        }
+
+    }
+
+}
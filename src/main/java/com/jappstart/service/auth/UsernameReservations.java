@@ -0,0 +1,231 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.
+    TransactionSynchronization;
+import org.springframework.transaction.support.
+    TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.
+    TransactionSynchronizationManager;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * The username reservations. A username is reserved in memcache with an
+ * add before a registration checks the datastore, so concurrent
+ * registrations of the same username fail fast instead of contending in
+ * the datastore.
+ */
+@Service
+public class UsernameReservations {
+
+    /**
+     * The default reservation expiration in seconds.
+     */
+    private static final int DEFAULT_RESERVATION_EXPIRATION = 30;
+
+    /**
+     * The reservation key prefix.
+     */
+    private static final String RESERVATION_PREFIX = "reserved:";
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The reservation expiration in seconds.
+     */
+    private int reservationExpiration = DEFAULT_RESERVATION_EXPIRATION;
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the reservation expiration in seconds.
+     *
+     * @return the reservation expiration
+     */
+    public final int getReservationExpiration() {
+        return reservationExpiration;
+    }
+
+    /**
+     * Sets the reservation expiration in seconds.
+     *
+     * @param reservationExpiration the reservation expiration
+     */
+    public final void setReservationExpiration(
+        final int reservationExpiration) {
+        this.reservationExpiration = reservationExpiration;
+    }
+
+    /**
+     * Reserves the given username for a registration. Only one caller can
+     * hold the reservation until it expires. If called within a transaction
+     * which is rolled back, the reservation is released so the username can
+     * be registered again right away.
+     *
+     * @param username the username
+     * @return true if reserved; false if the username is already reserved
+     */
+    public final boolean reserve(final String username) {
+        return reserve(username, reservationExpiration);
+    }
+
+    /**
+     * Reserves the given username for a registration for the given time.
+     *
+     * @param username the username
+     * @param expiration the reservation expiration in seconds
+     * @return true if reserved; false if the username is already reserved
+     * @see #reserve(String)
+     */
+    public final boolean reserve(final String username,
+        final int expiration) {
+        final boolean reserved = memcacheService.put(
+            reservationKey(username), Boolean.TRUE,
+            Expiration.byDeltaSeconds(expiration),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+        if (reserved
+            && TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCompletion(final int status) {
+                        if (status != TransactionSynchronization
+                            .STATUS_COMMITTED) {
+                            release(username);
+                        }
+                    }
+                });
+        }
+
+        return reserved;
+    }
+
+    /**
+     * Releases the reservation of the given username.
+     *
+     * @param username the username
+     */
+    public final void release(final String username) {
+        memcacheService.delete(reservationKey(username));
+    }
+
+    /**
+     * Reserves the given usernames for registrations in a single call. The
+     * reservations are not tied to a transaction; usernames which are not
+     * registered must be released with {@link #releaseAll(Collection)}.
+     *
+     * @param usernames the usernames
+     * @return the usernames reserved; the others are already reserved
+     */
+    public final Set<String> reserveAll(final Collection<String> usernames) {
+        final Map<String, Object> values = new HashMap<String, Object>();
+
+        for (final String username : usernames) {
+            values.put(reservationKey(username), Boolean.TRUE);
+        }
+
+        final Set<String> reserved = new HashSet<String>();
+
+        for (final String key : memcacheService.putAll(values,
+            Expiration.byDeltaSeconds(reservationExpiration),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            reserved.add(key.substring(RESERVATION_PREFIX.length()));
+        }
+
+        return reserved;
+    }
+
+    /**
+     * Holds the reservations of the given usernames for the given time in a
+     * single call, reserving them again if they have expired.
+     *
+     * @param usernames the usernames
+     * @param expiration the reservation expiration in seconds
+     */
+    public final void holdAll(final Collection<String> usernames,
+        final int expiration) {
+        final Map<String, Object> values = new HashMap<String, Object>();
+
+        for (final String username : usernames) {
+            values.put(reservationKey(username), Boolean.TRUE);
+        }
+
+        memcacheService.putAll(values, Expiration.byDeltaSeconds(expiration));
+    }
+
+    /**
+     * Releases the reservations of the given usernames in a single call.
+     *
+     * @param usernames the usernames
+     */
+    public final void releaseAll(final Collection<String> usernames) {
+        final List<String> keys = new ArrayList<String>();
+
+        for (final String username : usernames) {
+            keys.add(reservationKey(username));
+        }
+
+        memcacheService.deleteAll(keys);
+    }
+
+    /**
+     * Returns the memcache reservation key for the given username.
+     *
+     * @param username the username
+     * @return the reservation key
+     */
+    private static String reservationKey(final String username) {
+        return RESERVATION_PREFIX + username;
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.cache;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter of strings. A negative answer from
+ * {@link #mightContain(String)} is definite while a positive answer may be a
+ * false positive.
+ */
+@SuppressWarnings("serial")
+public class BloomFilter implements Serializable {
+
+    /**
+     * The number of bits in a word.
+     */
+    private static final int WORD_BITS = 64;
+
+    /**
+     * The FNV-1a 64 bit offset basis.
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /**
+     * The FNV-1a 64 bit prime.
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The first finalization multiplier.
+     */
+    private static final long MIX_1 = 0xff51afd7ed558ccdL;
+
+    /**
+     * The second finalization multiplier.
+     */
+    private static final long MIX_2 = 0xc4ceb9fe1a85ec53L;
+
+    /**
+     * The finalization shift.
+     */
+    private static final int MIX_SHIFT = 33;
+
+    /**
+     * The bits.
+     */
+    private final long[] bits;
+
+    /**
+     * The number of bits.
+     */
+    private final long size;
+
+    /**
+     * The number of hash functions.
+     */
+    private final int hashes;
+
+    /**
+     * Creates a Bloom filter sized for the given number of insertions and
+     * false positive probability.
+     *
+     * @param expectedInsertions the expected number of insertions
+     * @param falsePositiveProbability the false positive probability
+     */
+    public BloomFilter(final long expectedInsertions,
+        final double falsePositiveProbability) {
+        final long n = Math.max(1L, expectedInsertions);
+        final long m = (long) Math.ceil(-n * Math.log(falsePositiveProbability)
+            / (Math.log(2) * Math.log(2)));
+        final int words = (int) ((m + WORD_BITS - 1) / WORD_BITS);
+
+        this.bits = new long[words];
+        this.size = (long) words * WORD_BITS;
+        this.hashes = Math.max(1,
+            (int) Math.round((double) size / n * Math.log(2)));
+    }
+
+    /**
+     * Creates a copy of the given Bloom filter.
+     *
+     * @param filter the Bloom filter
+     */
+    public BloomFilter(final BloomFilter filter) {
+        this.bits = Arrays.copyOf(filter.bits, filter.bits.length);
+        this.size = filter.size;
+        this.hashes = filter.hashes;
+    }
+
+    /**
+     * Adds the given value.
+     *
+     * @param value the value
+     */
+    public final void put(final String value) {
+        final long hash = hash(value);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> Integer.SIZE);
+
+        for (int i = 1; i <= hashes; i++) {
+            final long index = index(h1 + i * h2);
+            bits[(int) (index / WORD_BITS)] |= 1L << (index % WORD_BITS);
+        }
+    }
+
+    /**
+     * Indicates if the given value might have been added.
+     *
+     * @param value the value
+     * @return false if definitely not added; true otherwise
+     */
+    public final boolean mightContain(final String value) {
+        final long hash = hash(value);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> Integer.SIZE);
+
+        for (int i = 1; i <= hashes; i++) {
+            final long index = index(h1 + i * h2);
+            if ((bits[(int) (index / WORD_BITS)]
+                & (1L << (index % WORD_BITS))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Indicates if the given Bloom filter has the same size and number of
+     * hash functions as this one.
+     *
+     * @param filter the Bloom filter
+     * @return true if compatible; false otherwise
+     */
+    public final boolean isCompatible(final BloomFilter filter) {
+        return size == filter.size && hashes == filter.hashes;
+    }
+
+    /**
+     * Adds all values of the given compatible Bloom filter.
+     *
+     * @param filter the Bloom filter
+     */
+    public final void putAll(final BloomFilter filter) {
+        if (!isCompatible(filter)) {
+            throw new IllegalArgumentException("Incompatible Bloom filter.");
+        }
+
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] |= filter.bits[i];
+        }
+    }
+
+    /**
+     * Maps a combined hash to a bit index.
+     *
+     * @param combinedHash the combined hash
+     * @return the bit index
+     */
+    private long index(final int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % size;
+    }
+
+    /**
+     * Returns the 64 bit FNV-1a hash of the UTF-8 bytes of the given value
+     * followed by a finalization mix.
+     *
+     * @param value the value
+     * @return the hash
+     */
+    private static long hash(final String value) {
+        final byte[] bytes;
+
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+
+        long hash = FNV_OFFSET;
+        for (final byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        hash ^= hash >>> MIX_SHIFT;
+        hash *= MIX_1;
+        hash ^= hash >>> MIX_SHIFT;
+        hash *= MIX_2;
+        hash ^= hash >>> MIX_SHIFT;
+
+        return hash;
+    }
+
+}
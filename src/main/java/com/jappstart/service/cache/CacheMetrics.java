@@ -0,0 +1,564 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * Records hit and miss counters and latency histograms for cache and
+ * datastore operations. Counts are kept per instance and periodically added
+ * to memcache counters so that they can be merged across instances.
+ */
+public class CacheMetrics {
+
+    /**
+     * The upper bounds of the latency buckets in milliseconds. The last
+     * bucket holds every latency above the last bound.
+     */
+    private static final long[] BUCKET_BOUNDS =
+        {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    /**
+     * The index of the hit counter.
+     */
+    private static final int HITS = 0;
+
+    /**
+     * The index of the miss counter.
+     */
+    private static final int MISSES = 1;
+
+    /**
+     * The index of the total latency in microseconds.
+     */
+    private static final int TOTAL = 2;
+
+    /**
+     * The index of the first latency bucket.
+     */
+    private static final int BUCKETS = 3;
+
+    /**
+     * The number of counters per metric.
+     */
+    private static final int COUNTERS = BUCKETS + BUCKET_BOUNDS.length + 1;
+
+    /**
+     * The default flush interval in seconds.
+     */
+    private static final int DEFAULT_FLUSH_INTERVAL = 60;
+
+    /**
+     * The memcache key prefix.
+     */
+    private static final String KEY_PREFIX = "metric:";
+
+    /**
+     * The nanoseconds per microsecond.
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * The microseconds per millisecond.
+     */
+    private static final long MICROS_PER_MILLI = 1000L;
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The memcache service.
+     */
+    private MemcacheService memcacheService;
+
+    /**
+     * The metric names always included in the merged metrics.
+     */
+    private List<String> names = Collections.emptyList();
+
+    /**
+     * The flush interval in seconds.
+     */
+    private int flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /**
+     * The metrics of this instance.
+     */
+    private final ConcurrentMap<String, Metric> metrics =
+        new ConcurrentHashMap<String, Metric>();
+
+    /**
+     * The time of the last flush in milliseconds.
+     */
+    private final AtomicLong lastFlush =
+        new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Returns the memcache service.
+     *
+     * @return the memcache service
+     */
+    public final MemcacheService getMemcacheService() {
+        return memcacheService;
+    }
+
+    /**
+     * Sets the memcache service.
+     *
+     * @param memcacheService the memcache service
+     */
+    public final void setMemcacheService(
+        final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+
+    /**
+     * Returns the metric names always included in the merged metrics.
+     *
+     * @return the metric names
+     */
+    public final List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Sets the metric names always included in the merged metrics.
+     *
+     * @param names the metric names
+     */
+    public final void setNames(final List<String> names) {
+        this.names = names;
+    }
+
+    /**
+     * Returns the flush interval in seconds.
+     *
+     * @return the flush interval
+     */
+    public final int getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Sets the flush interval in seconds.
+     *
+     * @param flushInterval the flush interval
+     */
+    public final void setFlushInterval(final int flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Returns the start time of an operation to pass to a record method.
+     *
+     * @return the start time in nanoseconds
+     */
+    public final long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records an operation which is neither a hit nor a miss.
+     *
+     * @param name the metric name
+     * @param start the start time returned by {@link #start()}
+     */
+    public final void record(final String name, final long start) {
+        record(name, -1, start);
+    }
+
+    /**
+     * Records an operation which is either a hit or a miss.
+     *
+     * @param name the metric name
+     * @param hit true if the operation was a hit; false otherwise
+     * @param start the start time returned by {@link #start()}
+     */
+    public final void record(final String name, final boolean hit,
+        final long start) {
+        record(name, hit ? HITS : MISSES, start);
+    }
+
+    /**
+     * Adds the counts recorded since the last flush to the memcache
+     * counters.
+     */
+    public final synchronized void flush() {
+        lastFlush.set(System.currentTimeMillis());
+
+        final Map<String, Long> offsets = new HashMap<String, Long>();
+
+        for (final Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            final Metric metric = entry.getValue();
+
+            for (int i = 0; i < COUNTERS; i++) {
+                final long delta =
+                    metric.counts.get(i) - metric.flushed.get(i);
+
+                if (delta != 0) {
+                    offsets.put(key(entry.getKey(), i), delta);
+                    metric.flushed.addAndGet(i, delta);
+                }
+            }
+        }
+
+        if (!offsets.isEmpty()) {
+            memcacheService.incrementAll(offsets, 0L);
+        }
+    }
+
+    /**
+     * Returns the metrics recorded by this instance.
+     *
+     * @return the metric snapshots
+     */
+    public final List<Snapshot> getLocal() {
+        final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+        for (final String name : getMetricNames()) {
+            final Metric metric = metrics.get(name);
+            final long[] counts = new long[COUNTERS];
+
+            if (metric != null) {
+                for (int i = 0; i < COUNTERS; i++) {
+                    counts[i] = metric.counts.get(i);
+                }
+            }
+
+            snapshots.add(new Snapshot(name, counts));
+        }
+
+        return snapshots;
+    }
+
+    /**
+     * Returns the metrics merged across all instances. The counts of this
+     * instance are flushed first.
+     *
+     * @return the metric snapshots
+     */
+    public final List<Snapshot> getMerged() {
+        flush();
+
+        final Set<String> metricNames = getMetricNames();
+        final List<String> keys = new ArrayList<String>();
+
+        for (final String name : metricNames) {
+            for (int i = 0; i < COUNTERS; i++) {
+                keys.add(key(name, i));
+            }
+        }
+
+        final Map<String, Object> values = memcacheService.getAll(keys);
+        final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+        for (final String name : metricNames) {
+            final long[] counts = new long[COUNTERS];
+
+            for (int i = 0; i < COUNTERS; i++) {
+                final Object value = values.get(key(name, i));
+
+                if (value instanceof Number) {
+                    counts[i] = ((Number) value).longValue();
+                }
+            }
+
+            snapshots.add(new Snapshot(name, counts));
+        }
+
+        return snapshots;
+    }
+
+    /**
+     * Records an operation.
+     *
+     * @param name the metric name
+     * @param counter the index of the counter to increment or -1 for none
+     * @param start the start time returned by {@link #start()}
+     */
+    private void record(final String name, final int counter,
+        final long start) {
+        final long micros = (System.nanoTime() - start) / NANOS_PER_MICRO;
+        final Metric metric = getMetric(name);
+
+        if (counter >= 0) {
+            metric.counts.incrementAndGet(counter);
+        }
+
+        metric.counts.addAndGet(TOTAL, micros);
+        metric.counts.incrementAndGet(bucket(micros / MICROS_PER_MILLI));
+
+        final long now = System.currentTimeMillis();
+        final long last = lastFlush.get();
+
+        if (now - last >= flushInterval * MILLIS_PER_SECOND
+            && lastFlush.compareAndSet(last, now)) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the metric with the given name, creating it on first use.
+     *
+     * @param name the metric name
+     * @return the metric
+     */
+    private Metric getMetric(final String name) {
+        Metric metric = metrics.get(name);
+
+        if (metric == null) {
+            final Metric created = new Metric();
+            metric = metrics.putIfAbsent(name, created);
+
+            if (metric == null) {
+                metric = created;
+            }
+        }
+
+        return metric;
+    }
+
+    /**
+     * Returns the configured metric names followed by any other metric
+     * names recorded by this instance.
+     *
+     * @return the metric names
+     */
+    private Set<String> getMetricNames() {
+        final Set<String> metricNames = new LinkedHashSet<String>(names);
+        metricNames.addAll(metrics.keySet());
+
+        return metricNames;
+    }
+
+    /**
+     * Returns the index of the bucket for the given latency.
+     *
+     * @param millis the latency in milliseconds
+     * @return the bucket index
+     */
+    private static int bucket(final long millis) {
+        int i = 0;
+
+        while (i < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[i]) {
+            i++;
+        }
+
+        return BUCKETS + i;
+    }
+
+    /**
+     * Returns the memcache key of the given counter.
+     *
+     * @param name the metric name
+     * @param counter the counter index
+     * @return the memcache key
+     */
+    private static String key(final String name, final int counter) {
+        return KEY_PREFIX + name + ":" + counter;
+    }
+
+    /**
+     * The counters of a metric.
+     */
+    private static final class Metric {
+
+        /**
+         * The counts.
+         */
+        private final AtomicLongArray counts = new AtomicLongArray(COUNTERS);
+
+        /**
+         * The counts already added to the memcache counters.
+         */
+        private final AtomicLongArray flushed = new AtomicLongArray(COUNTERS);
+
+    }
+
+    /**
+     * A point in time view of a metric.
+     */
+    public static final class Snapshot {
+
+        /**
+         * The metric name.
+         */
+        private final String name;
+
+        /**
+         * The counts.
+         */
+        private final long[] counts;
+
+        /**
+         * Creates a snapshot.
+         *
+         * @param name the metric name
+         * @param counts the counts
+         */
+        private Snapshot(final String name, final long[] counts) {
+            this.name = name;
+            this.counts = counts;
+        }
+
+        /**
+         * Returns the metric name.
+         *
+         * @return the metric name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of operations.
+         *
+         * @return the number of operations
+         */
+        public long getCount() {
+            long count = 0;
+
+            for (int i = BUCKETS; i < COUNTERS; i++) {
+                count += counts[i];
+            }
+
+            return count;
+        }
+
+        /**
+         * Returns the number of hits.
+         *
+         * @return the number of hits
+         */
+        public long getHits() {
+            return counts[HITS];
+        }
+
+        /**
+         * Returns the number of misses.
+         *
+         * @return the number of misses
+         */
+        public long getMisses() {
+            return counts[MISSES];
+        }
+
+        /**
+         * Returns the ratio of hits to hits and misses.
+         *
+         * @return the hit ratio or 0 if there were neither
+         */
+        public double getHitRatio() {
+            final long lookups = counts[HITS] + counts[MISSES];
+            return lookups == 0 ? 0 : (double) counts[HITS] / lookups;
+        }
+
+        /**
+         * Returns the mean latency in milliseconds.
+         *
+         * @return the mean latency
+         */
+        public double getMeanMillis() {
+            final long count = getCount();
+            return count == 0
+                ? 0 : (double) counts[TOTAL] / count / MICROS_PER_MILLI;
+        }
+
+        /**
+         * Returns the bucket bound below which half of the latencies fall.
+         *
+         * @return the median latency bound in milliseconds
+         */
+        public long getMedianMillis() {
+            return percentile(0.5);
+        }
+
+        /**
+         * Returns the bucket bound below which 99% of the latencies fall.
+         *
+         * @return the 99th percentile latency bound in milliseconds
+         */
+        public long getP99Millis() {
+            return percentile(0.99);
+        }
+
+        /**
+         * Returns the latency bucket counts keyed by their upper bound in
+         * milliseconds, with "+Inf" for the last bucket.
+         *
+         * @return the latency bucket counts
+         */
+        public Map<String, Long> getBuckets() {
+            final Map<String, Long> buckets =
+                new LinkedHashMap<String, Long>();
+
+            for (int i = 0; i <= BUCKET_BOUNDS.length; i++) {
+                buckets.put(i < BUCKET_BOUNDS.length
+                    ? String.valueOf(BUCKET_BOUNDS[i]) : "+Inf",
+                    counts[BUCKETS + i]);
+            }
+
+            return buckets;
+        }
+
+        /**
+         * Returns the upper bound of the bucket containing the given
+         * percentile, or -1 when it falls into the last bucket.
+         *
+         * @param percentile the percentile between 0 and 1
+         * @return the latency bound in milliseconds
+         */
+        private long percentile(final double percentile) {
+            final long count = getCount();
+            final long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+
+            if (count == 0) {
+                return 0;
+            }
+
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += counts[BUCKETS + i];
+
+                if (seen >= rank) {
+                    return BUCKET_BOUNDS[i];
+                }
+            }
+
+            return -1;
+        }
+
+    }
+
+}
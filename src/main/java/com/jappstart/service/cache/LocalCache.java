@@ -0,0 +1,249 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, in-process cache with per-entry expiration. Entries are evicted
+ * in least recently used order once the capacity is reached.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class LocalCache<K, V> {
+
+    /**
+     * The load factor of the backing map.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The maximum number of entries.
+     */
+    private final int capacity;
+
+    /**
+     * The time to live in milliseconds.
+     */
+    private final long timeToLive;
+
+    /**
+     * The backing map in access order.
+     */
+    private final Map<K, CacheEntry<V>> map;
+
+    /**
+     * The hit count.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The miss count.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The eviction count.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a local cache.
+     *
+     * @param capacity the maximum number of entries
+     * @param timeToLive the time to live in seconds
+     */
+    @SuppressWarnings("serial")
+    public LocalCache(final int capacity, final int timeToLive) {
+        this.capacity = capacity;
+        this.timeToLive = timeToLive * MILLIS_PER_SECOND;
+        this.map = new LinkedHashMap<K, CacheEntry<V>>(
+            (int) (capacity / LOAD_FACTOR) + 1, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > LocalCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the value for the given key.
+     *
+     * @param key the key
+     * @return the value or null if absent or expired
+     */
+    public final V get(final K key) {
+        final CacheEntry<V> entry;
+
+        synchronized (map) {
+            entry = map.get(key);
+
+            if (entry != null && entry.isExpired()) {
+                map.remove(key);
+                evictions.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Puts the value for the given key.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public final void put(final K key, final V value) {
+        final CacheEntry<V> entry = new CacheEntry<V>(value,
+            System.currentTimeMillis() + timeToLive);
+
+        synchronized (map) {
+            map.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the value for the given key.
+     *
+     * @param key the key
+     */
+    public final void remove(final K key) {
+        synchronized (map) {
+            map.remove(key);
+        }
+    }
+
+    /**
+     * Removes all values.
+     */
+    public final void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public final int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * Returns the capacity.
+     *
+     * @return the capacity
+     */
+    public final int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the hit count.
+     *
+     * @return the hit count
+     */
+    public final long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the miss count.
+     *
+     * @return the miss count
+     */
+    public final long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the eviction count.
+     *
+     * @return the eviction count
+     */
+    public final long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * A cache entry.
+     *
+     * @param <V> the value type
+     */
+    private static final class CacheEntry<V> {
+
+        /**
+         * The value.
+         */
+        private final V value;
+
+        /**
+         * The expiration time in milliseconds.
+         */
+        private final long expires;
+
+        /**
+         * Creates a cache entry.
+         *
+         * @param value the value
+         * @param expires the expiration time in milliseconds
+         */
+        private CacheEntry(final V value, final long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        /**
+         * Indicates if the entry has expired.
+         *
+         * @return true if expired; false otherwise
+         */
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+
+    }
+
+}
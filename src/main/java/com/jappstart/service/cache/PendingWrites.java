@@ -0,0 +1,168 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the asynchronous cache writes issued by the current thread so that
+ * they can be completed before the request ends. A write may have a
+ * follow-up action which is only issued once the write has completed.
+ */
+public final class PendingWrites {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(PendingWrites.class);
+
+    /**
+     * The pending writes of the current thread.
+     */
+    private static final ThreadLocal<List<Pending>> PENDING =
+        new ThreadLocal<List<Pending>>() {
+            @Override
+            protected List<Pending> initialValue() {
+                return new ArrayList<Pending>();
+            }
+        };
+
+    /**
+     * Prevents instantiation.
+     */
+    private PendingWrites() {
+    }
+
+    /**
+     * Adds a pending write.
+     *
+     * @param future the future of the write
+     */
+    public static void add(final Future<?> future) {
+        add(future, null);
+    }
+
+    /**
+     * Adds a pending write with an action to run once it has completed.
+     *
+     * @param future the future of the write
+     * @param then the action to run once the write has completed or null
+     */
+    public static void add(final Future<?> future, final Runnable then) {
+        PENDING.get().add(new Pending(future, then));
+    }
+
+    /**
+     * Returns the result of a completed write, for use by its follow-up
+     * action. A failure has already been logged by {@link #drain()}.
+     *
+     * @param <T> the result type
+     * @param future the future of the completed write
+     * @return the result or null if the write failed
+     */
+    public static <T> T result(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of pending writes of the current thread.
+     *
+     * @return the number of pending writes
+     */
+    public static int size() {
+        return PENDING.get().size();
+    }
+
+    /**
+     * Waits for the pending writes of the current thread, running their
+     * follow-up actions, and logs any failure. Writes added by follow-up
+     * actions are completed as well.
+     */
+    public static void drain() {
+        final List<Pending> pending = PENDING.get();
+
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                final Pending write = pending.get(i);
+
+                try {
+                    write.future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.warn("Interrupted while completing a cache write.");
+                } catch (ExecutionException e) {
+                    LOGGER.warn("Cache write failed.", e.getCause());
+                }
+
+                if (write.then != null) {
+                    try {
+                        write.then.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Cache write follow-up failed.", e);
+                    }
+                }
+            }
+        } finally {
+            PENDING.remove();
+        }
+    }
+
+    /**
+     * A pending write.
+     */
+    private static final class Pending {
+
+        /**
+         * The future of the write.
+         */
+        private final Future<?> future;
+
+        /**
+         * The action to run once the write has completed.
+         */
+        private final Runnable then;
+
+        /**
+         * Creates a pending write.
+         *
+         * @param future the future of the write
+         * @param then the action to run once the write has completed
+         */
+        private Pending(final Future<?> future, final Runnable then) {
+            this.future = future;
+            this.then = then;
+        }
+
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent loads of the same key into a single load. The first
+ * caller for a key runs the loader while later callers wait for its result.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * The loads in flight.
+     */
+    private final ConcurrentMap<K, FutureTask<V>> loads =
+        new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * The count of loads run.
+     */
+    private final AtomicLong executions = new AtomicLong();
+
+    /**
+     * The count of callers which shared another caller's load.
+     */
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Returns the value for the given key, running the loader only if no
+     * load for the key is already in flight.
+     *
+     * @param key the key
+     * @param loader the loader
+     * @return the value
+     */
+    public final V execute(final K key, final Callable<V> loader) {
+        final FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> load = loads.putIfAbsent(key, task);
+
+        if (load == null) {
+            load = task;
+            executions.incrementAndGet();
+
+            try {
+                task.run();
+            } finally {
+                loads.remove(key, task);
+            }
+        } else {
+            shared.incrementAndGet();
+        }
+
+        return await(load);
+    }
+
+    /**
+     * Returns the count of loads run.
+     *
+     * @return the count of loads run
+     */
+    public final long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Returns the count of callers which shared another caller's load.
+     *
+     * @return the count of shared loads
+     */
+    public final long getShared() {
+        return shared.get();
+    }
+
+    /**
+     * Waits for the given load and returns its value.
+     *
+     * @param load the load
+     * @return the value
+     */
+    private V await(final FutureTask<V> load) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
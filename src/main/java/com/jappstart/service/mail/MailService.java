@@ -20,6 +20,8 @@ package com.jappstart.service.mail;
 
 import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -37,7 +39,9 @@ import org.springframework.stereotype.Service;
 import com.jappstart.model.auth.UserAccount;
 
 /**
- * The mail service.
+ * The mail service. The activation mail is compiled once per locale into
+ * templates with the hostname already substituted, so sending only fills
+ * in the activation key.
  */
 @Service
 public class MailService {
@@ -55,6 +59,18 @@ public class MailService {
      */
     private MessageSource messageSource;
 
+    /**
+     * The mail session.
+     */
+    private final Session session =
+        Session.getDefaultInstance(new Properties(), null);
+
+    /**
+     * The compiled activation templates keyed by locale.
+     */
+    private final ConcurrentMap<String, ActivationTemplates> templates =
+        new ConcurrentHashMap<String, ActivationTemplates>();
+
     /**
      * Gets the from address.
      *
@@ -89,6 +105,7 @@ public class MailService {
      */
     public final void setHostname(final String hostname) {
         this.hostname = hostname;
+        templates.clear();
     }
 
     /**
@@ -107,6 +124,7 @@ public class MailService {
      */
     public final void setMessageSource(final MessageSource messageSource) {
         this.messageSource = messageSource;
+        templates.clear();
     }
 
     /**
@@ -119,8 +137,21 @@ public class MailService {
     public final void sendActivationEmail(final UserAccount user,
         final String locale)
         throws MessagingException {
-        final Properties props = new Properties();
-        final Session session = Session.getDefaultInstance(props, null);
+        Transport.send(createActivationEmail(user, locale));
+    }
+
+    /**
+     * Creates the activation e-mail for the given user.
+     *
+     * @param user the user
+     * @param locale the locale
+     * @return the message
+     * @throws MessagingException messaging exception
+     */
+    public final Message createActivationEmail(final UserAccount user,
+        final String locale) throws MessagingException {
+        final ActivationTemplates activation = getTemplates(locale);
+        final String[] args = {null, user.getActivationKey()};
         final Message message = new MimeMessage(session);
         final Multipart multipart = new MimeMultipart();
         final MimeBodyPart htmlPart = new MimeBodyPart();
@@ -130,22 +161,78 @@ public class MailService {
         message.addRecipient(Message.RecipientType.TO,
             new InternetAddress(user.getEmail()));
 
-        message.setSubject(messageSource.getMessage("mail.subject", null,
-            new Locale(locale)));
-
-        textPart.setContent(messageSource.getMessage("mail.body.txt",
-            new Object[] {getHostname(), user.getActivationKey()},
-            new Locale(locale)), "text/plain");
-
-        htmlPart.setContent(messageSource.getMessage("mail.body.html",
-            new Object[] {getHostname(), user.getActivationKey()},
-            new Locale(locale)), "text/html");
+        message.setSubject(activation.subject.render(args));
+        textPart.setContent(activation.text.render(args), "text/plain");
+        htmlPart.setContent(activation.html.render(args), "text/html");
 
         multipart.addBodyPart(textPart);
         multipart.addBodyPart(htmlPart);
         message.setContent(multipart);
 
-        Transport.send(message);
+        return message;
+    }
+
+    /**
+     * Returns the activation templates for the given locale, compiling
+     * them on first use.
+     *
+     * @param locale the locale
+     * @return the activation templates
+     */
+    private ActivationTemplates getTemplates(final String locale) {
+        ActivationTemplates activation = templates.get(locale);
+
+        if (activation == null) {
+            final Locale parsed = new Locale(locale);
+            final Object[] args = {getHostname(), null};
+
+            activation = new ActivationTemplates(
+                MailTemplate.compile(messageSource, "mail.subject",
+                    new Object[0], parsed),
+                MailTemplate.compile(messageSource, "mail.body.txt", args,
+                    parsed),
+                MailTemplate.compile(messageSource, "mail.body.html", args,
+                    parsed));
+            templates.putIfAbsent(locale, activation);
+        }
+
+        return activation;
+    }
+
+    /**
+     * The compiled templates of the activation e-mail.
+     */
+    private static final class ActivationTemplates {
+
+        /**
+         * The subject template.
+         */
+        private final MailTemplate subject;
+
+        /**
+         * The plain text body template.
+         */
+        private final MailTemplate text;
+
+        /**
+         * The HTML body template.
+         */
+        private final MailTemplate html;
+
+        /**
+         * Creates the activation templates.
+         *
+         * @param subject the subject template
+         * @param text the plain text body template
+         * @param html the HTML body template
+         */
+        private ActivationTemplates(final MailTemplate subject,
+            final MailTemplate text, final MailTemplate html) {
+            this.subject = subject;
+            this.text = text;
+            this.html = html;
+        }
+
     }
 
 }
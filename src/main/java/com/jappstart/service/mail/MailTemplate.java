@@ -0,0 +1,151 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.springframework.context.MessageSource;
+
+/**
+ * A message compiled into literal segments and argument slots, so that
+ * rendering only concatenates strings. Arguments which do not change
+ * between renders are substituted when the template is compiled.
+ */
+public final class MailTemplate {
+
+    /**
+     * The character which marks an argument slot while compiling.
+     */
+    private static final char MARKER = '\uE000';
+
+    /**
+     * The literal segments, one more than the number of slots.
+     */
+    private final String[] literals;
+
+    /**
+     * The argument index of each slot.
+     */
+    private final int[] slots;
+
+    /**
+     * The length of the literal segments.
+     */
+    private final int length;
+
+    /**
+     * Creates a template.
+     *
+     * @param literals the literal segments
+     * @param slots the argument index of each slot
+     */
+    private MailTemplate(final String[] literals, final int[] slots) {
+        int total = 0;
+
+        for (final String literal : literals) {
+            total += literal.length();
+        }
+
+        this.literals = literals;
+        this.slots = slots;
+        this.length = total;
+    }
+
+    /**
+     * Compiles the given message. Null arguments are left as slots to be
+     * filled in by {@link #render(String[])} and other arguments are
+     * substituted now. The message is formatted by the message source, so
+     * its quoting rules apply as usual.
+     *
+     * @param messageSource the message source
+     * @param code the message code
+     * @param args the fixed arguments or null for each slot
+     * @param locale the locale
+     * @return the template
+     */
+    public static MailTemplate compile(final MessageSource messageSource,
+        final String code, final Object[] args, final Locale locale) {
+        final Object[] markers = new Object[args.length];
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null) {
+                markers[i] = new String(new char[] {MARKER, (char) i,
+                    MARKER});
+            } else {
+                markers[i] = args[i];
+            }
+        }
+
+        final String message = messageSource.getMessage(code, markers,
+            locale);
+        final List<String> literals = new ArrayList<String>();
+        final List<Integer> slots = new ArrayList<Integer>();
+        int start = 0;
+        int index = message.indexOf(MARKER);
+
+        while (index >= 0) {
+            literals.add(message.substring(start, index));
+            slots.add(Integer.valueOf(message.charAt(index + 1)));
+            start = index + 3;
+            index = message.indexOf(MARKER, start);
+        }
+
+        literals.add(message.substring(start));
+
+        final int[] slotArray = new int[slots.size()];
+
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+
+        return new MailTemplate(literals.toArray(new String[literals.size()]),
+            slotArray);
+    }
+
+    /**
+     * Renders the template with the given arguments.
+     *
+     * @param args the arguments, indexed as in the message
+     * @return the rendered message
+     */
+    public String render(final String... args) {
+        if (slots.length == 0) {
+            return literals[0];
+        }
+
+        int capacity = length;
+
+        for (final int slot : slots) {
+            capacity += args[slot].length();
+        }
+
+        final StringBuilder builder = new StringBuilder(capacity);
+        builder.append(literals[0]);
+
+        for (int i = 0; i < slots.length; i++) {
+            builder.append(args[slots[i]]);
+            builder.append(literals[i + 1]);
+        }
+
+        return builder.toString();
+    }
+
+}
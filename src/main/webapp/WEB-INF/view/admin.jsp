@@ -16,6 +16,8 @@
     You should have received a copy of the GNU Lesser General Public License
     along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
 --%>
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
 <%@ taglib prefix="spring" uri="http://www.springframework.org/tags" %>
 <html>
     <head>
@@ -24,7 +26,56 @@
     <body>
 		<h3><spring:message code="admin.header" /></h3>
 		<ul>
-        <li><spring:message code="admin.flush" htmlEscape="false" /></li>
+        <li><spring:message code="admin.metrics" htmlEscape="false" /></li>
     </ul>
+    <form action="/admin/flush" method="post">
+        <input name="_csrf" type="hidden" value="<c:out value="${csrfToken}" />" />
+        <input type="submit" value="<spring:message code="admin.flush" />" />
+    </form>
+    <form action="/admin/migrate/logins" method="post">
+        <input name="_csrf" type="hidden" value="<c:out value="${csrfToken}" />" />
+        <input type="submit" value="<spring:message code="admin.migrate.logins" />" />
+    </form>
+    <form action="/admin/flush/user" method="post">
+        <input name="_csrf" type="hidden" value="<c:out value="${csrfToken}" />" />
+        <label for="username"><spring:message code="admin.flush.user" /></label>
+        <input id="username" name="username" type="text" />
+        <input type="submit" value="<spring:message code="global.submit" />" />
+    </form>
+    <form action="/admin/flush/prefix" method="post">
+        <input name="_csrf" type="hidden" value="<c:out value="${csrfToken}" />" />
+        <label for="prefix"><spring:message code="admin.flush.prefix" /></label>
+        <input id="prefix" name="prefix" type="text" />
+        <input type="submit" value="<spring:message code="global.submit" />" />
+    </form>
+    <form action="<c:out value="${importUploadUrl}" />" method="post" enctype="multipart/form-data">
+        <label for="file"><spring:message code="admin.import" /></label>
+        <input id="file" name="file" type="file" />
+        <input type="submit" value="<spring:message code="global.submit" />" />
+    </form>
+    <table>
+        <tr>
+            <th><spring:message code="admin.metrics.name" /></th>
+            <th><spring:message code="admin.metrics.count" /></th>
+            <th><spring:message code="admin.metrics.hits" /></th>
+            <th><spring:message code="admin.metrics.misses" /></th>
+            <th><spring:message code="admin.metrics.hitRatio" /></th>
+            <th><spring:message code="admin.metrics.mean" /></th>
+            <th><spring:message code="admin.metrics.median" /></th>
+            <th><spring:message code="admin.metrics.p99" /></th>
+        </tr>
+        <c:forEach var="metric" items="${metrics}">
+        <tr>
+            <td><c:out value="${metric.name}" /></td>
+            <td>${metric.count}</td>
+            <td>${metric.hits}</td>
+            <td>${metric.misses}</td>
+            <td><fmt:formatNumber value="${metric.hitRatio}" type="percent" maxFractionDigits="1" /></td>
+            <td><fmt:formatNumber value="${metric.meanMillis}" maxFractionDigits="2" /></td>
+            <td>${metric.medianMillis}</td>
+            <td>${metric.p99Millis}</td>
+        </tr>
+        </c:forEach>
+    </table>
 	</body>
 </html>
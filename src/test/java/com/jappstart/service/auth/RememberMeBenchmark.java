@@ -0,0 +1,252 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Arrays;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.
+    UsernamePasswordAuthenticationToken;
+import org.springframework.security.web.authentication.
+    AbstractRememberMeServices;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.
+    LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.
+    LocalTaskQueueTestConfig;
+import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.CacheMetrics;
+import com.jappstart.service.cache.PendingWrites;
+
+/**
+ * Compares the auto-login latency of the persistent and the signed remember
+ * me services for a cached user, with both wired as in
+ * <code>applicationContext-security.xml</code> on the local service stubs.
+ * The pending cache writes of each auto-login are completed as the pending
+ * writes filter would. Not run by the default test phase; run it with
+ * <code>mvn test -Dtest=RememberMeBenchmark</code>.
+ */
+public class RememberMeBenchmark {
+
+    /**
+     * The number of measured auto-logins.
+     */
+    private static final int ITERATIONS = 10000;
+
+    /**
+     * The number of warm-up auto-logins.
+     */
+    private static final int WARM_UP = 1000;
+
+    /**
+     * The cookie name.
+     */
+    private static final String COOKIE_NAME = "REMEMBER_ME";
+
+    /**
+     * The remember me parameter.
+     */
+    private static final String PARAMETER = "remember_me";
+
+    /**
+     * The remember me key.
+     */
+    private static final String KEY = "jappstart";
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig(),
+        new LocalMemcacheServiceTestConfig(),
+        new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    /**
+     * The user details service.
+     */
+    private UserDetailsServiceImpl userDetailsService;
+
+    /**
+     * The persistent token repository.
+     */
+    private PersistentTokenRepositoryImpl tokenRepository;
+
+    /**
+     * Sets up the local services, a cached user and the services shared by
+     * both remember me services.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+
+        final DatastoreService datastoreService =
+            DatastoreServiceFactory.getDatastoreService();
+        final MemcacheService memcacheService =
+            MemcacheServiceFactory.getMemcacheService();
+        final CacheMetrics metrics = new CacheMetrics();
+        metrics.setMemcacheService(memcacheService);
+
+        final UserCache userCache = new UserCache();
+        userCache.setMemcacheService(memcacheService);
+        userCache.setAsyncMemcacheService(
+            MemcacheServiceFactory.getAsyncMemcacheService());
+        userCache.setMetrics(metrics);
+        userCache.setRefreshTaskName("default");
+        userCache.setRefreshTaskUrl("/task/cache/refresh");
+
+        final UserAccount user = new UserAccount("user");
+        user.setEnabled(true);
+        datastoreService.put(UserAccountMapper.toEntity(user));
+        userCache.fill(user);
+
+        final UserLeases userLeases = new UserLeases();
+        userLeases.setMemcacheService(memcacheService);
+        userLeases.setUserCache(userCache);
+
+        userDetailsService = new UserDetailsServiceImpl();
+        userDetailsService.setDatastoreService(datastoreService);
+        userDetailsService.setUserCache(userCache);
+        userDetailsService.setUserLeases(userLeases);
+        userDetailsService.setMetrics(metrics);
+
+        tokenRepository = new PersistentTokenRepositoryImpl();
+        tokenRepository.setDatastoreService(datastoreService);
+        tokenRepository.setMemcacheService(memcacheService);
+        tokenRepository.setAsyncMemcacheService(
+            MemcacheServiceFactory.getAsyncMemcacheService());
+        tokenRepository.setUserCache(userCache);
+        tokenRepository.setMetrics(metrics);
+        tokenRepository.setTouchTaskName("default");
+        tokenRepository.setTouchTaskUrl("/task/login/touch");
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        PendingWrites.drain();
+        helper.tearDown();
+    }
+
+    /**
+     * Measures the auto-login latency of both remember me services.
+     *
+     * @throws Exception if a remember me service cannot be created
+     */
+    @Test
+    public final void benchmarkAutoLogin() throws Exception {
+        final EnhancedRememberMeServices persistent =
+            new EnhancedRememberMeServices();
+        persistent.setUserDetailsService(userDetailsService);
+        persistent.setTokenRepository(tokenRepository);
+        persistent.setMemcacheService(
+            MemcacheServiceFactory.getMemcacheService());
+        configure(persistent);
+
+        final SignedRememberMeServices signed =
+            new SignedRememberMeServices();
+        signed.setUserDetailsService(userDetailsService);
+        signed.setSigningKeys(Arrays.asList("signing-key"));
+        configure(signed);
+
+        final double persistentMicros = measure(persistent);
+        final double signedMicros = measure(signed);
+
+        System.out.println(String.format(
+            "Auto-login: persistent %.1f us, signed %.1f us per request.",
+            persistentMicros, signedMicros));
+    }
+
+    /**
+     * Sets the properties both remember me services share and initializes
+     * the given one.
+     *
+     * @param services the remember me services
+     * @throws Exception if the properties are invalid
+     */
+    private static void configure(final AbstractRememberMeServices services)
+        throws Exception {
+        services.setCookieName(COOKIE_NAME);
+        services.setParameter(PARAMETER);
+        services.setKey(KEY);
+        services.afterPropertiesSet();
+    }
+
+    /**
+     * Logs in with the given remember me services, then measures the mean
+     * latency of auto-logins with the cookie it set. A rotated cookie
+     * replaces the current one, as a browser would.
+     *
+     * @param services the remember me services
+     * @return the mean latency in microseconds
+     */
+    private static double measure(final AbstractRememberMeServices services) {
+        final MockHttpServletRequest loginRequest =
+            new MockHttpServletRequest();
+        final MockHttpServletResponse loginResponse =
+            new MockHttpServletResponse();
+        loginRequest.setParameter(PARAMETER, "true");
+
+        services.loginSuccess(loginRequest, loginResponse,
+            new UsernamePasswordAuthenticationToken("user", "password"));
+        PendingWrites.drain();
+
+        Cookie cookie = loginResponse.getCookie(COOKIE_NAME);
+        long start = 0L;
+
+        for (int i = 0; i < WARM_UP + ITERATIONS; i++) {
+            if (i == WARM_UP) {
+                start = System.nanoTime();
+            }
+
+            final MockHttpServletRequest request =
+                new MockHttpServletRequest();
+            final MockHttpServletResponse response =
+                new MockHttpServletResponse();
+            request.setCookies(new Cookie[] {cookie});
+
+            assertNotNull(services.autoLogin(request, response));
+            PendingWrites.drain();
+
+            if (response.getCookie(COOKIE_NAME) != null) {
+                cookie = response.getCookie(COOKIE_NAME);
+            }
+        }
+
+        return (System.nanoTime() - start) / 1000.0 / ITERATIONS;
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.
+    LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.jappstart.model.auth.PersistentLogin;
+import com.jappstart.model.auth.PersistentUser;
+import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.CacheMetrics;
+
+/**
+ * Compares removing every remember-me login of a user with a keys-only
+ * query and one batch delete against the cascade the JPA removal of the
+ * persistent user ran before: the persistent user query, run twice, the
+ * load of its login collection and one delete per login. Not run by the
+ * default test phase; run it with
+ * <code>mvn test -Dtest=RemoveUserTokensBenchmark</code>.
+ */
+public class RemoveUserTokensBenchmark {
+
+    /**
+     * The number of users.
+     */
+    private static final int USERS = 100;
+
+    /**
+     * The number of logins per user.
+     */
+    private static final int LOGINS = 20;
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig(),
+        new LocalMemcacheServiceTestConfig());
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * The persistent token repository.
+     */
+    private PersistentTokenRepositoryImpl tokenRepository;
+
+    /**
+     * Sets up the local services and the persistent token repository.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+
+        final MemcacheService memcacheService =
+            MemcacheServiceFactory.getMemcacheService();
+        final CacheMetrics metrics = new CacheMetrics();
+        metrics.setMemcacheService(memcacheService);
+
+        tokenRepository = new PersistentTokenRepositoryImpl();
+        tokenRepository.setDatastoreService(datastoreService);
+        tokenRepository.setMemcacheService(memcacheService);
+        tokenRepository.setMetrics(metrics);
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Removes the logins of every user both ways and reports the mean time
+     * per user.
+     */
+    @Test
+    public final void benchmarkRemoveUserTokens() {
+        putCascadeLogins();
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < USERS; i++) {
+            removeCascade("user" + i);
+        }
+
+        final long cascadeNanos = System.nanoTime() - start;
+
+        assertEquals(0, count(PersistentLogin.class.getSimpleName()));
+
+        putLogins();
+
+        start = System.nanoTime();
+
+        for (int i = 0; i < USERS; i++) {
+            tokenRepository.removeUserTokens("user" + i);
+        }
+
+        final long batchNanos = System.nanoTime() - start;
+
+        assertEquals(0, count(PersistentLogin.class.getSimpleName()));
+
+        System.out.println(String.format(
+            "Cascade: %.2f ms per user; keys-only batch delete: %.2f ms per"
+            + " user (%d logins per user).",
+            cascadeNanos / 1000000.0 / USERS,
+            batchNanos / 1000000.0 / USERS, LOGINS));
+    }
+
+    /**
+     * Stores the logins as children of the persistent users, as the JPA
+     * mapping did.
+     */
+    private void putCascadeLogins() {
+        final List<Entity> entities = new ArrayList<Entity>();
+
+        for (int i = 0; i < USERS; i++) {
+            final String username = "user" + i;
+            final Key userKey = KeyFactory.createKey(
+                UserAccount.createKey(username),
+                PersistentUser.class.getSimpleName(), username);
+            final Entity persistentUser = new Entity(userKey);
+            persistentUser.setProperty("username", username);
+            entities.add(persistentUser);
+
+            for (int j = 0; j < LOGINS; j++) {
+                final Entity login = new Entity(
+                    PersistentLogin.class.getSimpleName(), userKey);
+                setLogin(login, username, j);
+                entities.add(login);
+            }
+        }
+
+        datastoreService.put(entities);
+    }
+
+    /**
+     * Stores the logins as root entities keyed by series.
+     */
+    private void putLogins() {
+        final List<Entity> entities = new ArrayList<Entity>();
+
+        for (int i = 0; i < USERS; i++) {
+            final String username = "user" + i;
+
+            for (int j = 0; j < LOGINS; j++) {
+                final Entity login = new Entity(
+                    PersistentLogin.createKey(username + "-" + j));
+                setLogin(login, username, j);
+                entities.add(login);
+            }
+        }
+
+        datastoreService.put(entities);
+    }
+
+    /**
+     * Sets the properties of a login.
+     *
+     * @param login the login entity
+     * @param username the username
+     * @param index the index of the login of the user
+     */
+    private static void setLogin(final Entity login, final String username,
+        final int index) {
+        login.setProperty("username", username);
+        login.setProperty("series", username + "-" + index);
+        login.setProperty("token", "token");
+        login.setProperty("lastUsed", new Date());
+    }
+
+    /**
+     * Removes the logins of a user the way the JPA cascade did.
+     *
+     * @param username the username
+     */
+    private void removeCascade(final String username) {
+        final Query userQuery = new Query(
+            PersistentUser.class.getSimpleName())
+            .addFilter("username", FilterOperator.EQUAL, username);
+
+        datastoreService.prepare(userQuery).asList(
+            FetchOptions.Builder.withDefaults()).size();
+
+        final Entity persistentUser =
+            datastoreService.prepare(userQuery).asSingleEntity();
+        final Query loginQuery = new Query(
+            PersistentLogin.class.getSimpleName(), persistentUser.getKey());
+
+        for (final Entity login : datastoreService.prepare(loginQuery)
+            .asList(FetchOptions.Builder.withDefaults())) {
+            datastoreService.delete(login.getKey());
+        }
+
+        datastoreService.delete(persistentUser.getKey());
+    }
+
+    /**
+     * Counts the entities of the given kind.
+     *
+     * @param kind the kind
+     * @return the number of entities
+     */
+    private int count(final String kind) {
+        return datastoreService.prepare(new Query(kind).setKeysOnly())
+            .countEntities(FetchOptions.Builder.withDefaults());
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Compares the payload size and the encode and decode time of the user
+ * account codec with the default Java serialization memcache used before.
+ * Not run by the default test phase; run it with
+ * <code>mvn test -Dtest=UserAccountCodecBenchmark</code>.
+ */
+public class UserAccountCodecBenchmark {
+
+    /**
+     * The number of measured iterations.
+     */
+    private static final int ITERATIONS = 100000;
+
+    /**
+     * The number of warm-up iterations.
+     */
+    private static final int WARM_UP = 20000;
+
+    /**
+     * The compression threshold of the deployed user cache.
+     */
+    private static final int COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * Encodes and decodes a user account both ways and reports the payload
+     * sizes and the mean times.
+     *
+     * @throws Exception if serialization fails
+     */
+    @Test
+    public final void benchmarkCodec() throws Exception {
+        final UserAccountCodec codec =
+            new UserAccountCodec(COMPRESSION_THRESHOLD);
+        final UserAccount user = new UserAccount("user");
+        user.setEmail("user@example.com");
+        user.setDisplayName("Display Name");
+        user.setEnabled(true);
+
+        final byte[] encoded = codec.encode(user);
+        final byte[] serialized = serialize(user);
+
+        for (int i = 0; i < WARM_UP; i++) {
+            codec.decode(codec.encode(user));
+            deserialize(serialize(user));
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.encode(user);
+        }
+
+        final long codecEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(codec.decode(encoded));
+        }
+
+        final long codecDecode = System.nanoTime() - start;
+        start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            serialize(user);
+        }
+
+        final long javaEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(deserialize(serialized));
+        }
+
+        final long javaDecode = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "Codec: %d bytes, %.2f us encode, %.2f us decode.",
+            encoded.length, codecEncode / 1000.0 / ITERATIONS,
+            codecDecode / 1000.0 / ITERATIONS));
+        System.out.println(String.format(
+            "Java serialization: %d bytes, %.2f us encode, %.2f us decode.",
+            serialized.length, javaEncode / 1000.0 / ITERATIONS,
+            javaDecode / 1000.0 / ITERATIONS));
+    }
+
+    /**
+     * Serializes the given user account as memcache did before the codec.
+     *
+     * @param user the user account
+     * @return the serialized bytes
+     * @throws IOException if serialization fails
+     */
+    private static byte[] serialize(final UserAccount user)
+        throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        out.writeObject(user);
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a user account.
+     *
+     * @param bytes the serialized bytes
+     * @return the user account
+     * @throws IOException if deserialization fails
+     * @throws ClassNotFoundException if the class is not found
+     */
+    private static UserAccount deserialize(final byte[] bytes)
+        throws IOException, ClassNotFoundException {
+        final ObjectInputStream in =
+            new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+        try {
+            return (UserAccount) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Tests the user account codec.
+ */
+public class UserAccountCodecTest {
+
+    /**
+     * Creates a user account with every encoded property set.
+     *
+     * @param username the username
+     * @return the user account
+     */
+    private static UserAccount createUser(final String username) {
+        final UserAccount user = new UserAccount(username);
+        user.setEmail(username + "@example.com");
+        user.setDisplayName("Display Name");
+        user.setPassword("5f4dcc3b5aa765d61d8327deb882cf99");
+        user.setEnabled(true);
+        user.setActivationEmailSent(true);
+        user.setTokenVersion(300L);
+
+        return user;
+    }
+
+    /**
+     * Asserts that the given user accounts have the same encoded
+     * properties.
+     *
+     * @param expected the expected user account
+     * @param actual the actual user account
+     */
+    private static void assertUser(final UserAccount expected,
+        final UserAccount actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getUsername(), actual.getUsername());
+        assertEquals(expected.getEmail(), actual.getEmail());
+        assertEquals(expected.getDisplayName(), actual.getDisplayName());
+        assertEquals(expected.getPassword(), actual.getPassword());
+        assertEquals(expected.getSalt(), actual.getSalt());
+        assertEquals(expected.getRole(), actual.getRole());
+        assertEquals(expected.getActivationKey(), actual.getActivationKey());
+        assertEquals(expected.isActivationEmailSent(),
+            actual.isActivationEmailSent());
+        assertEquals(expected.isEnabled(), actual.isEnabled());
+        assertEquals(expected.isAccountNonExpired(),
+            actual.isAccountNonExpired());
+        assertEquals(expected.isAccountNonLocked(),
+            actual.isAccountNonLocked());
+        assertEquals(expected.isCredentialsNonExpired(),
+            actual.isCredentialsNonExpired());
+        assertEquals(expected.getTokenVersion(), actual.getTokenVersion());
+    }
+
+    /**
+     * Writes a string in the version 1 format.
+     *
+     * @param out the output
+     * @param value the string, shorter than 127 bytes
+     * @throws IOException if the output fails
+     */
+    private static void writeString(final ByteArrayOutputStream out,
+        final String value) throws IOException {
+        if (value == null) {
+            out.write(0);
+            return;
+        }
+
+        final byte[] bytes = value.getBytes("UTF-8");
+        out.write(bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Tests that an uncompressed user account round trips.
+     */
+    @Test
+    public final void testRoundTrip() {
+        final UserAccountCodec codec = new UserAccountCodec(0);
+        final UserAccount user = createUser("user:name");
+
+        final byte[] bytes = codec.encode(user);
+
+        assertEquals(0, bytes[1]);
+        assertUser(user, codec.decode(bytes));
+    }
+
+    /**
+     * Tests that a null display name round trips.
+     */
+    @Test
+    public final void testRoundTripNull() {
+        final UserAccountCodec codec = new UserAccountCodec(0);
+        final UserAccount user = createUser("user");
+        user.setDisplayName(null);
+
+        assertNull(codec.decode(codec.encode(user)).getDisplayName());
+    }
+
+    /**
+     * Tests that a compressed user account round trips and can be decoded
+     * by a codec which does not compress.
+     */
+    @Test
+    public final void testRoundTripCompressed() {
+        final UserAccount user = createUser("user");
+        final StringBuilder displayName = new StringBuilder();
+
+        for (int i = 0; i < 100; i++) {
+            displayName.append("repeated ");
+        }
+
+        user.setDisplayName(displayName.toString());
+
+        final byte[] bytes = new UserAccountCodec(1).encode(user);
+
+        assertEquals(1, bytes[1]);
+        assertUser(user, new UserAccountCodec(0).decode(bytes));
+    }
+
+    /**
+     * Tests that the version 1 format is decoded by the current codec with
+     * the default token version.
+     *
+     * @throws IOException if the value cannot be written
+     */
+    @Test
+    public final void testDecodeVersion1() throws IOException {
+        final UserAccount user = createUser("user");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write(1);
+        out.write(0);
+        writeString(out, user.getUsername());
+        writeString(out, user.getEmail());
+        writeString(out, user.getDisplayName());
+        writeString(out, user.getPassword());
+        writeString(out, user.getSalt());
+        writeString(out, user.getRole());
+        writeString(out, user.getActivationKey());
+        out.write(0x1f);
+
+        final UserAccount decoded =
+            new UserAccountCodec(0).decode(out.toByteArray());
+
+        user.setTokenVersion(new UserAccount().getTokenVersion());
+        assertUser(user, decoded);
+    }
+
+    /**
+     * Tests that an unknown version is not decoded.
+     */
+    @Test
+    public final void testDecodeUnknownVersion() {
+        final UserAccountCodec codec = new UserAccountCodec(0);
+        final byte[] bytes = codec.encode(createUser("user"));
+
+        bytes[0] = Byte.MAX_VALUE;
+
+        assertNull(codec.decode(bytes));
+    }
+
+    /**
+     * Tests that user accounts cached with default Java serialization are
+     * returned as is.
+     */
+    @Test
+    public final void testDecodeSerialized() {
+        final UserAccountCodec codec = new UserAccountCodec(0);
+        final UserAccount user = createUser("user");
+
+        assertSame(user, codec.decode(user));
+    }
+
+    /**
+     * Tests that values which are not encoded user accounts are not
+     * decoded.
+     */
+    @Test
+    public final void testDecodeInvalid() {
+        final UserAccountCodec codec = new UserAccountCodec(0);
+
+        assertNull(codec.decode(null));
+        assertNull(codec.decode("user"));
+        assertNull(codec.decode(new byte[] {2}));
+        assertNull(codec.decode(new byte[] {2, 0, 5}));
+    }
+
+    /**
+     * Tests that truncated compressed values are not decoded and that the
+     * codec keeps decoding afterwards, which exercises the path that
+     * releases the inflater on failure.
+     */
+    @Test
+    public final void testDecodeTruncatedCompressed() {
+        final UserAccount user = createUser("user");
+        final StringBuilder displayName = new StringBuilder();
+
+        for (int i = 0; i < 100; i++) {
+            displayName.append("repeated ");
+        }
+
+        user.setDisplayName(displayName.toString());
+
+        final UserAccountCodec codec = new UserAccountCodec(1);
+        final byte[] bytes = codec.encode(user);
+        final byte[] truncated = new byte[bytes.length / 2];
+
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        for (int i = 0; i < 1000; i++) {
+            assertNull(codec.decode(truncated));
+        }
+
+        assertUser(user, codec.decode(bytes));
+    }
+
+    /**
+     * Tests that encoding is deterministic.
+     */
+    @Test
+    public final void testEncodeDeterministic() {
+        final UserAccountCodec codec = new UserAccountCodec(0);
+        final UserAccount user = createUser("user");
+
+        assertArrayEquals(codec.encode(user), codec.encode(user));
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.tools.development.testing.
+    LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Tests that user accounts are resolved with a get by their username key.
+ * The datastore stub leaves every write unapplied to queries, as the high
+ * replication datastore may, so only the get sees a new user.
+ */
+public class UserAccountMapperTest {
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(100));
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * Sets up the local services.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Tests that a new user is found with a get by its username key while
+     * the username query does not see it yet.
+     *
+     * @throws EntityNotFoundException if the user is not found
+     */
+    @Test
+    public final void testGetByKey() throws EntityNotFoundException {
+        final UserAccount user = new UserAccount("user");
+        user.setEmail("user@example.com");
+        user.setDisplayName("User");
+
+        datastoreService.put(UserAccountMapper.toEntity(user));
+
+        final UserAccount found = UserAccountMapper.toUserAccount(
+            datastoreService.get(UserAccount.createKey("user")));
+
+        assertEquals(user.getKey(), found.getKey());
+        assertEquals("user", found.getUsername());
+        assertEquals("user@example.com", found.getEmail());
+        assertEquals("User", found.getDisplayName());
+        assertEquals(user.getPassword(), found.getPassword());
+        assertEquals(user.getSalt(), found.getSalt());
+        assertEquals(user.getActivationKey(), found.getActivationKey());
+
+        final Query query = new Query(UserAccount.class.getSimpleName());
+        query.addFilter("username", FilterOperator.EQUAL, "user");
+
+        assertNull(datastoreService.prepare(query).asSingleEntity());
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.
+    LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.
+    LocalTaskQueueTestConfig;
+import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.CacheMetrics;
+
+/**
+ * Compares the read a hot user pays when its cached entry has expired with
+ * the read after the entry was refreshed ahead of time. The refresh-ahead
+ * window covers the whole expiration, so every hot entry is due for a
+ * refresh as soon as it is hot, and the queued refreshes are run inline.
+ * Not run by the default test phase; run it with
+ * <code>mvn test -Dtest=UserCacheRefreshBenchmark</code>.
+ */
+public class UserCacheRefreshBenchmark {
+
+    /**
+     * The number of hot users.
+     */
+    private static final int USERS = 1000;
+
+    /**
+     * The number of reads after which an entry is considered hot.
+     */
+    private static final int HOT_THRESHOLD = 10;
+
+    /**
+     * The cache expiration in seconds, used as the refresh-ahead window.
+     */
+    private static final int EXPIRATION = 3600;
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig(),
+        new LocalMemcacheServiceTestConfig(),
+        new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * Sets up the local services and the users.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+
+        final List<Entity> entities = new ArrayList<Entity>();
+
+        for (int i = 0; i < USERS; i++) {
+            entities.add(UserAccountMapper.toEntity(
+                new UserAccount("user" + i)));
+        }
+
+        datastoreService.put(entities);
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Reads every user until it is hot, runs the refreshes it scheduled and
+     * reports the mean latency of a read after expiry and of a read after
+     * the refresh, each on a fresh instance.
+     */
+    @Test
+    public final void benchmarkRefreshAhead() {
+        final UserCache warm = createUserCache();
+
+        for (int i = 0; i < USERS; i++) {
+            final String username = "user" + i;
+
+            warm.fill(load(username));
+
+            for (int j = 0; j <= HOT_THRESHOLD; j++) {
+                assertNotNull(warm.get(username));
+            }
+        }
+
+        assertEquals(USERS, warm.getRefreshes());
+
+        final MemcacheService memcacheService =
+            MemcacheServiceFactory.getMemcacheService();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < USERS; i++) {
+            final String username = "user" + i;
+
+            warm.refresh(username, new Callable<UserAccount>() {
+                @Override
+                public UserAccount call() {
+                    return load(username);
+                }
+            });
+        }
+
+        final long refreshNanos = System.nanoTime() - start;
+        final UserCache refreshed = createUserCache();
+        start = System.nanoTime();
+
+        for (int i = 0; i < USERS; i++) {
+            assertNotNull(refreshed.get("user" + i));
+        }
+
+        final long hitNanos = System.nanoTime() - start;
+
+        memcacheService.clearAll();
+
+        final UserCache expired = createUserCache();
+        start = System.nanoTime();
+
+        for (int i = 0; i < USERS; i++) {
+            final String username = "user" + i;
+
+            assertNull(expired.get(username));
+            expired.fill(load(username));
+        }
+
+        final long missNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "Read after expiry: %.1f us; read after refresh-ahead: %.1f us;"
+            + " background refresh: %.1f us per user (%d hot users).",
+            missNanos / 1000.0 / USERS, hitNanos / 1000.0 / USERS,
+            refreshNanos / 1000.0 / USERS, USERS));
+    }
+
+    /**
+     * Creates a user cache whose refresh-ahead window covers the whole
+     * expiration.
+     *
+     * @return the user cache
+     */
+    private static UserCache createUserCache() {
+        final MemcacheService memcacheService =
+            MemcacheServiceFactory.getMemcacheService();
+        final CacheMetrics metrics = new CacheMetrics();
+        metrics.setMemcacheService(memcacheService);
+
+        final UserCache userCache = new UserCache();
+        userCache.setMemcacheService(memcacheService);
+        userCache.setAsyncMemcacheService(
+            MemcacheServiceFactory.getAsyncMemcacheService());
+        userCache.setMetrics(metrics);
+        userCache.setHotThreshold(HOT_THRESHOLD);
+        userCache.setRefreshAhead(EXPIRATION);
+        userCache.setRefreshTaskName("default");
+        userCache.setRefreshTaskUrl("/task/cache/refresh");
+
+        return userCache;
+    }
+
+    /**
+     * Loads a user account from the datastore with a get by key.
+     *
+     * @param username the username
+     * @return the user account
+     */
+    private UserAccount load(final String username) {
+        try {
+            return UserAccountMapper.toUserAccount(
+                datastoreService.get(UserAccount.createKey(username)));
+        } catch (EntityNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.
+    LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.jappstart.model.auth.UserAccount;
+import com.jappstart.service.cache.CacheMetrics;
+import com.jappstart.service.cache.PendingWrites;
+
+/**
+ * Tests the user cache invalidation. Two user caches share the memcache
+ * stub to stand in for two instances, each with its own near cache.
+ */
+public class UserCacheTest {
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+    /**
+     * The user cache of the first instance.
+     */
+    private UserCache first;
+
+    /**
+     * The user cache of the second instance.
+     */
+    private UserCache second;
+
+    /**
+     * Sets up the local services and the user caches.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+        first = createUserCache();
+        second = createUserCache();
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Creates a user cache which revalidates its near cache on every read.
+     *
+     * @return the user cache
+     */
+    private static UserCache createUserCache() {
+        final MemcacheService memcacheService =
+            MemcacheServiceFactory.getMemcacheService();
+        final CacheMetrics metrics = new CacheMetrics();
+        metrics.setMemcacheService(memcacheService);
+
+        final UserCache userCache = new UserCache();
+        userCache.setMemcacheService(memcacheService);
+        userCache.setAsyncMemcacheService(
+            MemcacheServiceFactory.getAsyncMemcacheService());
+        userCache.setMetrics(metrics);
+        userCache.setRevalidateInterval(0);
+
+        return userCache;
+    }
+
+    /**
+     * Tests that a cached user is read by another instance and then served
+     * from its near cache.
+     */
+    @Test
+    public final void testFillAndGet() {
+        first.fill(new UserAccount("user"));
+
+        assertNotNull(second.get("user"));
+        assertNotNull(second.get("user"));
+        assertEquals(1, second.getRemoteHits());
+        assertEquals(1, second.getLocalHits());
+    }
+
+    /**
+     * Tests that invalidating a user drops the near cache entry of another
+     * instance.
+     */
+    @Test
+    public final void testInvalidate() {
+        first.fill(new UserAccount("user"));
+        first.fill(new UserAccount("other"));
+        assertNotNull(second.get("user"));
+
+        first.invalidate("user");
+
+        assertNull(second.get("user"));
+        assertNotNull(second.get("other"));
+    }
+
+    /**
+     * Tests that a user cached under its bare username before the codec is
+     * read once and moved to its current key.
+     */
+    @Test
+    public final void testLegacyValue() {
+        final MemcacheService memcacheService =
+            MemcacheServiceFactory.getMemcacheService();
+        memcacheService.put("user", new UserAccount("user"));
+
+        assertNotNull(first.get("user"));
+
+        PendingWrites.drain();
+
+        assertFalse(memcacheService.contains("user"));
+        assertNotNull(second.get("user"));
+        assertEquals(1, second.getRemoteHits());
+    }
+
+    /**
+     * Tests that bumping the namespace generation invalidates every cached
+     * user on every instance.
+     */
+    @Test
+    public final void testInvalidateAll() {
+        first.fill(new UserAccount("user"));
+        assertNotNull(second.get("user"));
+
+        final long namespace = first.getNamespace();
+
+        first.invalidateAll();
+
+        assertTrue(first.getNamespace() > namespace);
+        assertEquals(first.getNamespace(), second.getNamespace());
+        assertNull(first.get("user"));
+        assertNull(second.get("user"));
+
+        first.fill(new UserAccount("user"));
+
+        assertNotNull(second.get("user"));
+    }
+
+    /**
+     * Tests that a prefix invalidation only drops users whose username
+     * starts with the prefix.
+     */
+    @Test
+    public final void testInvalidatePrefix() {
+        first.fill(new UserAccount("abc"));
+        first.fill(new UserAccount("xyz"));
+        assertNotNull(second.get("abc"));
+        assertNotNull(second.get("xyz"));
+
+        first.invalidatePrefix("ab");
+
+        assertNull(second.get("abc"));
+        assertNotNull(second.get("xyz"));
+    }
+
+    /**
+     * Tests that a negative entry is visible to other instances and removed
+     * again.
+     */
+    @Test
+    public final void testMissing() {
+        first.putMissing("user");
+
+        assertNull(second.get("user"));
+        assertTrue(second.isMissing("user"));
+
+        second.removeMissing("user");
+
+        assertFalse(second.isMissing("user"));
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.
+    LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Measures the latency and memory of exporting 100,000 users. The export
+ * is written to a writer which discards its output and samples the used
+ * heap on every flush, so the peak reflects the exporter and not the
+ * output. Not run by the default test phase; run it with
+ * <code>mvn test -Dtest=UserExporterBenchmark</code>.
+ */
+public class UserExporterBenchmark {
+
+    /**
+     * The number of users.
+     */
+    private static final int USERS = 100000;
+
+    /**
+     * The number of users written per datastore put.
+     */
+    private static final int PUT_BATCH_SIZE = 500;
+
+    /**
+     * The bytes per megabyte.
+     */
+    private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    /**
+     * The user exporter.
+     */
+    private UserExporter userExporter;
+
+    /**
+     * Sets up the local services, the users and the user exporter.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+
+        final DatastoreService datastoreService =
+            DatastoreServiceFactory.getDatastoreService();
+        final List<Entity> entities = new ArrayList<Entity>();
+
+        for (int i = 0; i < USERS; i++) {
+            final UserAccount user = new UserAccount("user" + i);
+            user.setEmail("user" + i + "@example.com");
+            entities.add(UserAccountMapper.toEntity(user));
+
+            if (entities.size() == PUT_BATCH_SIZE) {
+                datastoreService.put(entities);
+                entities.clear();
+            }
+        }
+
+        datastoreService.put(entities);
+
+        userExporter = new UserExporter();
+        userExporter.setDatastoreService(datastoreService);
+        userExporter.setMaxMillis(Long.MAX_VALUE);
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Exports every user as CSV and reports the elapsed time and the peak
+     * heap growth. Every page must be flushed before the next is read.
+     *
+     * @throws IOException if the export fails
+     */
+    @Test
+    public final void benchmarkCsvExport() throws IOException {
+        final SamplingWriter out = new SamplingWriter();
+        final long start = System.currentTimeMillis();
+
+        assertEquals(USERS, userExporter.export(out, UserImporter.CSV,
+            null));
+
+        final long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(out.flushes >= USERS / userExporter.getPageSize());
+
+        System.out.println(String.format(
+            "Exported %d users in %d ms (%d chars, %d flushes,"
+            + " peak heap growth %.1f MB).", USERS, elapsed, out.chars,
+            out.flushes, (out.peak - out.base) / BYTES_PER_MEGABYTE));
+    }
+
+    /**
+     * A writer which discards its output and samples the used heap on
+     * every flush.
+     */
+    private static final class SamplingWriter extends Writer {
+
+        /**
+         * The used heap when the writer was created.
+         */
+        private final long base = used();
+
+        /**
+         * The peak used heap.
+         */
+        private long peak = base;
+
+        /**
+         * The number of characters written.
+         */
+        private long chars;
+
+        /**
+         * The number of flushes.
+         */
+        private int flushes;
+
+        /**
+         * Discards the given characters.
+         *
+         * @param buffer the characters
+         * @param offset the offset
+         * @param length the length
+         */
+        @Override
+        public void write(final char[] buffer, final int offset,
+            final int length) {
+            chars += length;
+        }
+
+        /**
+         * Samples the used heap.
+         */
+        @Override
+        public void flush() {
+            flushes++;
+            peak = Math.max(peak, used());
+        }
+
+        /**
+         * Does nothing.
+         */
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Returns the used heap in bytes.
+         *
+         * @return the used heap
+         */
+        private static long used() {
+            final Runtime runtime = Runtime.getRuntime();
+
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+    }
+
+}
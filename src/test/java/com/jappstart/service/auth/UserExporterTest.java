@@ -0,0 +1,183 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.
+    LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Tests the user exporter page continuation.
+ */
+public class UserExporterTest {
+
+    /**
+     * The number of users.
+     */
+    private static final int USERS = 7;
+
+    /**
+     * The page size.
+     */
+    private static final int PAGE_SIZE = 2;
+
+    /**
+     * The CSV continuation line prefix.
+     */
+    private static final String CURSOR_PREFIX = "#cursor,";
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    /**
+     * The user exporter.
+     */
+    private UserExporter userExporter;
+
+    /**
+     * Sets up the local services, the users and the user exporter.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+
+        final DatastoreService datastoreService =
+            DatastoreServiceFactory.getDatastoreService();
+
+        for (int i = 0; i < USERS; i++) {
+            final UserAccount user = new UserAccount("user" + i);
+            user.setEmail("user" + i + "@example.com");
+            datastoreService.put(UserAccountMapper.toEntity(user));
+        }
+
+        userExporter = new UserExporter();
+        userExporter.setDatastoreService(datastoreService);
+        userExporter.setPageSize(PAGE_SIZE);
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Tests that an export with time left writes every user in one call.
+     *
+     * @throws IOException if the export fails
+     */
+    @Test
+    public final void testExportAll() throws IOException {
+        final StringWriter out = new StringWriter();
+
+        assertEquals(USERS, userExporter.export(out, UserImporter.CSV,
+            null));
+
+        final String[] lines = out.toString().split("\n");
+
+        assertEquals(USERS + 1, lines.length);
+        assertTrue(lines[0].startsWith("username,email,"));
+    }
+
+    /**
+     * Tests that an export which runs out of time after every page can be
+     * resumed from its continuation line until every user is written
+     * exactly once.
+     *
+     * @throws IOException if the export fails
+     */
+    @Test
+    public final void testContinuation() throws IOException {
+        userExporter.setMaxMillis(0L);
+
+        final List<String> usernames = new ArrayList<String>();
+        String cursor = null;
+        int calls = 0;
+
+        do {
+            final StringWriter out = new StringWriter();
+            final int count =
+                userExporter.export(out, UserImporter.CSV, cursor);
+
+            cursor = null;
+            calls++;
+
+            for (final String line : out.toString().split("\n")) {
+                if (line.startsWith(CURSOR_PREFIX)) {
+                    cursor = line.substring(CURSOR_PREFIX.length());
+                } else if (line.startsWith("user")
+                    && !line.startsWith("username,")) {
+                    usernames.add(line.substring(0, line.indexOf(',')));
+                }
+            }
+
+            assertTrue(count <= PAGE_SIZE);
+        } while (cursor != null);
+
+        assertEquals(USERS, usernames.size());
+        assertEquals(USERS / PAGE_SIZE + 1, calls);
+
+        for (int i = 0; i < USERS; i++) {
+            assertTrue(usernames.contains("user" + i));
+        }
+    }
+
+    /**
+     * Tests that a JSON export ends with a cursor line when it runs out of
+     * time.
+     *
+     * @throws IOException if the export fails
+     */
+    @Test
+    public final void testJsonContinuation() throws IOException {
+        userExporter.setMaxMillis(0L);
+
+        final StringWriter out = new StringWriter();
+
+        assertEquals(PAGE_SIZE, userExporter.export(out, UserImporter.JSON,
+            null));
+
+        final String[] lines = out.toString().split("\n");
+
+        assertEquals(PAGE_SIZE + 1, lines.length);
+        assertTrue(lines[PAGE_SIZE].startsWith("{\"cursor\":"));
+    }
+
+}
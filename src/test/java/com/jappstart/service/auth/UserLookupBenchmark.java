@@ -0,0 +1,160 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.auth;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.tools.development.testing.
+    LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.
+    LocalServiceTestHelper;
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Compares resolving users with the username query the services used to run
+ * against resolving them with a get by key, on the local datastore stub.
+ * The stub has no network round trip, so the numbers only compare the
+ * datastore work of both paths. Not run by the default test phase; run it
+ * with <code>mvn test -Dtest=UserLookupBenchmark</code>.
+ */
+public class UserLookupBenchmark {
+
+    /**
+     * The number of users.
+     */
+    private static final int USERS = 1000;
+
+    /**
+     * The number of lookups per path.
+     */
+    private static final int LOOKUPS = 20000;
+
+    /**
+     * The number of warm-up lookups per path.
+     */
+    private static final int WARM_UP = 2000;
+
+    /**
+     * The local service test helper.
+     */
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    /**
+     * The datastore service.
+     */
+    private DatastoreService datastoreService;
+
+    /**
+     * Sets up the local services and the users.
+     */
+    @Before
+    public final void setUp() {
+        helper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+
+        final List<Entity> entities = new ArrayList<Entity>();
+
+        for (int i = 0; i < USERS; i++) {
+            entities.add(UserAccountMapper.toEntity(
+                new UserAccount("user" + i)));
+        }
+
+        datastoreService.put(entities);
+    }
+
+    /**
+     * Tears down the local services.
+     */
+    @After
+    public final void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Resolves users with both paths and reports the mean latency of each.
+     *
+     * @throws EntityNotFoundException if a user is not found
+     */
+    @Test
+    public final void benchmarkLookup() throws EntityNotFoundException {
+        for (int i = 0; i < WARM_UP; i++) {
+            query("user" + (i % USERS));
+            get("user" + (i % USERS));
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            query("user" + (i % USERS));
+        }
+
+        final long queryNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            get("user" + (i % USERS));
+        }
+
+        final long getNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "Username query: %.1f us per lookup; get by key: %.1f us per"
+            + " lookup (%d lookups over %d users).",
+            queryNanos / 1000.0 / LOOKUPS, getNanos / 1000.0 / LOOKUPS,
+            LOOKUPS, USERS));
+    }
+
+    /**
+     * Resolves a user with a query on the username property.
+     *
+     * @param username the username
+     */
+    private void query(final String username) {
+        final Query query = new Query(UserAccount.class.getSimpleName());
+        query.addFilter("username", FilterOperator.EQUAL, username);
+
+        assertNotNull(datastoreService.prepare(query).asSingleEntity());
+    }
+
+    /**
+     * Resolves a user with a get by its username key.
+     *
+     * @param username the username
+     * @throws EntityNotFoundException if the user is not found
+     */
+    private void get(final String username) throws EntityNotFoundException {
+        assertNotNull(datastoreService.get(UserAccount.createKey(username)));
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the Bloom filter.
+ */
+public class BloomFilterTest {
+
+    /**
+     * The number of values added.
+     */
+    private static final int INSERTIONS = 10000;
+
+    /**
+     * The false positive probability.
+     */
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * Tests that every added value is reported as possibly added.
+     */
+    @Test
+    public final void testNoFalseNegatives() {
+        final BloomFilter filter =
+            new BloomFilter(INSERTIONS, FALSE_POSITIVE_PROBABILITY);
+
+        for (int i = 0; i < INSERTIONS; i++) {
+            filter.put("user" + i);
+        }
+
+        for (int i = 0; i < INSERTIONS; i++) {
+            assertTrue(filter.mightContain("user" + i));
+        }
+    }
+
+    /**
+     * Tests that the false positive rate stays close to the configured
+     * probability.
+     */
+    @Test
+    public final void testFalsePositiveRate() {
+        final BloomFilter filter =
+            new BloomFilter(INSERTIONS, FALSE_POSITIVE_PROBABILITY);
+
+        for (int i = 0; i < INSERTIONS; i++) {
+            filter.put("user" + i);
+        }
+
+        int falsePositives = 0;
+
+        for (int i = 0; i < INSERTIONS; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+
+        assertTrue(falsePositives < INSERTIONS * FALSE_POSITIVE_PROBABILITY
+            * 3);
+    }
+
+    /**
+     * Tests that an empty filter contains nothing.
+     */
+    @Test
+    public final void testEmpty() {
+        final BloomFilter filter =
+            new BloomFilter(INSERTIONS, FALSE_POSITIVE_PROBABILITY);
+
+        assertFalse(filter.mightContain("user"));
+    }
+
+    /**
+     * Tests that values of a merged filter are not lost.
+     */
+    @Test
+    public final void testPutAll() {
+        final BloomFilter filter =
+            new BloomFilter(INSERTIONS, FALSE_POSITIVE_PROBABILITY);
+        final BloomFilter other =
+            new BloomFilter(INSERTIONS, FALSE_POSITIVE_PROBABILITY);
+
+        filter.put("first");
+        other.put("second");
+
+        assertTrue(filter.isCompatible(other));
+
+        filter.putAll(other);
+
+        assertTrue(filter.mightContain("first"));
+        assertTrue(filter.mightContain("second"));
+    }
+
+}
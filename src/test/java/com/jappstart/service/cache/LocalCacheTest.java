@@ -0,0 +1,106 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests the local cache.
+ */
+public class LocalCacheTest {
+
+    /**
+     * Tests that the least recently used entry is evicted once the capacity
+     * is exceeded.
+     */
+    @Test
+    public final void testEvictsLeastRecentlyUsed() {
+        final LocalCache<String, String> cache =
+            new LocalCache<String, String>(2, 60);
+
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    /**
+     * Tests that expired entries are not returned.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public final void testExpires() throws InterruptedException {
+        final LocalCache<String, String> cache =
+            new LocalCache<String, String>(2, 0);
+
+        cache.put("a", "1");
+        Thread.sleep(5L);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    /**
+     * Tests that hits and misses are counted.
+     */
+    @Test
+    public final void testCounts() {
+        final LocalCache<String, String> cache =
+            new LocalCache<String, String>(2, 60);
+
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Tests that removed and cleared entries are not returned.
+     */
+    @Test
+    public final void testRemoveAndClear() {
+        final LocalCache<String, String> cache =
+            new LocalCache<String, String>(2, 60);
+
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.remove("a");
+
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+
+        cache.clear();
+
+        assertEquals(0, cache.size());
+    }
+
+}
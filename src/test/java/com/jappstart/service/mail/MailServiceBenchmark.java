@@ -0,0 +1,183 @@
+/*
+ *  Copyright (C) 2010 Taylor Leese (tleese22@gmail.com)
+ *
+ *  This file is part of jappstart.
+ *
+ *  jappstart is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jappstart is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with jappstart.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jappstart.service.mail;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.MessageSource;
+import org.springframework.context.support.
+    ReloadableResourceBundleMessageSource;
+
+import com.jappstart.model.auth.UserAccount;
+
+/**
+ * Compares the activation mails built per second from the compiled
+ * templates with the mails built by formatting every message on each send,
+ * as the mail service did before. Both use the message source configured in
+ * <code>applicationContext-service.xml</code>. Not run by the default test
+ * phase; run it with <code>mvn test -Dtest=MailServiceBenchmark</code>.
+ */
+public class MailServiceBenchmark {
+
+    /**
+     * The number of measured messages.
+     */
+    private static final int MESSAGES = 50000;
+
+    /**
+     * The number of warm-up messages.
+     */
+    private static final int WARM_UP = 5000;
+
+    /**
+     * The locale.
+     */
+    private static final String LOCALE = "en";
+
+    /**
+     * The from address.
+     */
+    private static final String FROM_ADDRESS = "noreply@example.com";
+
+    /**
+     * The hostname.
+     */
+    private static final String HOSTNAME = "https://example.com";
+
+    /**
+     * The message source.
+     */
+    private MessageSource messageSource;
+
+    /**
+     * The mail service.
+     */
+    private MailService mailService;
+
+    /**
+     * The user.
+     */
+    private UserAccount user;
+
+    /**
+     * Sets up the message source, the mail service and the user.
+     */
+    @Before
+    public final void setUp() {
+        final ReloadableResourceBundleMessageSource source =
+            new ReloadableResourceBundleMessageSource();
+        source.setDefaultEncoding("utf-8");
+        source.setBasename("classpath:messages");
+        messageSource = source;
+
+        mailService = new MailService();
+        mailService.setFromAddress(FROM_ADDRESS);
+        mailService.setHostname(HOSTNAME);
+        mailService.setMessageSource(messageSource);
+
+        user = new UserAccount("user");
+        user.setEmail("user@example.com");
+    }
+
+    /**
+     * Builds activation mails both ways and reports the messages built per
+     * second.
+     *
+     * @throws MessagingException if a message cannot be built
+     */
+    @Test
+    public final void benchmarkActivationEmail() throws MessagingException {
+        for (int i = 0; i < WARM_UP; i++) {
+            mailService.createActivationEmail(user, LOCALE);
+            createUncompiled();
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            assertNotNull(mailService.createActivationEmail(user, LOCALE));
+        }
+
+        final long compiledNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            assertNotNull(createUncompiled());
+        }
+
+        final long uncompiledNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "Compiled templates: %.0f messages/s; formatted per send:"
+            + " %.0f messages/s.", MESSAGES * 1e9 / compiledNanos,
+            MESSAGES * 1e9 / uncompiledNanos));
+    }
+
+    /**
+     * Builds the activation mail as the mail service did before the
+     * templates, with a session lookup and three message source calls.
+     *
+     * @return the message
+     * @throws MessagingException if the message cannot be built
+     */
+    private Message createUncompiled() throws MessagingException {
+        final Properties props = new Properties();
+        final Session session = Session.getDefaultInstance(props, null);
+        final Message message = new MimeMessage(session);
+        final Multipart multipart = new MimeMultipart();
+        final MimeBodyPart htmlPart = new MimeBodyPart();
+        final MimeBodyPart textPart = new MimeBodyPart();
+
+        message.setFrom(new InternetAddress(FROM_ADDRESS));
+        message.addRecipient(Message.RecipientType.TO,
+            new InternetAddress(user.getEmail()));
+
+        message.setSubject(messageSource.getMessage("mail.subject", null,
+            new Locale(LOCALE)));
+
+        textPart.setContent(messageSource.getMessage("mail.body.txt",
+            new Object[] {HOSTNAME, user.getActivationKey()},
+            new Locale(LOCALE)), "text/plain");
+
+        htmlPart.setContent(messageSource.getMessage("mail.body.html",
+            new Object[] {HOSTNAME, user.getActivationKey()},
+            new Locale(LOCALE)), "text/html");
+
+        multipart.addBodyPart(textPart);
+        multipart.addBodyPart(htmlPart);
+        message.setContent(multipart);
+
+        return message;
+    }
+
+}